@@ -0,0 +1,61 @@
+package org.gicentre.tests;
+
+import processing.core.PApplet;
+
+/**Base class for tests that are run from main() without opening a window (Java's graphics
+ * environment is still needed, as PApplet is an Applet). Provides the sketch to draw to, and
+ * reports whether the checks passed.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public abstract class HeadlessTest {
+
+	/** Creates the sketch that is drawn to. This is never started, and has an offscreen canvas
+	 * instead of a window. Override if PApplet cannot be created this way.
+	 *
+	 * @param width  Width of the sketch
+	 * @param height  Height of the sketch
+	 * @return  The sketch
+	 */
+	protected PApplet createSketch(int width, int height){
+		PApplet applet=new PApplet();
+		applet.width=width;
+		applet.height=height;
+		applet.g=applet.createGraphics(applet.width,applet.height,PApplet.JAVA2D);
+		return applet;
+	}
+
+	/** Reports a check that failed
+	 *
+	 * @param condition  Whether the check passed
+	 * @param message  Reported if it did not
+	 * @return  Whether the check passed
+	 */
+	protected static boolean check(boolean condition, String message){
+		if (!condition)
+			System.out.println("FAILED: "+message);
+		return condition;
+	}
+
+	/** Reports whether all the checks passed and exits, with a status of 1 if they did not
+	 *
+	 * @param passed  Whether all the checks passed
+	 */
+	protected static void exit(boolean passed){
+		System.out.println(passed?"PASSED":"FAILED");
+		System.exit(passed?0:1);
+	}
+}
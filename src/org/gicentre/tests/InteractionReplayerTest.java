@@ -0,0 +1,133 @@
+package org.gicentre.tests;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.gicentre.utils.gui.GraphicBuffer;
+import org.gicentre.utils.gui.InteractionRecorder;
+import org.gicentre.utils.gui.InteractionReplayer;
+import org.gicentre.utils.gui.ThreadedDraw;
+import org.gicentre.utils.gui.ThreadedGraphicBuffer;
+import org.gicentre.utils.move.ZoomPan;
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+/**Round trip test for InteractionRecorder and InteractionReplayer, run from main() without
+ * opening a window.
+ * 
+ * A session is recorded in which the user pans, and the sketch sets the update flag part way
+ * through the pan. It is replayed through a ThreadedGraphicBuffer and a GraphicBuffer, each
+ * created with a ReplayZoomPan, in real time so that each render finishes before the next is
+ * asked for. The test checks that:
+ *   - every recorded frame is replayed
+ *   - each buffer draws once at the start and once when the pan ends, and not during the pan
+ *     (as it would not have in the session)
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class InteractionReplayerTest extends HeadlessTest {
+	
+	private static final int NUM_IDLE_FRAMES=3;     //frames before and after the pan
+	private static final int NUM_PAN_FRAMES=6;      //frames during the pan
+	private static final int IDLE_FRAME_MILLIS=100; //time between idle frames, long enough to draw in
+	private static final int PAN_FRAME_MILLIS=20;   //time between frames during the pan
+	
+	private boolean userPanning=false;              //whether the recorded user is panning
+	
+	public static void main(String[] args) throws IOException, InterruptedException{
+		boolean passed=new InteractionReplayerTest().run();
+		exit(passed);
+	}
+	
+	/** Runs the checks
+	 * 
+	 * @return  Whether all the checks passed
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	protected boolean run() throws IOException, InterruptedException{
+		PApplet applet=createSketch(100,100);
+		applet.g.beginDraw();
+		File trace=File.createTempFile("interaction",".trace");
+		trace.deleteOnExit();
+		record(applet,trace);
+		
+		InteractionReplayer replayer=new InteractionReplayer(trace);
+		int numFrames=NUM_IDLE_FRAMES*2+NUM_PAN_FRAMES;
+		boolean passed=true;
+		passed&=check(replayer.getNumFrames()==numFrames,"Trace has "+replayer.getNumFrames()+" frames, not "+numFrames);
+		
+		//through a ThreadedGraphicBuffer
+		InteractionReplayer.ReplayZoomPan zoomPan=new InteractionReplayer.ReplayZoomPan(applet);
+		ThreadedGraphicBuffer threadedBuffer=new ThreadedGraphicBuffer(applet,zoomPan,new ThreadedDraw() {
+			public void threadedDraw(PGraphics canvas, ZoomPanState zoomPanState, Object drawData) {
+				canvas.background(255);
+			}
+		});
+		InteractionReplayer.Results results=replayer.replay(zoomPan,threadedBuffer,null);
+		System.out.println("ThreadedGraphicBuffer: "+results);
+		passed&=check(results.getNumFrames()==numFrames,"ThreadedGraphicBuffer replayed "+results.getNumFrames()+" frames, not "+numFrames);
+		int numRequested=results.getNumRenders()+results.getNumCancelled();
+		passed&=check(numRequested==2,"ThreadedGraphicBuffer was asked to draw "+numRequested+" times, not 2");
+		
+		//through a GraphicBuffer
+		zoomPan=new InteractionReplayer.ReplayZoomPan(applet);
+		final PApplet sketch=applet;
+		GraphicBuffer buffer=new GraphicBuffer(applet,zoomPan);
+		results=replayer.replay(zoomPan,buffer,new Runnable() {
+			public void run() {
+				sketch.rect(10,10,20,20);
+			}
+		});
+		System.out.println("GraphicBuffer: "+results);
+		passed&=check(results.getNumFrames()==numFrames,"GraphicBuffer replayed "+results.getNumFrames()+" frames, not "+numFrames);
+		passed&=check(results.getNumRenders()==2,"GraphicBuffer captured "+results.getNumRenders()+" times, not 2");
+		return passed;
+	}
+	
+	/** Records the session: idle frames, a pan during which the update flag is set, then idle frames
+	 */
+	private void record(PApplet applet, File trace) throws IOException, InterruptedException{
+		//a ZoomPan that reports the recorded user's panning instead of using the mouse
+		ZoomPan zoomPan=new ZoomPan(applet){
+			public boolean isPanning(){
+				return userPanning;
+			}
+		};
+		InteractionRecorder recorder=new InteractionRecorder(zoomPan,trace);
+		for (int i=0;i<NUM_IDLE_FRAMES;i++){
+			recorder.recordFrame();
+			Thread.sleep(IDLE_FRAME_MILLIS);
+		}
+		userPanning=true;
+		for (int i=0;i<NUM_PAN_FRAMES;i++){
+			zoomPan.setPanOffset(i*5,i*2);
+			if (i==NUM_PAN_FRAMES/2)
+				recorder.recordUpdateFlag();
+			recorder.recordFrame();
+			Thread.sleep(PAN_FRAME_MILLIS);
+		}
+		userPanning=false;
+		recorder.panEnded();
+		for (int i=0;i<NUM_IDLE_FRAMES;i++){
+			recorder.recordFrame();
+			Thread.sleep(IDLE_FRAME_MILLIS);
+		}
+		recorder.close();
+	}
+}
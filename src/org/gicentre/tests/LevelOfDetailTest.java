@@ -0,0 +1,83 @@
+package org.gicentre.tests;
+
+import org.gicentre.utils.gui.LevelOfDetail;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PGraphics;
+
+/**Test for the paint order of LevelOfDetail, run from main() without opening a window.
+ * 
+ * Shapes written as pixels by LevelOfDetail must be painted in the order they were given, with
+ * those drawn normally. The test checks that:
+ *   - a sub-pixel shape given before a large shape that covers it ends up underneath it
+ *   - a sub-pixel shape given after a large shape ends up on top of it
+ *   - the caller's imageMode does not move the sub-pixel shapes
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class LevelOfDetailTest extends HeadlessTest {
+
+	private static final int RED=0xffff0000;
+	private static final int BLUE=0xff0000ff;
+	
+	public static void main(String[] args){
+		boolean passed=new LevelOfDetailTest().run();
+		exit(passed);
+	}
+	
+	/** Runs the checks
+	 * 
+	 * @return  Whether all the checks passed
+	 */
+	protected boolean run(){
+		PApplet applet=createSketch(20,20);
+		PGraphics canvas=applet.g;
+		canvas.beginDraw();
+		canvas.background(255);
+		canvas.noStroke();
+		//no ZoomPan, so original coordinates are canvas pixels
+		LevelOfDetail levelOfDetail=new LevelOfDetail(canvas,null);
+		
+		//a sub-pixel shape, then a large one covering it
+		levelOfDetail.draw(5.25f,5.25f,0.5f,0.5f,RED);
+		drawLarge(canvas,levelOfDetail,4,4,BLUE);
+		
+		//a large shape, then a sub-pixel shape over it, with a different imageMode
+		drawLarge(canvas,levelOfDetail,12,12,BLUE);
+		canvas.imageMode(PConstants.CENTER);
+		levelOfDetail.draw(13.25f,13.25f,0.5f,0.5f,RED);
+		levelOfDetail.flush();
+		canvas.endDraw();
+		canvas.loadPixels();
+		
+		boolean passed=true;
+		int under=canvas.pixels[5*canvas.width+5];
+		int over=canvas.pixels[13*canvas.width+13];
+		passed&=check(under==BLUE,"Sub-pixel shape given first is not under the large shape: "+Integer.toHexString(under));
+		passed&=check((over>>16&0xff)>0 && (over&0xff)<0xff,"Sub-pixel shape given last is not over the large shape: "+Integer.toHexString(over));
+		return passed;
+	}
+	
+	/** Draws a 3x3 pixel square as a large shape, which LevelOfDetail must reject
+	 */
+	private static void drawLarge(PGraphics canvas, LevelOfDetail levelOfDetail, float x, float y, int colour){
+		if (!levelOfDetail.draw(x,y,3,3,colour)){
+			canvas.fill(colour);
+			canvas.rect(x,y,3,3);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package org.gicentre.tests;
+
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gicentre.utils.gui.RenderScheduler;
+import org.gicentre.utils.gui.ThreadedDraw;
+import org.gicentre.utils.gui.ThreadedGraphicBuffer;
+import org.gicentre.utils.gui.ThreadedGraphicBufferListener;
+import org.gicentre.utils.move.ZoomPan;
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/**Stress test for the threading of ThreadedGraphicBuffer, run from main() without opening a
+ * window.
+ * 
+ * A "sketch" loop calls draw() at about 60 frames per second while randomly zooming and
+ * panning, and several other threads set the update flag at random, so most renders are
+ * cancelled. Each render is numbered, and the test checks that:
+ *   - images are published in the order they were requested (never a stale one after a newer one)
+ *   - listeners are told exactly once about each image the buffer publishes
+ *   - no canvases from the pool are left in use once drawing has finished
+ *   - the last image published is from the last render requested
+ * It reports the number of renders completed and cancelled, and how long cancelled renders
+ * took to notice.
+ * 
+ * This is repeated with a fade effect and with a RenderScheduler.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class ThreadedGraphicBufferStressTest extends HeadlessTest implements ThreadedDraw,ThreadedGraphicBufferListener{
+
+	private static final int NUM_SECONDS=10;       //length of each run
+	private static final int NUM_FLAG_THREADS=4;   //threads setting the update flag
+	
+	private ThreadedGraphicBuffer buffer;
+	private AtomicLong requestNumber=new AtomicLong(0);  //passed to draw() as the drawData
+	private Map<PGraphics,Long> canvasRequestNumbers=Collections.synchronizedMap(new HashMap<PGraphics, Long>()); //request number last drawn on each canvas
+	private volatile long lastDrawCallTime;              //when draw() was last called
+	
+	//results
+	private long lastPublishedRequestNumber=-1;
+	private PImage lastPublishedImage=null;
+	private int numOutOfOrder=0;
+	private int numRepeatedNotifications=0;
+	private int numNotifications=0;
+	private AtomicLong numCompleted=new AtomicLong(0);
+	private AtomicLong numCancelled=new AtomicLong(0);
+	private AtomicLong totalCancelNanos=new AtomicLong(0);
+	private AtomicLong maxCancelNanos=new AtomicLong(0);
+
+	public static void main(String[] args) throws InterruptedException{
+		boolean passed=true;
+		passed&=new ThreadedGraphicBufferStressTest().run("plain",false,null);
+		passed&=new ThreadedGraphicBufferStressTest().run("fade",true,null);
+		RenderScheduler renderScheduler=new RenderScheduler(2);
+		passed&=new ThreadedGraphicBufferStressTest().run("scheduler",false,renderScheduler);
+		renderScheduler.shutdown();
+		exit(passed);
+	}
+	
+	/** Runs the test with one configuration
+	 * 
+	 * @return  Whether all the checks passed
+	 */
+	protected boolean run(String name, boolean useFade, RenderScheduler renderScheduler) throws InterruptedException{
+		PApplet applet=createSketch(400,300);
+		final ZoomPan zoomPan=new ZoomPan(applet);
+		buffer=new ThreadedGraphicBuffer(applet,zoomPan,this,new Rectangle(0,0,applet.width,applet.height));
+		buffer.addListener(this);
+		buffer.setUseFadeEffect(useFade);
+		if (renderScheduler!=null)
+			buffer.setRenderScheduler(renderScheduler);
+		
+		//threads that set the update flag at random times
+		final long endTime=System.currentTimeMillis()+NUM_SECONDS*1000;
+		Thread[] flagThreads=new Thread[NUM_FLAG_THREADS];
+		for (int i=0;i<NUM_FLAG_THREADS;i++){
+			final Random random=new Random(i);
+			flagThreads[i]=new Thread(new Runnable() {
+				public void run() {
+					try{
+						while (System.currentTimeMillis()<endTime){
+							Thread.sleep(random.nextInt(40));
+							buffer.setUpdateFlag();
+						}
+					}
+					catch (InterruptedException e) {
+						//stop
+					}
+				}
+			});
+			flagThreads[i].start();
+		}
+		
+		//the sketch's draw loop, zooming and panning at random
+		Random random=new Random(99);
+		applet.g.beginDraw();
+		while (System.currentTimeMillis()<endTime){
+			if (random.nextInt(10)==0){
+				zoomPan.setZoomScale(0.5+random.nextDouble()*4);
+				zoomPan.setPanOffset(random.nextInt(200)-100,random.nextInt(200)-100);
+				buffer.setUpdateFlag();
+			}
+			drawFrame(zoomPan.getZoomPanState());
+			Thread.sleep(16);
+		}
+		for (Thread flagThread:flagThreads)
+			flagThread.join();
+		
+		//let the last render finish
+		buffer.setUpdateFlag();
+		drawFrame(zoomPan.getZoomPanState());
+		long finalRequestNumber=requestNumber.get();
+		long waitEnd=System.currentTimeMillis()+5000;
+		while (buffer.isDrawingInThread() && System.currentTimeMillis()<waitEnd){
+			buffer.draw(zoomPan.getZoomPanState(),finalRequestNumber);
+			Thread.sleep(16);
+		}
+		applet.g.endDraw();
+		
+		//check the invariants
+		boolean passed=true;
+		System.out.println("--- "+name+" ---");
+		System.out.println("Renders completed: "+numCompleted+" ("+numCompleted.get()/(float)NUM_SECONDS+"/s), cancelled: "+numCancelled);
+		if (numCancelled.get()>0)
+			System.out.println("Cancellation latency: mean "+totalCancelNanos.get()/numCancelled.get()/1000000f+"ms, max "+maxCancelNanos.get()/1000000f+"ms");
+		System.out.println("Images published: "+buffer.getNumPublished()+", stale renders discarded: "+buffer.getNumStalePublishes());
+		passed&=check(numOutOfOrder==0,"Images published out of order: "+numOutOfOrder);
+		passed&=check(numRepeatedNotifications==0,"Repeated notifications of the same image: "+numRepeatedNotifications);
+		passed&=check(numNotifications==buffer.getNumPublished(),"Notifications: "+numNotifications+", but images published: "+buffer.getNumPublished());
+		passed&=check(!buffer.isDrawingInThread(),"Still drawing after the last render");
+		passed&=check(lastPublishedRequestNumber==finalRequestNumber,"Last image is from request "+lastPublishedRequestNumber+", not "+finalRequestNumber);
+		//the current and previous images stay in use
+		passed&=check(buffer.getNumPooledCanvasesInUse()<=2,"Canvases still in use: "+buffer.getNumPooledCanvasesInUse()+" of "+buffer.getNumPooledCanvases());
+		return passed;
+	}
+	
+	/** Calls the buffer's draw(), with a new request number in case it starts a render
+	 */
+	private void drawFrame(ZoomPanState zoomPanState){
+		lastDrawCallTime=System.nanoTime();
+		buffer.draw(zoomPanState,requestNumber.incrementAndGet());
+	}
+	
+	/** Draws for a random time, checking for cancellation as a real threadedDraw() should
+	 */
+	public void threadedDraw(PGraphics canvas, ZoomPanState zoomPanState, Object drawData) {
+		long drawRequestNumber=(Long)drawData;
+		Random random=new Random(drawRequestNumber);
+		long endTime=System.nanoTime()+random.nextInt(30)*1000000L;
+		zoomPanState.transform(canvas);
+		canvas.noStroke();
+		while (System.nanoTime()<endTime){
+			if (Thread.currentThread().isInterrupted()){
+				//the render was cancelled by a draw() call
+				long cancelNanos=System.nanoTime()-lastDrawCallTime;
+				numCancelled.incrementAndGet();
+				totalCancelNanos.addAndGet(cancelNanos);
+				long max=maxCancelNanos.get();
+				while (cancelNanos>max && !maxCancelNanos.compareAndSet(max,cancelNanos))
+					max=maxCancelNanos.get();
+				return;
+			}
+			canvas.fill(random.nextInt(256),100);
+			canvas.rect(random.nextInt(400),random.nextInt(300),10,10);
+		}
+		canvasRequestNumbers.put(canvas,drawRequestNumber);
+		numCompleted.incrementAndGet();
+	}
+
+	/** Checks each newly published image is newer than the last
+	 */
+	public void newBufferedImageAvailable() {
+		numNotifications++;
+		PImage image=buffer.getImage();
+		if (image==lastPublishedImage){
+			numRepeatedNotifications++;
+			return;
+		}
+		lastPublishedImage=image;
+		Long imageRequestNumber=canvasRequestNumbers.get(image);
+		if (imageRequestNumber==null)
+			return;
+		if (imageRequestNumber<=lastPublishedRequestNumber)
+			numOutOfOrder++;
+		lastPublishedRequestNumber=imageRequestNumber;
+	}
+}
@@ -4,14 +4,15 @@ import java.awt.Rectangle;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import org.gicentre.utils.gui.BusyIcon;
+import org.gicentre.utils.gui.LevelOfDetail;
+import org.gicentre.utils.gui.OverlayBuffer;
+import org.gicentre.utils.gui.OverlayDraw;
 import org.gicentre.utils.gui.ThreadedDraw;
 import org.gicentre.utils.gui.ThreadedGraphicBuffer;
+import org.gicentre.utils.gui.VersionedData;
 import org.gicentre.utils.gui.Tooltip;
 import org.gicentre.utils.move.ZoomPan;
 import org.gicentre.utils.move.ZoomPanState;
@@ -27,6 +28,9 @@ import processing.core.PVector;
  *
  * Like GraphicBufferTest, but draws in separate threat so that the sketch does not freeze.
  * 
+ * Outlines of the shapes under the mouse are drawn with an OverlayBuffer, so they are only
+ * redrawn when the shapes under the mouse change.
+ * 
  * @author Aidan Slingsby, giCentre, City University London.
  * @version 1.0, August 2011 
  *
@@ -48,11 +52,12 @@ import processing.core.PVector;
 
 
 @SuppressWarnings("serial")
-public class ThreadedGraphicBufferTest extends PApplet implements ThreadedDraw{
+public class ThreadedGraphicBufferTest extends PApplet implements ThreadedDraw,OverlayDraw{
 
 	ZoomPan zoomPan;
 	ThreadedGraphicBuffer graphicBuffer;
-	Set<EllipseShape> ellipseShapes; //store our shapes to draw
+	OverlayBuffer highlightBuffer; //buffer for the outlines of shapes under the mouse
+	VersionedData<EllipseShape> ellipseShapes; //store our shapes to draw (readable from both threads)
 	Rectangle graphicBufferBounds; //screen bounds of the GraphicBuffer
 	Tooltip tooltip;
 	PFont font;
@@ -72,9 +77,12 @@ public class ThreadedGraphicBufferTest extends PApplet implements ThreadedDraw{
 		//we've chosen to make this sketch implement ThreadedDraw, hence "this" as the 3rd parameter
 		graphicBuffer=new ThreadedGraphicBuffer(this,zoomPan,this,graphicBufferBounds);
 		graphicBuffer.setUpdateDuringZoomPan(true);
+		//Create the overlay for highlighting, with the same zoompan and bounds
+		//we've chosen to make this sketch implement OverlayDraw, hence "this" as the 3rd parameter
+		highlightBuffer=new OverlayBuffer(this,zoomPan,this,graphicBufferBounds);
 		
-		//Create 30,000 randomly positioned, sized and coloured ellipses and add to a set
-		ellipseShapes=Collections.synchronizedSet(new HashSet<ThreadedGraphicBufferTest.EllipseShape>());
+		//Create 30,000 randomly positioned, sized and coloured ellipses and add to a list
+		List<EllipseShape> shapes=new ArrayList<ThreadedGraphicBufferTest.EllipseShape>();
 		for (int i=0;i<300000;i++){
 			float x=random((float)graphicBufferBounds.getMinX(),(float)graphicBufferBounds.getMaxX());
 			float y=random((float)graphicBufferBounds.getMinY(),(float)graphicBufferBounds.getMaxY());
@@ -83,8 +91,11 @@ public class ThreadedGraphicBufferTest extends PApplet implements ThreadedDraw{
 			int fillColour=color(random(0,255),random(0,255),random(0,255));
 			int strokeColour=color(random(0,255),random(0,255),random(0,255));
 			EllipseShape ellipseShape=new EllipseShape(x, y, w, h, fillColour, strokeColour);
-			ellipseShapes.add(ellipseShape);
+			shapes.add(ellipseShape);
 		}
+		ellipseShapes=new VersionedData<ThreadedGraphicBufferTest.EllipseShape>(shapes);
+		//redraw automatically whenever the shapes change
+		graphicBuffer.setVersionedData(ellipseShapes);
 		
 		font=createFont("Helvetica",12);
 		//Create a tooltip
@@ -104,7 +115,7 @@ public class ThreadedGraphicBufferTest extends PApplet implements ThreadedDraw{
 		//(Even through we iterate through all - this is very fast compared to drawing them!)
 		List<EllipseShape> mouseOveredShapes=new ArrayList<ThreadedGraphicBufferTest.EllipseShape>();
 		PVector transformedMouseCoord=zoomPan.getDispToCoord(new PVector(mouseX,mouseY));
-		for (EllipseShape ellipseShape:ellipseShapes)
+		for (EllipseShape ellipseShape:ellipseShapes.getSnapshot())
 			if (ellipseShape.ellipse2d.contains(transformedMouseCoord.x,transformedMouseCoord.y))
 				mouseOveredShapes.add(ellipseShape);
 		
@@ -119,21 +130,10 @@ public class ThreadedGraphicBufferTest extends PApplet implements ThreadedDraw{
 		//draw the buffer - with invoke the threadDraw code if flagged for updating
 		graphicBuffer.draw();
 		
-		//Start clipping drawn content to the bounds of the GraphicBuffer
-		graphicBuffer.startClipping();
-		//Transform using zoompan once again
-		pushMatrix();
-		zoomPan.transform();
 		//Draw outline of all the ellipses that the mouse is over
-		strokeWeight((float)(2/zoomPan.getZoomScale()));
-		for (EllipseShape ellipseShape:mouseOveredShapes){
-			noFill();
-			stroke(0,150);
-			ellipse((float)ellipseShape.ellipse2d.getX(), (float)ellipseShape.ellipse2d.getY(), (float)ellipseShape.ellipse2d.getWidth(), (float)ellipseShape.ellipse2d.getHeight());			
-		}
-		popMatrix();
-		//stop clipping
-		graphicBuffer.stopClipping();
+		//(only redrawn if the shapes under the mouse have changed)
+		highlightBuffer.setItems(mouseOveredShapes);
+		highlightBuffer.draw();
 		
 		//draw tooltip if the mouse is over ellipses
 		if (!mouseOveredShapes.isEmpty())
@@ -186,6 +186,9 @@ public class ThreadedGraphicBufferTest extends PApplet implements ThreadedDraw{
 		//Note that all drawing needs to be to the canvas, so prepend
 		//all Processing draw functions with "canvas."
 		
+		//write shapes smaller than a pixel as pixels (set up before zooming the canvas)
+		LevelOfDetail levelOfDetail=new LevelOfDetail(canvas,zoomPanState);
+		
 		//apply zoom TO CANVAS
 		zoomPanState.transform(canvas);
 		
@@ -199,9 +202,9 @@ public class ThreadedGraphicBufferTest extends PApplet implements ThreadedDraw{
 		//Use this below to only draw shapes within view. Vastly
 		//increased drawing time for zoomed-in views
 		Rectangle2D viewPort=graphicBuffer.getViewPort();
-		//iterate through all shapes and draw
-		for (EllipseShape ellipseShape:ellipseShapes){
-			if (viewPort.intersects(ellipseShape.ellipse2d.getBounds2D())){
+		//iterate through all shapes (as they were when drawing started) and draw
+		for (EllipseShape ellipseShape:ellipseShapes.getSnapshot()){
+			if (viewPort.intersects(ellipseShape.ellipse2d.getBounds2D()) && !levelOfDetail.draw((float)ellipseShape.ellipse2d.getX(), (float)ellipseShape.ellipse2d.getY(), (float)ellipseShape.ellipse2d.getWidth(), (float)ellipseShape.ellipse2d.getHeight(), 100<<24 | (ellipseShape.strokeColour&0xffffff))){
 				canvas.fill(ellipseShape.fillColour,100);
 				canvas.stroke(ellipseShape.strokeColour,100);
 				canvas.ellipse((float)ellipseShape.ellipse2d.getX(), (float)ellipseShape.ellipse2d.getY(), (float)ellipseShape.ellipse2d.getWidth(), (float)ellipseShape.ellipse2d.getHeight());
@@ -209,5 +212,21 @@ public class ThreadedGraphicBufferTest extends PApplet implements ThreadedDraw{
 			if (Thread.currentThread().isInterrupted())
 				return;
 		}
+		levelOfDetail.flush();
+	}
+	
+	//Code to draw the outline of a shape under the mouse onto the overlay
+	public void drawOverlayItem(PGraphics canvas, ZoomPanState zoomPanState, Object id) {
+		EllipseShape ellipseShape=(EllipseShape)id;
+		canvas.ellipseMode(CORNER);
+		canvas.strokeWeight((float)(2/zoomPanState.getZoomScale()));
+		canvas.noFill();
+		canvas.stroke(0,150);
+		canvas.ellipse((float)ellipseShape.ellipse2d.getX(), (float)ellipseShape.ellipse2d.getY(), (float)ellipseShape.ellipse2d.getWidth(), (float)ellipseShape.ellipse2d.getHeight());
+	}
+
+	//Bounds of a shape, so that the overlay knows what to redraw when it's removed
+	public Rectangle2D getOverlayItemBounds(Object id) {
+		return ((EllipseShape)id).ellipse2d.getBounds2D();
 	}
 }
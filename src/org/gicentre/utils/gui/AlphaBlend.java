@@ -0,0 +1,60 @@
+package org.gicentre.utils.gui;
+
+/** Integer blending of whole rasters of ARGB pixels (as used by Processing), for producing
+ * cross-fades without drawing with tint().
+ * 
+ * Blending is done on premultiplied values, so pixels that are transparent in one raster take
+ * their colour from the other rather than fading through black. This is what makes fading work
+ * with transparent backgrounds.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+final class AlphaBlend {
+
+	private AlphaBlend(){
+	}
+	
+	/** Blends two rasters: the result is from when amount is 0 and to when amount is 256
+	 * 
+	 * @param from  ARGB pixels to blend from
+	 * @param to  ARGB pixels to blend to (same length)
+	 * @param result  Where to put the blended ARGB pixels (same length, may not be from or to)
+	 * @param amount  Amount of to, from 0 to 256
+	 */
+	static void crossFade(int[] from, int[] to, int[] result, int amount){
+		int inverse=256-amount;
+		for (int i=0;i<result.length;i++){
+			int c1=from[i];
+			int c2=to[i];
+			if (c1==c2){
+				result[i]=c1;
+				continue;
+			}
+			int a1=c1>>>24;
+			int a2=c2>>>24;
+			int a=(a1*inverse+a2*amount)>>8;
+			if (a==0){
+				result[i]=0;
+				continue;
+			}
+			//premultiply, blend, then divide by the blended alpha
+			int r=((c1>>16&0xff)*a1*inverse+(c2>>16&0xff)*a2*amount)>>8;
+			int g=((c1>>8&0xff)*a1*inverse+(c2>>8&0xff)*a2*amount)>>8;
+			int b=((c1&0xff)*a1*inverse+(c2&0xff)*a2*amount)>>8;
+			result[i]=a<<24 | Math.min(255,r/a)<<16 | Math.min(255,g/a)<<8 | Math.min(255,b/a);
+		}
+	}
+}
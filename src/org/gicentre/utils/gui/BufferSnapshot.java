@@ -0,0 +1,171 @@
+package org.gicentre.utils.gui;
+
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.gicentre.utils.move.ZoomPan;
+
+import processing.core.PImage;
+import processing.core.PVector;
+
+/** A buffer's image saved to a file, with what is needed to show it again when a sketch next
+ * starts (a "warm start"): the bounds it was drawn at, the zoom/pan state and a key identifying
+ * the data that was drawn.
+ *
+ * The file is a short header followed by the raw ARGB pixels. The pixels are not compressed so
+ * that they can be read straight back into an image's pixels, which is much quicker than
+ * decoding a PNG.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+final class BufferSnapshot {
+
+	private static final int MAGIC=0x67435362;      //identifies snapshot files
+	private static final int FORMAT_VERSION=1;
+	private static final int HEADER_SIZE=4+4+8+4+4+1+4*8+8+4+4;
+
+	long dataKey;              //identifies the data that was drawn
+	int width,height;          //size of the image in pixels
+	Rectangle2D bounds;        //bounds in original coordinates the image was drawn at (null if no ZoomPan was used)
+	double zoomScale=1;        //zoom scale when saved
+	float panOffsetX,panOffsetY; //pan offset when saved
+
+	private BufferSnapshot(){
+	}
+
+	/** Saves an image to a snapshot file. The file is written under a temporary name and then
+	 * renamed, so an interrupted save does not leave a partial snapshot.
+	 * 
+	 * Renaming cannot replace a file on all platforms, so any existing snapshot is deleted first.
+	 * If the program stops between deleting and renaming, only the temporary file is left, which
+	 * is complete by then - load() uses it if the snapshot itself is missing.
+	 *
+	 * @param file  File to save to
+	 * @param dataKey  Identifies the data that was drawn
+	 * @param image  The image to save
+	 * @param bounds  Bounds in original coordinates the image was drawn at (null if no ZoomPan is used)
+	 * @param zoomPan  ZoomPan whose state is saved (null if none is used)
+	 * @throws IOException
+	 */
+	static void save(File file, long dataKey, PImage image, Rectangle2D bounds, ZoomPan zoomPan) throws IOException{
+		image.loadPixels();
+		ByteBuffer buffer=ByteBuffer.allocate(HEADER_SIZE+image.width*image.height*4);
+		buffer.putInt(MAGIC);
+		buffer.putInt(FORMAT_VERSION);
+		buffer.putLong(dataKey);
+		buffer.putInt(image.width);
+		buffer.putInt(image.height);
+		buffer.put((byte)(bounds==null?0:1));
+		buffer.putDouble(bounds==null?0:bounds.getX());
+		buffer.putDouble(bounds==null?0:bounds.getY());
+		buffer.putDouble(bounds==null?0:bounds.getWidth());
+		buffer.putDouble(bounds==null?0:bounds.getHeight());
+		PVector panOffset=zoomPan==null?null:zoomPan.getPanOffset();
+		buffer.putDouble(zoomPan==null?1:zoomPan.getZoomScale());
+		buffer.putFloat(panOffset==null?0:panOffset.x);
+		buffer.putFloat(panOffset==null?0:panOffset.y);
+		buffer.asIntBuffer().put(image.pixels,0,image.width*image.height);
+		buffer.rewind();
+
+		File tempFile=new File(file.getPath()+".tmp");
+		FileOutputStream out=new FileOutputStream(tempFile);
+		try{
+			FileChannel channel=out.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		finally{
+			out.close();
+		}
+		//renaming over an existing file fails on some platforms
+		if (file.exists() && !file.delete())
+			throw new IOException("Could not replace "+file);
+		if (!tempFile.renameTo(file))
+			throw new IOException("Could not rename "+tempFile+" to "+file);
+	}
+
+	/** Loads a snapshot file, if it exists and matches, reading the pixels straight into an image's
+	 * pixels. If the file is missing, the temporary file left by a save that stopped before
+	 * renaming is used instead.
+	 *
+	 * @param file  File to load
+	 * @param dataKey  Identifies the data that is to be drawn - the snapshot must have the same key
+	 * @param width  Width of the buffer - the snapshot must be the same size
+	 * @param height  Height of the buffer - the snapshot must be the same size
+	 * @param pixels  Pixels to read the image into (width*height long). These are left unchanged
+	 *                if the snapshot does not match.
+	 * @return  The snapshot, or null if there is no file or it does not match
+	 * @throws IOException
+	 */
+	static BufferSnapshot load(File file, long dataKey, int width, int height, int[] pixels) throws IOException{
+		if (!file.exists())
+			file=new File(file.getPath()+".tmp");
+		if (!file.exists() || file.length()!=HEADER_SIZE+(long)width*height*4)
+			return null;
+		DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try{
+			if (in.readInt()!=MAGIC || in.readInt()!=FORMAT_VERSION || in.readLong()!=dataKey
+					|| in.readInt()!=width || in.readInt()!=height)
+				return null;
+			BufferSnapshot snapshot=new BufferSnapshot();
+			snapshot.dataKey=dataKey;
+			snapshot.width=width;
+			snapshot.height=height;
+			boolean hasBounds=in.readByte()!=0;
+			double x=in.readDouble();
+			double y=in.readDouble();
+			double w=in.readDouble();
+			double h=in.readDouble();
+			if (hasBounds)
+				snapshot.bounds=new Rectangle2D.Float((float)x,(float)y,(float)w,(float)h);
+			snapshot.zoomScale=in.readDouble();
+			snapshot.panOffsetX=in.readFloat();
+			snapshot.panOffsetY=in.readFloat();
+			//read the pixels in blocks, converting each straight into the image's pixels
+			byte[] block=new byte[64*1024];
+			ByteBuffer blockBuffer=ByteBuffer.wrap(block);
+			int numPixels=width*height;
+			int offset=0;
+			while (offset<numPixels){
+				int numBlockPixels=Math.min(block.length/4,numPixels-offset);
+				in.readFully(block,0,numBlockPixels*4);
+				blockBuffer.clear();
+				blockBuffer.asIntBuffer().get(pixels,offset,numBlockPixels);
+				offset+=numBlockPixels;
+			}
+			return snapshot;
+		}
+		finally{
+			in.close();
+		}
+	}
+
+	/** Sets a ZoomPan to the state it was in when the snapshot was saved
+	 *
+	 * @param zoomPan  The ZoomPan to set
+	 */
+	void restoreView(ZoomPan zoomPan){
+		zoomPan.setZoomScale(zoomScale);
+		zoomPan.setPanOffset(panOffsetX,panOffsetY);
+	}
+}
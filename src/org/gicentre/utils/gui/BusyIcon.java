@@ -2,14 +2,23 @@ package org.gicentre.utils.gui;
 
 
 import java.applet.Applet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import processing.core.PApplet;
 import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PImage;
 
-/**Draws an animated graphic indicting something is in progress. Calling draw() draws one
- * frame and advance the animation frame by one. Can only be used for processes that are NOT in
+/**Draws an animated graphic indicting something is in progress. Calling draw() draws the
+ * frame of the animation for the current time, so the animation runs at the same speed
+ * whatever the sketch's frame rate. Can only be used for processes that are NOT in
  * Processing's "animation thread".
  * 
+ * The frames are drawn once for each size used and kept as images, so each call to draw() is
+ * a single image() call. The frames for the sizes used least recently are dropped when those
+ * kept would take too much memory.
+ * 
  * Can be used with ThreadedGraphicsBuffer
  * 
  * @author Aidan Slingsby, giCentre, City University London.
@@ -33,9 +42,16 @@ import processing.core.PConstants;
 
 public class BusyIcon{
 
-	int startColour=150;
+	int startColour=150;                       //colour of the first element in the frame last drawn (changing it moves the animation on)
 	int numElements=12;
 	int colourIncrement=(255-150)/(numElements-1);
+	float framesPerSecond=60;                  //speed of the animation
+	private LinkedHashMap<Integer,Frames> framesBySize=new LinkedHashMap<Integer, Frames>(16,0.75f,true); //pre-drawn frames for each pixel size, in order of use
+	private long numFramePixels=0;             //pixels in all the pre-drawn frames
+	private int drawnStartColour=150;          //startColour as set by draw(), to find whether it has been changed
+	private long colourOffset=0;               //starting colours the animation has been moved on by
+	private static final int MAX_PIXELS=1000000; //limit on the number of pixels kept for the frames of one size
+	private static final int MAX_CACHED_PIXELS=4*MAX_PIXELS; //limit on the number of pixels kept for the frames of all sizes
 	
 	/**Constructor, takes no arguments
 	 * 
@@ -43,8 +59,16 @@ public class BusyIcon{
 	public BusyIcon(){
 	}
 	
+	/**Sets the speed of the animation. Default is 60 frames per second.
+	 * 
+	 * @param framesPerSecond
+	 */
+	public void setFrameRate(float framesPerSecond){
+		this.framesPerSecond=framesPerSecond;
+	}
+	
 
-	/**Draws one frame to the applet, then advance the frame counter. Animation is achieved
+	/**Draws the frame of the animation for the current time to the applet. Animation is achieved
 	 * through multiple calls to this
 	 * 
 	 * @param applet The sketch to draw to
@@ -53,31 +77,113 @@ public class BusyIcon{
 	 * @param width  width in pixels
 	 */
 	public void draw(PApplet applet, float x, float y, float width) {
-		x-=width/2;
-		y-=width/2;
-		applet.pushMatrix();
+		int size=(int)Math.ceil(width);
+		if (size<1)
+			return;
+		Frames frames=getFrames(applet,size);
+		//the starting colour advances one step each frame (and by however much it was changed)
+		if (startColour!=drawnStartColour)
+			colourOffset+=startColour-drawnStartColour;
+		int numColours=255-150+1;
+		long tick=(long)(applet.millis()*framesPerSecond/1000f)+colourOffset;
+		int colourIndex=(int)(((tick%numColours)+numColours)%numColours);
+		startColour=150+colourIndex;
+		drawnStartColour=startColour;
+		PImage frame=frames.images[Math.min(frames.images.length-1,colourIndex/frames.colourStep)];
+		//draw the frame as it is, whatever the sketch's image mode and tint
 		applet.pushStyle();
+		applet.imageMode(PConstants.CORNER);
+		applet.noTint();
+		applet.image(frame,x-width/2,y-width/2,width,width);
+		applet.popStyle();
+	}
+	
+	/**Gets the frames for a particular size, drawing them if they are not kept. Frames for the
+	 * sizes used least recently are dropped if those kept would take too much memory.
+	 * 
+	 * @param applet The sketch
+	 * @param size  Width and height in pixels
+	 * @return  The frames
+	 */
+	private Frames getFrames(PApplet applet, int size){
+		Frames frames=framesBySize.get(size);
+		if (frames==null){
+			frames=createFrames(applet,size);
+			framesBySize.put(size,frames);
+			numFramePixels+=frames.numPixels;
+			//the frames just drawn are the last to be dropped, and are always kept
+			Iterator<Frames> it=framesBySize.values().iterator();
+			while (numFramePixels>MAX_CACHED_PIXELS && framesBySize.size()>1){
+				numFramePixels-=it.next().numPixels;
+				it.remove();
+			}
+		}
+		return frames;
+	}
+	
+	/**Draws all the frames of the animation at a particular size
+	 * 
+	 * @param applet The sketch
+	 * @param size  Width and height in pixels
+	 * @return  The frames
+	 */
+	private Frames createFrames(PApplet applet, int size){
+		//one frame for each starting colour, unless that would take too much memory
+		int numColours=255-150+1;
+		int step=(int)Math.ceil(numColours*(long)size*size/(double)MAX_PIXELS);
+		Frames frames=new Frames();
+		frames.colourStep=step;
+		frames.images=new PImage[(numColours+step-1)/step];
+		frames.numPixels=frames.images.length*(long)size*size;
+		for (int i=0;i<frames.images.length;i++){
+			PGraphics frame=applet.createGraphics(size,size,PApplet.JAVA2D);
+			frame.beginDraw();
+			frame.smooth();
+			frame.background(0,0,0,0);
+			drawFrame(frame,0,0,size,150+i*step);
+			frame.endDraw();
+			frames.images[i]=frame;
+		}
+		return frames;
+	}
+	
+	/**Draws one frame of the animation
+	 * 
+	 * @param g  Where to draw it 
+	 * @param x  Left
+	 * @param y  Top
+	 * @param width  width in pixels
+	 * @param startColour  Colour of the first element, which advances each frame
+	 */
+	private void drawFrame(PGraphics g, float x, float y, float width, int startColour) {
+		g.pushMatrix();
+		g.pushStyle();
 		
-		applet.fill(255,50);
-		applet.noStroke();
-		applet.ellipseMode(PConstants.CORNER);
-		applet.strokeWeight(width/14f);
-		applet.ellipse(x, y, width, width);
-		applet.strokeCap(PConstants.ROUND);
-		applet.translate(x+width/2, y+width/2);
+		g.fill(255,50);
+		g.noStroke();
+		g.ellipseMode(PConstants.CORNER);
+		g.strokeWeight(width/14f);
+		g.ellipse(x, y, width, width);
+		g.strokeCap(PConstants.ROUND);
+		g.translate(x+width/2, y+width/2);
 		int colour=startColour;
 		for (int i=0;i<numElements;i++) {
-			applet.rotate((2*(float)Math.PI)/numElements);
-			applet.stroke(colour);
-			applet.line(width/3, width/3, width/8,width/8);
+			g.rotate((2*(float)Math.PI)/numElements);
+			g.stroke(colour);
+			g.line(width/3, width/3, width/8,width/8);
 			colour+=colourIncrement;
 			if (colour>255)
 				colour=150;
 		}
-		applet.popMatrix();
-		applet.popStyle();
-		startColour++;
-		if (startColour>255)
-			startColour=150;
+		g.popMatrix();
+		g.popStyle();
+	}
+	
+	/**Pre-drawn frames of the animation at one size
+	 */
+	private static class Frames{
+		PImage[] images;                       //frames, in order
+		int colourStep;                        //starting colours between frames
+		long numPixels;                        //pixels in all the frames
 	}
 }
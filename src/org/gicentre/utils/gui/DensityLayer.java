@@ -0,0 +1,261 @@
+package org.gicentre.utils.gui;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/** Layer that draws very large numbers of points as a density surface rather than as
+ * individual shapes. Use as the ThreadedDraw of a ThreadedGraphicBuffer.
+ * 
+ * When millions of points are drawn, most overplot each other, so drawing each one is slow and
+ * shows little. Instead, this counts the points that fall in each pixel of the current view and
+ * colours each pixel by its count using a colour ramp, writing directly to the canvas pixels. The
+ * points are split into partitions that are counted in parallel and then added together, so the
+ * time taken depends on the number of points and the number of pixels, not on drawing shapes.
+ * 
+ * Points are given in original (world) coordinates - the same coordinates that ZoomPan
+ * transforms. Pixels without any points are left as they are.  
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class DensityLayer implements ThreadedDraw{
+
+	private float[] xs,ys;                     //point coordinates
+	private int[] colourLookup=new int[256];   //colour ramp, interpolated to 256 colours
+	private boolean useLogScale=true;          //whether counts are log scaled before colouring
+	private int numPartitions;                 //number of partitions counted in parallel
+	private ExecutorService executor=null;     //threads used for counting (created when needed)
+	
+	
+	/** Creates a new density layer
+	 * 
+	 * @param xs  X coordinates of the points (in original coordinates)
+	 * @param ys  Y coordinates of the points (in original coordinates)
+	 * @param screenBounds  Not used (the pixels are found from the canvas being drawn to)
+	 * @deprecated  Use DensityLayer(float[],float[]), as the screen bounds are no longer needed
+	 */
+	@Deprecated
+	public DensityLayer(float[] xs, float[] ys, Rectangle screenBounds){
+		this(xs,ys);
+	}
+	
+	/** Creates a new density layer. The points are counted into the pixels of whichever canvas
+	 * it draws to, so it follows the buffer being resized and works with scaled canvases (e.g.
+	 * when exporting a poster).
+	 * 
+	 * @param xs  X coordinates of the points (in original coordinates)
+	 * @param ys  Y coordinates of the points (in original coordinates)
+	 */
+	public DensityLayer(float[] xs, float[] ys){
+		this.numPartitions=Runtime.getRuntime().availableProcessors();
+		setPoints(xs, ys);
+		//default ramp: transparent light blue to opaque dark blue
+		setColourRamp(new int[]{0x40c6dbef,0xff08306b});
+	}
+	
+	/** Sets the points to draw. The arrays are used directly, not copied, so set new arrays
+	 * rather than changing these ones while drawing may be taking place.
+	 * 
+	 * @param xs  X coordinates of the points (in original coordinates)
+	 * @param ys  Y coordinates of the points (in original coordinates)
+	 */
+	public synchronized void setPoints(float[] xs, float[] ys){
+		if (xs.length!=ys.length)
+			throw new IllegalArgumentException("Different numbers of x and y coordinates.");
+		this.xs=xs;
+		this.ys=ys;
+	}
+	
+	/** Sets the colours used for counts from lowest to highest. Colours are evenly spaced along
+	 * the ramp and interpolated between (including alpha).
+	 * 
+	 * @param colours  At least one ARGB colour
+	 */
+	public synchronized void setColourRamp(int[] colours){
+		if (colours.length==0)
+			throw new IllegalArgumentException("At least one colour is needed.");
+		int[] lookup=new int[256];
+		for (int i=0;i<256;i++){
+			if (colours.length==1){
+				lookup[i]=colours[0];
+				continue;
+			}
+			float pos=i/255f*(colours.length-1);
+			int index=Math.min((int)pos,colours.length-2);
+			lookup[i]=lerpARGB(colours[index],colours[index+1],pos-index);
+		}
+		colourLookup=lookup;
+	}
+	
+	/** Sets whether counts are log scaled before colouring, so that sparse areas remain visible
+	 * next to dense ones. Default is true.
+	 * 
+	 * @param useLogScale
+	 */
+	public void setUseLogScale(boolean useLogScale){
+		this.useLogScale=useLogScale;
+	}
+	
+	/** Sets the number of partitions that are counted in parallel. Default is the number of processors.
+	 * 
+	 * @param numPartitions
+	 */
+	public synchronized void setNumPartitions(int numPartitions){
+		if (numPartitions<1)
+			throw new IllegalArgumentException("At least one partition is needed.");
+		this.numPartitions=numPartitions;
+		if (executor!=null){
+			executor.shutdown();
+			executor=null;
+		}
+	}
+
+	/** Counts the points in each pixel and colours the canvas
+	 */
+	public void threadedDraw(PGraphics canvas, ZoomPanState zoomPanState, Object drawData) {
+		float[] localXs,localYs;
+		int[] localColourLookup;
+		ExecutorService localExecutor;
+		int localNumPartitions;
+		synchronized (this) {
+			localXs=xs;
+			localYs=ys;
+			localColourLookup=colourLookup;
+			localNumPartitions=numPartitions;
+			if (executor==null)
+				executor=Executors.newFixedThreadPool(numPartitions,new DaemonThreadFactory());
+			localExecutor=executor;
+		}
+		//count into the canvas's pixels, whatever its size and transformation
+		ScreenMapping mapping=ScreenMapping.forCanvas(zoomPanState,canvas);
+		
+		//count the points in each pixel, one grid per partition
+		int numPoints=localXs.length;
+		List<Callable<int[]>> tasks=new ArrayList<Callable<int[]>>();
+		for (int i=0;i<localNumPartitions;i++)
+			tasks.add(new CountTask(localXs,localYs,numPoints*(long)i/localNumPartitions,numPoints*(long)(i+1)/localNumPartitions,mapping));
+		int[] counts=null;
+		try{
+			List<Future<int[]>> results=localExecutor.invokeAll(tasks);
+			//add the partitions' grids together
+			for (Future<int[]> result:results){
+				int[] partitionCounts=result.get();
+				if (counts==null)
+					counts=partitionCounts;
+				else{
+					for (int i=0;i<counts.length;i++)
+						counts[i]+=partitionCounts[i];
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			//drawing has been cancelled - keep the flag set so the buffer knows
+			Thread.currentThread().interrupt();
+			return;
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		if (counts==null)
+			return;
+		
+		int maxCount=0;
+		for (int count:counts)
+			maxCount=Math.max(maxCount,count);
+		if (maxCount==0)
+			return;
+		
+		//colour the pixels, leaving those with no points transparent
+		double scaleMax=useLogScale?Math.log(1+maxCount):maxCount;
+		PImage densityImage=new PImage(mapping.width,mapping.height,PConstants.ARGB);
+		for (int i=0;i<counts.length;i++){
+			if (counts[i]>0){
+				double value=useLogScale?Math.log(1+counts[i]):counts[i];
+				densityImage.pixels[i]=localColourLookup[(int)(255*value/scaleMax)];
+			}
+		}
+		densityImage.updatePixels();
+		//draw in canvas pixels, whatever transformation has been applied
+		canvas.pushMatrix();
+		canvas.resetMatrix();
+		canvas.image(densityImage,0,0);
+		canvas.popMatrix();
+	}
+	
+	/** Interpolates between two ARGB colours, including alpha
+	 */
+	private static int lerpARGB(int c1, int c2, float amount){
+		int a=(int)(((c1>>>24)&0xff)+(((c2>>>24)&0xff)-((c1>>>24)&0xff))*amount);
+		int r=(int)(((c1>>16)&0xff)+(((c2>>16)&0xff)-((c1>>16)&0xff))*amount);
+		int g=(int)(((c1>>8)&0xff)+(((c2>>8)&0xff)-((c1>>8)&0xff))*amount);
+		int b=(int)((c1&0xff)+((c2&0xff)-(c1&0xff))*amount);
+		return (a<<24)|(r<<16)|(g<<8)|b;
+	}
+	
+	/** Counts the points of one partition into a grid of pixels 
+	 */
+	private static class CountTask implements Callable<int[]>{
+		float[] xs,ys;
+		int start,end;
+		ScreenMapping mapping;
+		
+		CountTask(float[] xs, float[] ys, long start, long end, ScreenMapping mapping){
+			this.xs=xs;
+			this.ys=ys;
+			this.start=(int)start;
+			this.end=(int)end;
+			this.mapping=mapping;
+		}
+		
+		public int[] call() throws InterruptedException{
+			int w=mapping.width;
+			int h=mapping.height;
+			int[] counts=new int[w*h];
+			for (int i=start;i<end;i++){
+				double px=mapping.toCanvasX(xs[i]);
+				double py=mapping.toCanvasY(ys[i]);
+				if (px>=0 && py>=0 && px<w && py<h)
+					counts[(int)py*w+(int)px]++;
+				//check for cancellation occasionally
+				if ((i&0xffff)==0 && Thread.currentThread().isInterrupted())
+					throw new InterruptedException();
+			}
+			return counts;
+		}
+	}
+	
+	/** Creates daemon threads, so that counting threads do not stop the sketch from exiting
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory{
+		public Thread newThread(Runnable runnable) {
+			Thread thread=new Thread(runnable,"DensityLayer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
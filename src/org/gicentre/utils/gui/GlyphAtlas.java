@@ -0,0 +1,171 @@
+package org.gicentre.utils.gui;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+import processing.core.PFont;
+
+/** The glyphs of a font at one size, rasterised once (with Java2D) as alpha masks, so that
+ * LabelRenderer can draw text by copying glyphs rather than going through Java2D's text path
+ * for every label on every redraw.
+ *
+ * The printable ASCII characters are rasterised when the atlas is created and other characters
+ * when first needed. An atlas can be shared by any number of LabelRenderers and threads, so
+ * create one for each font and size and keep it.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class GlyphAtlas {
+
+	private Font font;
+	private boolean smooth;
+	private FontRenderContext fontRenderContext;
+	private int ascent, descent;                  //in pixels
+	private Glyph[] asciiGlyphs=new Glyph[128];   //quick lookup of the ASCII characters
+	private Map<Character,Glyph> otherGlyphs=new HashMap<Character, Glyph>(); //other characters (guarded by this)
+
+	/** Creates the atlas for a font at a size, with antialiased glyphs
+	 *
+	 * @param font  The font (uses the native font if it has one, otherwise one with the same name)
+	 * @param size  Size in pixels
+	 */
+	public GlyphAtlas(PFont font, float size){
+		this(font,size,true);
+	}
+
+	/** Creates the atlas for a font at a size
+	 *
+	 * @param font  The font (uses the native font if it has one, otherwise one with the same name)
+	 * @param size  Size in pixels
+	 * @param smooth  Whether glyphs are antialiased
+	 */
+	public GlyphAtlas(PFont font, float size, boolean smooth){
+		Font nativeFont;
+		if (font.getNative() instanceof Font)
+			nativeFont=(Font)font.getNative();
+		else
+			nativeFont=new Font(font.getName(),Font.PLAIN,Math.round(size));
+		this.font=nativeFont.deriveFont(size);
+		this.smooth=smooth;
+
+		BufferedImage image=new BufferedImage(1,1,BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2=createGraphics(image);
+		FontMetrics metrics=g2.getFontMetrics(this.font);
+		ascent=metrics.getAscent();
+		descent=metrics.getDescent();
+		fontRenderContext=g2.getFontRenderContext();
+		g2.dispose();
+
+		for (char c=32;c<127;c++)
+			asciiGlyphs[c]=createGlyph(c);
+	}
+
+	/** Gets the distance from the baseline to the top of the tallest characters
+	 *
+	 * @return  Ascent in pixels
+	 */
+	public int getAscent(){
+		return ascent;
+	}
+
+	/** Gets the distance from the baseline to the bottom of the lowest characters
+	 *
+	 * @return  Descent in pixels
+	 */
+	public int getDescent(){
+		return descent;
+	}
+
+	/** Finds the width of some text (the sum of its characters' advances, without kerning)
+	 *
+	 * @param text  The text
+	 * @return  Width in pixels
+	 */
+	public float getWidth(String text){
+		float width=0;
+		for (int i=0;i<text.length();i++)
+			width+=getGlyph(text.charAt(i)).advance;
+		return width;
+	}
+
+	/** Gets a character's glyph, rasterising it if it has not been already
+	 */
+	Glyph getGlyph(char c){
+		if (c<asciiGlyphs.length && asciiGlyphs[c]!=null)
+			return asciiGlyphs[c];
+		synchronized (otherGlyphs) {
+			Glyph glyph=otherGlyphs.get(c);
+			if (glyph==null){
+				glyph=createGlyph(c);
+				otherGlyphs.put(c,glyph);
+			}
+			return glyph;
+		}
+	}
+
+	/** Rasterises a character's glyph
+	 */
+	private Glyph createGlyph(char c){
+		Glyph glyph=new Glyph();
+		GlyphVector glyphVector=font.createGlyphVector(fontRenderContext,new char[]{c});
+		glyph.advance=glyphVector.getGlyphMetrics(0).getAdvance();
+		Rectangle bounds=glyphVector.getPixelBounds(fontRenderContext,0,0);
+		if (bounds.width<=0 || bounds.height<=0)
+			return glyph;   //e.g. space
+		glyph.left=bounds.x;
+		glyph.top=bounds.y;
+		glyph.width=bounds.width;
+		glyph.height=bounds.height;
+
+		BufferedImage image=new BufferedImage(bounds.width,bounds.height,BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2=createGraphics(image);
+		g2.setFont(font);
+		g2.drawGlyphVector(glyphVector,-bounds.x,-bounds.y);
+		g2.dispose();
+		int[] argb=image.getRGB(0,0,bounds.width,bounds.height,null,0,bounds.width);
+		glyph.alpha=new byte[argb.length];
+		for (int i=0;i<argb.length;i++)
+			glyph.alpha[i]=(byte)(argb[i]>>>24);
+		return glyph;
+	}
+
+	/** Creates a Graphics2D for rasterising glyphs, antialiased if smooth
+	 */
+	private Graphics2D createGraphics(BufferedImage image){
+		Graphics2D g2=image.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				smooth?RenderingHints.VALUE_TEXT_ANTIALIAS_ON:RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+		g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+		return g2;
+	}
+
+	/** Alpha mask of one character, positioned relative to the pen on the baseline
+	 */
+	static class Glyph{
+		float advance;            //distance to move the pen on
+		int left,top;             //position of the mask relative to the pen
+		int width,height;         //size of the mask (0 if the glyph is blank)
+		byte[] alpha;             //coverage of each pixel of the mask, row by row
+	}
+}
@@ -3,12 +3,17 @@ package org.gicentre.utils.gui;
 
 import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
 
 import org.gicentre.utils.move.ZoomPanListener;
 import org.gicentre.utils.move.ZoomPan;
 import org.gicentre.utils.move.ZoomPanState;
 
 import processing.core.PApplet;
+import processing.core.PConstants;
 import processing.core.PGraphics;
 import processing.core.PGraphicsJava2D;
 import processing.core.PImage;
@@ -37,6 +42,8 @@ import processing.core.PVector;
  * 
  * The sketch will still freeze when drawing to the buffer takes place, but this will only happen
  * for the (relatively) few times this happens. Use ThreadedGraphicBuffer to avoid such freezing.
+ * If the drawing code must stay in the animation thread, startSlicedCapture() spreads the drawing
+ * over several frames instead.
  * 
  *  
  * @author Aidan Slingsby, giCentre, City University London.
@@ -68,6 +75,13 @@ public class GraphicBuffer implements ZoomPanListener{
 	private Rectangle2D boundsAtLastBuffer; //keeps track of the zoompan state at the last draw
 	private ZoomPan zoomPan;                //zoompan
 	boolean needToUpdate=true;              //flag indicating whether content needs to be redrawn 
+	private Iterator<? extends Runnable> slicedDrawUnits=null; //remaining units of a time-sliced capture (null if none in progress)
+	private float sliceBudget=10;           //milliseconds of time-sliced drawing allowed per frame
+	private boolean useAcceleratedImage=false; //whether the buffer is drawn from an accelerated copy
+	private BufferedImage acceleratedImage=null; //accelerated copy of the buffer (null if not used or out of date)
+	private Rectangle lastScreenBounds;     //copy of the screen bounds, to find whether they have changed
+	private long lastResizeTime=0;          //when the screen bounds were last changed
+	private int resizeDelay=200;            //milliseconds after resizing before the update flag is reported
 	
 	
 	/**
@@ -91,6 +105,7 @@ public class GraphicBuffer implements ZoomPanListener{
 	public GraphicBuffer(PApplet applet, ZoomPan zoomPan, Rectangle screenBounds){
 		this.applet=applet;
 		this.screenBounds=screenBounds;
+		this.lastScreenBounds=new Rectangle(screenBounds);
 		this.zoomPan=zoomPan;
 		
 		//create the off-screen buffer
@@ -124,11 +139,7 @@ public class GraphicBuffer implements ZoomPanListener{
 	 * @return The current viewport
 	 */
 	public Rectangle2D getViewPort(ZoomPanState zoomPanState){
-		//Find the coordinates of the top left and bottom right corners
-		PVector topLeft=zoomPanState.getDispToCoord(new PVector((float)screenBounds.getMinX(),(float)screenBounds.getMinY()));
-		PVector bottomRight=zoomPanState.getDispToCoord(new PVector((float)screenBounds.getMaxX(),(float)screenBounds.getMaxY()));
-		Rectangle2D coordBounds=new Rectangle2D.Float(topLeft.x,topLeft.y,bottomRight.x-topLeft.x,bottomRight.y-topLeft.y);
-		return coordBounds;
+		return ScreenMapping.getViewPort(zoomPanState,screenBounds);
 	}
 
 
@@ -139,6 +150,8 @@ public class GraphicBuffer implements ZoomPanListener{
 	 * Use zoomPan.transform() in the sketch if you're using a zoompan instance with this
 	 */
 	public void startCapture(){
+		//a full capture replaces any time-sliced capture in progress
+		slicedDrawUnits=null;
 		//reset the flag
 		needToUpdate=false;
 		//keep a record of the zoom scale at last draw, for scaling the buffer image
@@ -149,6 +162,102 @@ public class GraphicBuffer implements ZoomPanListener{
 			boundsAtLastBuffer=new Rectangle2D.Float(p1.x,p1.y,p2.x-p1.x,p2.y-p1.y);
 		}
 		
+		switchToBuffer();
+		applet.background(255,0);//transparent background
+
+	}
+	
+	/** Starts a time-sliced capture, for drawing that takes too long to do in one frame but must
+	 * stay in the animation thread.
+	 * 
+	 * Rather than drawing between startCapture() and stopCapture(), the drawing is split into
+	 * units of work (each a Runnable that uses the usual Processing functions). Each call to draw()
+	 * runs as many units as fit in the slice budget (see setSliceBudget()) and then draws the
+	 * partially complete buffer, so the sketch does not freeze. Units are captured in the same way
+	 * as with startCapture(), so each should set its own transformation (e.g. zoomPan.transform()
+	 * between pushMatrix() and popMatrix()). No units are run while zooming or panning.
+	 * 
+	 * Call this instead of startCapture() when needToUpdate() reports true. A new capture replaces
+	 * any that is still in progress.
+	 * 
+	 * @param slicedDrawUnits  The units of drawing work, in drawing order 
+	 */
+	public void startSlicedCapture(Iterator<? extends Runnable> slicedDrawUnits){
+		//clear the buffer and record the zoompan state in the same way as a full capture 
+		startCapture();
+		endCapture();
+		if (slicedDrawUnits.hasNext())
+			this.slicedDrawUnits=slicedDrawUnits;
+	}
+	
+	/** Reports whether a time-sliced capture is still in progress
+	 * 
+	 * @return Whether there are units of a time-sliced capture still to run
+	 */
+	public boolean isSlicedCaptureInProgress(){
+		return slicedDrawUnits!=null;
+	}
+	
+	/** Cancels any time-sliced capture in progress. What has been drawn so far remains in the buffer.
+	 * 
+	 */
+	public void cancelSlicedCapture(){
+		if (slicedDrawUnits!=null){
+			slicedDrawUnits=null;
+			updateAcceleratedImage();
+		}
+	}
+	
+	/** Sets the time allowed for time-sliced drawing in each call to draw(). At least one unit of
+	 * work is run per call, whatever the budget. Default is 10ms.
+	 * 
+	 * @param sliceBudget  Budget in milliseconds
+	 */
+	public void setSliceBudget(float sliceBudget){
+		this.sliceBudget=sliceBudget;
+	}
+	
+	/** Gets the time allowed for time-sliced drawing in each call to draw()
+	 * 
+	 * @return Budget in milliseconds
+	 */
+	public float getSliceBudget(){
+		return sliceBudget;
+	}
+	
+	/** Runs as many units of a time-sliced capture as fit in the slice budget 
+	 */
+	private void continueSlicedCapture(){
+		//wait until zooming/panning has finished, as the units would be transformed differently
+		if (zoomPan!=null && (zoomPan.isPanning() || zoomPan.isZooming()))
+			return;
+		long endTime=System.nanoTime()+(long)(sliceBudget*1000000);
+		switchToBuffer();
+		try{
+			//always run at least one unit, so that progress is made even on a small budget
+			do{
+				slicedDrawUnits.next().run();
+			}while (slicedDrawUnits.hasNext() && System.nanoTime()<endTime);
+		}
+		finally{
+			//switch back to the sketch's graphic context even if a unit fails
+			endCapture();
+		}
+		//the accelerated copy is only made once the whole capture is complete
+		if (!slicedDrawUnits.hasNext()){
+			slicedDrawUnits=null;
+			updateAcceleratedImage();
+		}
+	}
+	
+	/** Switches the sketch's graphic context to that of the buffer, copying the
+	 * current styles and transformation across
+	 */
+	private void switchToBuffer(){
+		//make the buffer the new size if it has been resized
+		if (bufferImage.width!=screenBounds.width || bufferImage.height!=screenBounds.height)
+			bufferImage=applet.createGraphics(screenBounds.width,screenBounds.height,PApplet.JAVA2D);
+		
 		//switch the graphic context to that of the buffer
 		oldG = applet.g;
 		applet.g=bufferImage;
@@ -190,14 +299,19 @@ public class GraphicBuffer implements ZoomPanListener{
 		applet.g.setMatrix(oldG.getMatrix());
 		applet.g.pushMatrix();
 		applet.g.translate(-screenBounds.x,-screenBounds.y);
-		applet.background(255,0);//transparent background
-
 	}
 	
 	/** Stop capturing drawn content
 	 * You MUST call this when you've finished, otherwise it will continue to capture drawn content!
 	 */
 	public void stopCapture(){
+		endCapture();
+		updateAcceleratedImage();
+	}
+	
+	/** Switches the sketch's graphic context back from that of the buffer
+	 */
+	private void endCapture(){
 		bufferImage.endDraw();
 		applet.g.popMatrix();
 		oldG.setMatrix(applet.g.getMatrix());
@@ -205,9 +319,39 @@ public class GraphicBuffer implements ZoomPanListener{
 		applet.g=oldG;
 	}
 	
+	/** Sets whether to keep a copy of the buffer in the form that Java2D draws fastest
+	 * (premultiplied ARGB, compatible with the screen), and draw that straight to the sketch's
+	 * Graphics2D. This makes draw() quicker, which helps when there are many layers, but the
+	 * copy is made each time a capture is complete. Only used with the JAVA2D renderer. Default is false.
+	 * 
+	 * @param useAcceleratedImage  Whether to draw from an accelerated copy
+	 */
+	public void setUseAcceleratedImage(boolean useAcceleratedImage){
+		this.useAcceleratedImage=useAcceleratedImage;
+		updateAcceleratedImage();
+	}
+	
+	/** Gets whether a copy of the buffer is kept in the form that Java2D draws fastest
+	 * 
+	 * @return  Whether to draw from an accelerated copy
+	 */
+	public boolean isUseAcceleratedImage(){
+		return useAcceleratedImage;
+	}
+	
+	/** Copies the buffer to the accelerated image, if one is used
+	 */
+	private void updateAcceleratedImage(){
+		if (useAcceleratedImage)
+			acceleratedImage=AcceleratedImage.copy(bufferImage,acceleratedImage);
+		else
+			acceleratedImage=null;
+	}
+	
 	
 	/**Draws the buffered content
-	 * Will zoom the bitmap appropriately if the zooming/panning has changed since the last redraw
+	 * Will zoom the bitmap appropriately if the zooming/panning has changed since the last redraw.
+	 * If a time-sliced capture is in progress, the next part of it is drawn first.
 	 * 
 	 * If using ZoomPan.transform(), you must reset this before calling this method by using pushMatrix
 	 * before zoomPan.transform() and popMatrix afterwards, before calling this method
@@ -230,8 +374,27 @@ public class GraphicBuffer implements ZoomPanListener{
 	 * 
 	 */
 	public void draw(ZoomPanState zoomPanState){
-		if (boundsAtLastBuffer==null)
-			applet.image(bufferImage,screenBounds.x,screenBounds.y);
+		//do the next part of any time-sliced capture
+		if (slicedDrawUnits!=null)
+			continueSlicedCapture();
+		//use the accelerated copy if there is one (not while a time-sliced capture is drawn, as it
+		//is only updated once the capture is complete)
+		BufferedImage acceleratedImageToDraw=null;
+		if (slicedDrawUnits==null && applet.g instanceof PGraphicsJava2D && applet.g.imageMode==PConstants.CORNER)
+			acceleratedImageToDraw=acceleratedImage;
+		
+		if (boundsAtLastBuffer==null){
+			//crop content captured before the buffer was resized
+			boolean isCropped=bufferImage.width>screenBounds.width || bufferImage.height>screenBounds.height;
+			if (isCropped)
+				startClipping();
+			if (acceleratedImageToDraw!=null)
+				AcceleratedImage.draw(((PGraphicsJava2D)applet.g).g2,acceleratedImageToDraw,screenBounds.x,screenBounds.y,bufferImage.width,bufferImage.height);
+			else
+				applet.image(bufferImage,screenBounds.x,screenBounds.y);
+			if (isCropped)
+				stopClipping();
+		}
 		else{			
 
 			//clip to the bounds
@@ -244,7 +407,10 @@ public class GraphicBuffer implements ZoomPanListener{
 			float y=PApplet.map((float)boundsAtLastBuffer.getMinY(),p1.y,p2.y,(float)screenBounds.getMinY(),(float)screenBounds.getMaxY());
 			float w=PApplet.map((float)boundsAtLastBuffer.getWidth(),0,p2.x-p1.x,0,(float)screenBounds.getWidth());
 			float h=PApplet.map((float)boundsAtLastBuffer.getHeight(),0,p2.y-p1.y,0,(float)screenBounds.getHeight());
-			applet.image(bufferImage,x,y,w,h);
+			if (acceleratedImageToDraw!=null)
+				AcceleratedImage.draw(((PGraphicsJava2D)applet.g).g2,acceleratedImageToDraw,x,y,w,h);
+			else
+				applet.image(bufferImage,x,y,w,h);
 			
 			//stop clipping
 			stopClipping();
@@ -259,6 +425,43 @@ public class GraphicBuffer implements ZoomPanListener{
 		return this.screenBounds;
 	}
 	
+	/** Changes the screen bounds, e.g. when the sketch's window is resized.
+	 * 
+	 * Until the content is captured again, the existing content is drawn in the new bounds (scaled
+	 * and positioned using ZoomPan, or cropped if no ZoomPan is used). needToUpdate() only reports
+	 * true once the bounds have not changed for the resize delay (see setResizeDelay()), so resizing
+	 * a window only needs one capture at the final size. Any time-sliced capture is cancelled.
+	 * 
+	 * @param screenBounds  New screen bounds
+	 */
+	public void setScreenBounds(Rectangle screenBounds){
+		if (screenBounds.equals(lastScreenBounds))
+			return;
+		this.screenBounds=new Rectangle(screenBounds);
+		lastScreenBounds=new Rectangle(screenBounds);
+		lastResizeTime=System.currentTimeMillis();
+		cancelSlicedCapture();
+		setUpdateFlag();
+	}
+	
+	/** Sets how long the screen bounds must stay the same before needToUpdate() reports true after
+	 * resizing. Default is 200ms.
+	 * 
+	 * @param resizeDelay  Delay in milliseconds
+	 */
+	public void setResizeDelay(int resizeDelay){
+		this.resizeDelay=resizeDelay;
+	}
+	
+	/** Gets how long the screen bounds must stay the same before needToUpdate() reports true after
+	 * resizing
+	 * 
+	 * @return  Delay in milliseconds
+	 */
+	public int getResizeDelay(){
+		return resizeDelay;
+	}
+	
 	/** Set flag to update drawn content. This ONLY affects the return value of needToUpdate()
 	 * which needs to be monitored by the sketch
 	 * 
@@ -274,10 +477,70 @@ public class GraphicBuffer implements ZoomPanListener{
 	public boolean needToUpdate(){
 		if (zoomPan!=null && (zoomPan.isPanning() || zoomPan.isZooming()))
 			return false;
+		else if (System.currentTimeMillis()-lastResizeTime<resizeDelay)
+			return false;
 		else
 			return needToUpdate;
 	}
 	
+	/** Saves the buffered image to a file, so that it can be shown as soon as the sketch next
+	 * starts (see loadSnapshot()). Usually called when the sketch is closed.
+	 * 
+	 * @param file  File to save to
+	 * @param dataKey  Identifies the data that has been drawn (e.g. a hash of the data file), so
+	 *                 that the snapshot is only used when the same data is to be drawn
+	 * @throws IOException
+	 */
+	public void saveSnapshot(File file, long dataKey) throws IOException{
+		BufferSnapshot.save(file,dataKey,bufferImage,boundsAtLastBuffer,zoomPan);
+	}
+	
+	/** Loads an image saved by saveSnapshot(), if the file exists, was saved with the same data key
+	 * and is the same size as this buffer.
+	 * 
+	 * @param file  File to load from
+	 * @param dataKey  Identifies the data that is to be drawn
+	 * @return  Whether the snapshot was loaded
+	 * @throws IOException
+	 */
+	public boolean loadSnapshot(File file, long dataKey) throws IOException{
+		return loadSnapshot(file,dataKey,false);
+	}
+	
+	/** Loads an image saved by saveSnapshot(), if the file exists, was saved with the same data key
+	 * and is the same size as this buffer.
+	 * 
+	 * If the snapshot was saved at the current view (e.g. if restoreView is true), the update flag
+	 * is cleared, as there is no need to draw the same content again.
+	 * 
+	 * @param file  File to load from
+	 * @param dataKey  Identifies the data that is to be drawn
+	 * @param restoreView  Whether to set the ZoomPan to the view that was saved
+	 * @return  Whether the snapshot was loaded
+	 * @throws IOException
+	 */
+	public boolean loadSnapshot(File file, long dataKey, boolean restoreView) throws IOException{
+		//read into the buffer, or a new one if it is not the current size (so that the existing
+		//content is kept if the snapshot does not match)
+		PGraphics newBufferImage=bufferImage;
+		if (bufferImage.width!=screenBounds.width || bufferImage.height!=screenBounds.height)
+			newBufferImage=applet.createGraphics(screenBounds.width,screenBounds.height,PApplet.JAVA2D);
+		newBufferImage.loadPixels();
+		BufferSnapshot snapshot=BufferSnapshot.load(file,dataKey,screenBounds.width,screenBounds.height,newBufferImage.pixels);
+		if (snapshot==null)
+			return false;
+		bufferImage=newBufferImage;
+		bufferImage.updatePixels();
+		if (restoreView && zoomPan!=null)
+			snapshot.restoreView(zoomPan);
+		updateAcceleratedImage();
+		boundsAtLastBuffer=snapshot.bounds;
+		slicedDrawUnits=null;
+		if (zoomPan==null || (boundsAtLastBuffer!=null && boundsAtLastBuffer.equals(getViewPort())))
+			needToUpdate=false;
+		return true;
+	}
+	
 	/**Gets the buffer contents as an image
 	 * 
 	 * @return
@@ -0,0 +1,102 @@
+package org.gicentre.utils.gui;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.gicentre.utils.move.ZoomPan;
+import org.gicentre.utils.move.ZoomPanListener;
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PVector;
+
+/** Records a user's interaction with a ZoomPan-driven sketch to a trace file, so that it can be
+ * replayed exactly with InteractionReplayer (e.g. to reproduce a performance problem or as a
+ * benchmark).
+ * 
+ * Call recordFrame() at the start of each draw(), and recordUpdateFlag() wherever the sketch
+ * sets a buffer's update flag itself (e.g. when its data changes). The ends of zooms and pans
+ * are recorded automatically. Call close() when finished.
+ * 
+ * The trace is a text file with one event per line: the event type, the time in milliseconds
+ * since recording started and, for frames, the zoom scale, pan offset and whether the user was
+ * zooming or panning.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class InteractionRecorder implements ZoomPanListener{
+
+	static final String HEADER="# gicentre interaction trace 1";
+	static final String FRAME="frame";
+	static final String UPDATE="update";
+	static final String ZOOM_ENDED="zoomEnded";
+	static final String PAN_ENDED="panEnded";
+	
+	private ZoomPan zoomPan;
+	private PrintWriter out;
+	private long startTime=System.nanoTime();
+	
+	/** Starts recording
+	 * 
+	 * @param zoomPan  The sketch's ZoomPan
+	 * @param file  File to record to (replaced if it exists)
+	 * @throws IOException
+	 */
+	public InteractionRecorder(ZoomPan zoomPan, File file) throws IOException{
+		this.zoomPan=zoomPan;
+		out=new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		out.println(HEADER);
+		zoomPan.addZoomPanListener(this);
+	}
+	
+	/** Records a frame, with the current zoom/pan state. Call at the start of the sketch's draw().
+	 */
+	public void recordFrame(){
+		ZoomPanState zoomPanState=zoomPan.getZoomPanState();
+		PVector panOffset=zoomPanState.getPanOffset();
+		out.println(FRAME+" "+getTime()+" "+zoomPanState.getZoomScale()+" "+panOffset.x+" "+panOffset.y
+				+" "+(zoomPan.isZooming()?1:0)+" "+(zoomPan.isPanning()?1:0));
+	}
+	
+	/** Records that the sketch set a buffer's update flag
+	 */
+	public void recordUpdateFlag(){
+		out.println(UPDATE+" "+getTime());
+	}
+	
+	public void zoomEnded(){
+		out.println(ZOOM_ENDED+" "+getTime());
+	}
+	
+	public void panEnded(){
+		out.println(PAN_ENDED+" "+getTime());
+	}
+	
+	/** Stops recording and closes the file
+	 */
+	public void close(){
+		zoomPan.removeZoomPanListener(this);
+		out.close();
+	}
+	
+	/** Gets the time since recording started, in milliseconds
+	 */
+	private double getTime(){
+		return (System.nanoTime()-startTime)/1000000.0;
+	}
+}
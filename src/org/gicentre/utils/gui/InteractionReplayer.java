@@ -0,0 +1,382 @@
+package org.gicentre.utils.gui;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.gicentre.utils.move.ZoomPan;
+
+import processing.core.PApplet;
+
+/** Replays an interaction trace recorded with InteractionRecorder through a ThreadedGraphicBuffer
+ * or GraphicBuffer, measuring how long each frame takes and (for ThreadedGraphicBuffer) how long
+ * renders take and how many are cancelled. This turns a user's session into a repeatable
+ * benchmark.
+ * 
+ * The ZoomPan is set to the recorded state for each frame, the ends of zooms and pans and the
+ * recorded update flags are passed to the buffer, and the buffer's draw() is called. By default,
+ * frames are replayed at the times they were recorded, so that renders are cancelled as they
+ * were in the session; otherwise they are replayed as fast as possible.
+ * 
+ * The replayer does not need a window, but does need the sketch (PApplet) the buffer was created
+ * with. For the buffer to know when the user was zooming or panning (so that it draws during a
+ * replayed zoom or pan only when it would have during the session), create the buffer with a
+ * ReplayZoomPan, which reports the recorded state. With any other ZoomPan, only the zoom scale
+ * and pan offset are replayed.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class InteractionReplayer {
+
+	private List<Event> events=new ArrayList<Event>();
+	private boolean realTime=true;
+	
+	/** Loads a trace
+	 * 
+	 * @param file  The trace file
+	 * @throws IOException  If the file could not be read or is not a trace
+	 */
+	public InteractionReplayer(File file) throws IOException{
+		BufferedReader in=new BufferedReader(new FileReader(file));
+		try{
+			if (!InteractionRecorder.HEADER.equals(in.readLine()))
+				throw new IOException(file+" is not an interaction trace.");
+			String line;
+			int lineNumber=1;
+			while ((line=in.readLine())!=null){
+				lineNumber++;
+				String[] tokens=line.trim().split(" ");
+				if (tokens[0].length()==0)
+					continue;
+				try{
+					Event event=new Event();
+					event.type=tokens[0];
+					event.time=Double.parseDouble(tokens[1]);
+					if (event.type.equals(InteractionRecorder.FRAME)){
+						event.zoomScale=Double.parseDouble(tokens[2]);
+						event.panX=Float.parseFloat(tokens[3]);
+						event.panY=Float.parseFloat(tokens[4]);
+						event.zooming=Integer.parseInt(tokens[5])!=0;
+						event.panning=Integer.parseInt(tokens[6])!=0;
+					}
+					else if (!event.type.equals(InteractionRecorder.UPDATE) && !event.type.equals(InteractionRecorder.ZOOM_ENDED)
+							&& !event.type.equals(InteractionRecorder.PAN_ENDED))
+						throw new IOException("Unknown event '"+event.type+"' at line "+lineNumber+" of "+file);
+					events.add(event);
+				}
+				catch (RuntimeException e){
+					throw new IOException("Cannot read line "+lineNumber+" of "+file+": "+line);
+				}
+			}
+		}
+		finally{
+			in.close();
+		}
+	}
+	
+	/** Sets whether frames are replayed at the times they were recorded (default) or as fast as possible
+	 * 
+	 * @param realTime  Whether to replay in real time
+	 */
+	public void setRealTime(boolean realTime){
+		this.realTime=realTime;
+	}
+	
+	/** Gets whether frames are replayed at the times they were recorded
+	 * 
+	 * @return  Whether replaying in real time
+	 */
+	public boolean isRealTime(){
+		return realTime;
+	}
+	
+	/** Gets the number of frames in the trace
+	 * 
+	 * @return  Number of frames
+	 */
+	public int getNumFrames(){
+		int numFrames=0;
+		for (Event event:events)
+			if (event.type.equals(InteractionRecorder.FRAME))
+				numFrames++;
+		return numFrames;
+	}
+	
+	/** Replays the trace through a ThreadedGraphicBuffer, then waits for the last render to finish
+	 * 
+	 * @param zoomPan  The ZoomPan the buffer uses (a ReplayZoomPan, for the recorded zooming and panning to be replayed)
+	 * @param buffer  The buffer
+	 * @param drawData  drawData to pass to the buffer's draw()
+	 * @return  Frame times, render latencies and cancellations
+	 * @throws InterruptedException
+	 */
+	public Results replay(ZoomPan zoomPan, ThreadedGraphicBuffer buffer, Object drawData) throws InterruptedException{
+		final Results results=new Results();
+		RenderEventListener latencyListener=new RenderEventListener() {
+			public void renderEvent(RenderEvent event) {
+				if (event.getType()==RenderEvent.Type.COMPLETED)
+					results.addRenderLatency((event.getEventTime()-event.getRequestTime())/1000000f);
+			}
+		};
+		buffer.addRenderEventListener(latencyListener);
+		int numCompleted=buffer.getNumRendersCompleted();
+		int numCancelled=buffer.getNumRendersCancelled();
+		long startTime=System.nanoTime();
+		for (Event event:events){
+			if (event.type.equals(InteractionRecorder.FRAME)){
+				waitUntil(startTime,event.time);
+				setZoomPan(zoomPan,event);
+				long frameStart=System.nanoTime();
+				buffer.draw(zoomPan.getZoomPanState(),drawData);
+				results.addFrameTime((System.nanoTime()-frameStart)/1000000f);
+			}
+			else if (event.type.equals(InteractionRecorder.UPDATE))
+				buffer.setUpdateFlag();
+			else if (event.type.equals(InteractionRecorder.ZOOM_ENDED))
+				buffer.zoomEnded();
+			else if (event.type.equals(InteractionRecorder.PAN_ENDED))
+				buffer.panEnded();
+		}
+		setInteraction(zoomPan,false,false);
+		//keep drawing until the last render has finished
+		while (buffer.isDrawingInThread()){
+			Thread.sleep(10);
+			buffer.draw(zoomPan.getZoomPanState(),drawData);
+		}
+		buffer.removeRenderEventListener(latencyListener);
+		results.numRenders=buffer.getNumRendersCompleted()-numCompleted;
+		results.numCancelled=buffer.getNumRendersCancelled()-numCancelled;
+		results.totalMillis=(System.nanoTime()-startTime)/1000000f;
+		return results;
+	}
+	
+	/** Replays the trace through a GraphicBuffer. The buffer's content is captured by running
+	 * captureDraw between startCapture() and stopCapture() whenever the buffer needs updating.
+	 * 
+	 * @param zoomPan  The ZoomPan the buffer uses (a ReplayZoomPan, for the recorded zooming and panning to be replayed)
+	 * @param buffer  The buffer
+	 * @param captureDraw  Draws the buffer's content (as the sketch does while capturing)
+	 * @return  Frame times, and the time taken to capture each render
+	 * @throws InterruptedException
+	 */
+	public Results replay(ZoomPan zoomPan, GraphicBuffer buffer, Runnable captureDraw) throws InterruptedException{
+		Results results=new Results();
+		long startTime=System.nanoTime();
+		for (Event event:events){
+			if (event.type.equals(InteractionRecorder.FRAME)){
+				waitUntil(startTime,event.time);
+				setZoomPan(zoomPan,event);
+				long frameStart=System.nanoTime();
+				if (buffer.needToUpdate()){
+					buffer.startCapture();
+					captureDraw.run();
+					buffer.stopCapture();
+					results.numRenders++;
+					results.addRenderLatency((System.nanoTime()-frameStart)/1000000f);
+				}
+				buffer.draw(zoomPan.getZoomPanState());
+				results.addFrameTime((System.nanoTime()-frameStart)/1000000f);
+			}
+			else if (event.type.equals(InteractionRecorder.UPDATE))
+				buffer.setUpdateFlag();
+			else if (event.type.equals(InteractionRecorder.ZOOM_ENDED))
+				buffer.zoomEnded();
+			else if (event.type.equals(InteractionRecorder.PAN_ENDED))
+				buffer.panEnded();
+		}
+		setInteraction(zoomPan,false,false);
+		results.totalMillis=(System.nanoTime()-startTime)/1000000f;
+		return results;
+	}
+	
+	/** Sets the ZoomPan to the state recorded for a frame
+	 */
+	private static void setZoomPan(ZoomPan zoomPan, Event event){
+		zoomPan.setZoomScale(event.zoomScale);
+		zoomPan.setPanOffset(event.panX,event.panY);
+		setInteraction(zoomPan,event.zooming,event.panning);
+	}
+	
+	/** Sets whether the ZoomPan reports that the user is zooming or panning, if it is a ReplayZoomPan
+	 */
+	private static void setInteraction(ZoomPan zoomPan, boolean zooming, boolean panning){
+		if (zoomPan instanceof ReplayZoomPan){
+			((ReplayZoomPan)zoomPan).zooming=zooming;
+			((ReplayZoomPan)zoomPan).panning=panning;
+		}
+	}
+	
+	/** Waits until the time an event was recorded at, if replaying in real time
+	 */
+	private void waitUntil(long startTime, double eventTime) throws InterruptedException{
+		if (!realTime)
+			return;
+		long waitMillis=Math.round(eventTime-(System.nanoTime()-startTime)/1000000.0);
+		if (waitMillis>0)
+			Thread.sleep(waitMillis);
+	}
+	
+	/** One recorded event 
+	 */
+	private static class Event{
+		String type;
+		double time;          //milliseconds since recording started
+		double zoomScale;     //for frames
+		float panX,panY;      //for frames
+		boolean zooming;      //for frames, whether the user was zooming
+		boolean panning;      //for frames, whether the user was panning
+	}
+	
+	/** A ZoomPan that reports whether the user was zooming or panning as recorded in the trace
+	 * being replayed, instead of from the mouse. Create the buffer being replayed through with
+	 * one of these and pass it to replay(). Outside a replay, it reports neither.
+	 */
+	public static class ReplayZoomPan extends ZoomPan{
+		private volatile boolean zooming=false;
+		private volatile boolean panning=false;
+		
+		/** Creates a ZoomPan for replaying
+		 * 
+		 * @param applet  The sketch
+		 */
+		public ReplayZoomPan(PApplet applet){
+			super(applet);
+		}
+
+		
+		public boolean isZooming(){
+			return zooming;
+		}
+		
+		public boolean isPanning(){
+			return panning;
+		}
+	}
+	
+	/** Measurements from replaying a trace 
+	 */
+	public static class Results{
+		private float[] frameTimes=new float[256];
+		private int numFrames=0;
+		private List<Float> renderLatencies=Collections.synchronizedList(new ArrayList<Float>());
+		int numRenders=0;
+		int numCancelled=0;
+		float totalMillis=0;
+		
+		void addFrameTime(float millis){
+			if (numFrames==frameTimes.length)
+				frameTimes=Arrays.copyOf(frameTimes,numFrames*2);
+			frameTimes[numFrames++]=millis;
+		}
+		
+		void addRenderLatency(float millis){
+			renderLatencies.add(millis);
+		}
+		
+		/** Gets the number of frames drawn
+		 * 
+		 * @return  Number of frames
+		 */
+		public int getNumFrames(){
+			return numFrames;
+		}
+		
+		/** Gets the time each frame's draw() took
+		 * 
+		 * @return  Frame times in milliseconds, in order
+		 */
+		public float[] getFrameTimes(){
+			return Arrays.copyOf(frameTimes,numFrames);
+		}
+		
+		/** Gets a percentile of the frame times
+		 * 
+		 * @param percentile  The percentile (0-100, e.g. 50 for the median)
+		 * @return  The frame time in milliseconds (0 if no frames were drawn)
+		 */
+		public float getFrameTimePercentile(float percentile){
+			return getPercentile(getFrameTimes(),percentile);
+		}
+		
+		/** Gets the time from requesting each completed render to it finishing. For a
+		 * ThreadedGraphicBuffer, these are sampled from render events, so some may be missed
+		 * if renders finish very close together.
+		 * 
+		 * @return  Render latencies in milliseconds, in order
+		 */
+		public float[] getRenderLatencies(){
+			synchronized (renderLatencies) {
+				float[] latencies=new float[renderLatencies.size()];
+				for (int i=0;i<latencies.length;i++)
+					latencies[i]=renderLatencies.get(i);
+				return latencies;
+			}
+		}
+		
+		/** Gets a percentile of the render latencies
+		 * 
+		 * @param percentile  The percentile (0-100, e.g. 50 for the median)
+		 * @return  The latency in milliseconds (0 if there were no renders)
+		 */
+		public float getRenderLatencyPercentile(float percentile){
+			return getPercentile(getRenderLatencies(),percentile);
+		}
+		
+		/** Gets the number of renders that finished
+		 * 
+		 * @return  Number of renders
+		 */
+		public int getNumRenders(){
+			return numRenders;
+		}
+		
+		/** Gets the number of renders that were cancelled (always 0 for GraphicBuffer)
+		 * 
+		 * @return  Number of renders cancelled
+		 */
+		public int getNumCancelled(){
+			return numCancelled;
+		}
+		
+		/** Gets the time the whole replay took
+		 * 
+		 * @return  Time in milliseconds
+		 */
+		public float getTotalMillis(){
+			return totalMillis;
+		}
+		
+		private static float getPercentile(float[] values, float percentile){
+			if (values.length==0)
+				return 0;
+			Arrays.sort(values);
+			int index=Math.round(percentile/100*(values.length-1));
+			return values[Math.max(0,Math.min(values.length-1,index))];
+		}
+		
+		public String toString(){
+			return numFrames+" frames in "+totalMillis+"ms: frame time median "+getFrameTimePercentile(50)
+					+"ms, 95th percentile "+getFrameTimePercentile(95)+"ms, max "+getFrameTimePercentile(100)
+					+"ms; "+numRenders+" renders (median latency "+getRenderLatencyPercentile(50)+"ms), "
+					+numCancelled+" cancelled";
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package org.gicentre.utils.gui;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.util.BitSet;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+import processing.core.PImage;
+
+/** Draws many labels in a threadedDraw() (or while capturing a GraphicBuffer) much faster than
+ * canvas.text(), by copying glyphs from a GlyphAtlas instead of using Java2D's text path.
+ *
+ * Labels that would overlap one already placed are dropped before anything is drawn, using a
+ * coarse grid over the canvas, so pass the most important labels first. Labels keep the same
+ * size in pixels whatever the zoom scale.
+ *
+ * Like LevelOfDetail, the labels are collected in a separate image that is drawn onto the canvas
+ * by flush(), so call flush() after the last label. Create a LabelRenderer at the start of the
+ * threadedDraw(), BEFORE applying the zoom/pan transformation to the canvas, and create a new
+ * one for each render. A LabelRenderer should only be used by the thread that created it (the
+ * GlyphAtlas can be shared).
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class LabelRenderer {
+
+	private static final int CELL_SIZE=4;       //size of the collision grid cells in pixels
+
+	private PGraphics canvas;
+	private GlyphAtlas atlas;
+	private double scaleX, scaleY;              //canvas pixels per original unit
+	private double offsetX, offsetY;            //canvas pixel position of the original origin
+	private int width, height;                  //size of the canvas in pixels
+	private int alignX=PConstants.LEFT;
+	private int alignY=PConstants.BASELINE;
+	private int padding=2;                      //space in pixels kept clear around each label
+	private int numCols, numRows;               //size of the collision grid
+	private BitSet occupied;                    //cells of the collision grid covered by labels
+	private int[] pixels=null;                  //drawn labels (created when first needed)
+	private int numDrawn=0, numDropped=0;
+
+	/** Creates a label renderer for the canvas. The canvas should not yet have been transformed
+	 * by the zoom/pan state.
+	 *
+	 * @param canvas  The canvas being drawn to in threadedDraw()
+	 * @param zoomPanState  The zoom/pan state being drawn with (null if no ZoomPan is used)
+	 * @param atlas  Glyphs of the font and size to draw with
+	 */
+	public LabelRenderer(PGraphics canvas, ZoomPanState zoomPanState, GlyphAtlas atlas){
+		this.canvas=canvas;
+		this.atlas=atlas;
+		this.width=canvas.width;
+		this.height=canvas.height;
+
+		//original coordinates to screen coordinates, then to canvas pixels (as LevelOfDetail)
+		ScreenMapping mapping=new ScreenMapping(zoomPanState, new Rectangle(0,0,width,height));
+		AffineTransform transform=new AffineTransform();
+		if (canvas instanceof PGraphicsJava2D && ((PGraphicsJava2D)canvas).g2!=null)
+			transform=((PGraphicsJava2D)canvas).g2.getTransform();
+		scaleX=mapping.scaleX*transform.getScaleX();
+		scaleY=mapping.scaleY*transform.getScaleY();
+		offsetX=mapping.offsetX*transform.getScaleX()+transform.getTranslateX();
+		offsetY=mapping.offsetY*transform.getScaleY()+transform.getTranslateY();
+
+		numCols=(width+CELL_SIZE-1)/CELL_SIZE;
+		numRows=(height+CELL_SIZE-1)/CELL_SIZE;
+		occupied=new BitSet(numCols*numRows);
+	}
+
+	/** Sets how labels are aligned to their positions, as textAlign(). Default is LEFT, BASELINE.
+	 *
+	 * @param alignX  LEFT, CENTER or RIGHT
+	 * @param alignY  BASELINE, TOP, CENTER or BOTTOM
+	 */
+	public void setAlign(int alignX, int alignY){
+		this.alignX=alignX;
+		this.alignY=alignY;
+	}
+
+	/** Sets the space kept clear around each label, so labels are not drawn too close together.
+	 * Default is 2.
+	 *
+	 * @param padding  Space in pixels
+	 */
+	public void setPadding(int padding){
+		this.padding=padding;
+	}
+
+	/** Gets the space kept clear around each label
+	 *
+	 * @return  Space in pixels
+	 */
+	public int getPadding(){
+		return padding;
+	}
+
+	/** Draws a label, unless it would overlap one already drawn or is completely off the canvas
+	 *
+	 * @param text  The label
+	 * @param x  Position in original coordinates
+	 * @param y  Position in original coordinates
+	 * @param colour  Colour of the text (including its opacity)
+	 * @return  True if the label was drawn, false if it was dropped
+	 */
+	public boolean draw(String text, float x, float y, int colour){
+		//find the label's box in canvas pixels
+		float textWidth=atlas.getWidth(text);
+		double left=x*scaleX+offsetX;
+		double baseline=y*scaleY+offsetY;
+		if (alignX==PConstants.CENTER)
+			left-=textWidth/2;
+		else if (alignX==PConstants.RIGHT)
+			left-=textWidth;
+		if (alignY==PConstants.TOP)
+			baseline+=atlas.getAscent();
+		else if (alignY==PConstants.CENTER)
+			baseline+=(atlas.getAscent()-atlas.getDescent())/2f;
+		else if (alignY==PConstants.BOTTOM)
+			baseline-=atlas.getDescent();
+		int x1=(int)Math.floor(left)-padding;
+		int y1=(int)Math.floor(baseline)-atlas.getAscent()-padding;
+		int x2=(int)Math.ceil(left+textWidth)+padding;
+		int y2=(int)Math.ceil(baseline)+atlas.getDescent()+padding;
+		if (x2<=0 || y2<=0 || x1>=width || y1>=height){
+			numDropped++;
+			return false;
+		}
+
+		//drop the label if any of its cells are already covered
+		int col1=Math.max(0,x1/CELL_SIZE);
+		int row1=Math.max(0,y1/CELL_SIZE);
+		int col2=Math.min(numCols-1,(x2-1)/CELL_SIZE);
+		int row2=Math.min(numRows-1,(y2-1)/CELL_SIZE);
+		for (int row=row1;row<=row2;row++){
+			int next=occupied.nextSetBit(row*numCols+col1);
+			if (next>=0 && next<=row*numCols+col2){
+				numDropped++;
+				return false;
+			}
+		}
+		for (int row=row1;row<=row2;row++)
+			occupied.set(row*numCols+col1,row*numCols+col2+1);
+
+		//copy the glyphs
+		if (pixels==null)
+			pixels=new int[width*height];
+		double penX=left;
+		int penY=(int)Math.round(baseline);
+		for (int i=0;i<text.length();i++){
+			GlyphAtlas.Glyph glyph=atlas.getGlyph(text.charAt(i));
+			if (glyph.alpha!=null)
+				drawGlyph(glyph,(int)Math.round(penX)+glyph.left,penY+glyph.top,colour);
+			penX+=glyph.advance;
+		}
+		numDrawn++;
+		return true;
+	}
+
+	/** Copies a glyph's mask in a colour, clipped to the canvas
+	 */
+	private void drawGlyph(GlyphAtlas.Glyph glyph, int glyphX, int glyphY, int colour){
+		int colourAlpha=colour>>>24;
+		int startX=Math.max(0,-glyphX);
+		int startY=Math.max(0,-glyphY);
+		int endX=Math.min(glyph.width,width-glyphX);
+		int endY=Math.min(glyph.height,height-glyphY);
+		for (int gy=startY;gy<endY;gy++){
+			int index=(glyphY+gy)*width+glyphX+startX;
+			int maskIndex=gy*glyph.width+startX;
+			for (int gx=startX;gx<endX;gx++,index++,maskIndex++){
+				int srcAlpha=(glyph.alpha[maskIndex]&0xff)*colourAlpha/255;
+				if (srcAlpha==0)
+					continue;
+				//draw over what is already there (neighbouring glyphs can overlap)
+				int dest=pixels[index];
+				int destAlpha=dest>>>24;
+				if (destAlpha==0){
+					pixels[index]=srcAlpha<<24 | (colour&0xffffff);
+					continue;
+				}
+				int outAlpha=srcAlpha+destAlpha*(255-srcAlpha)/255;
+				int destWeight=destAlpha*(255-srcAlpha)/255;
+				int r=((colour>>16&0xff)*srcAlpha+(dest>>16&0xff)*destWeight)/outAlpha;
+				int g=((colour>>8&0xff)*srcAlpha+(dest>>8&0xff)*destWeight)/outAlpha;
+				int b=((colour&0xff)*srcAlpha+(dest&0xff)*destWeight)/outAlpha;
+				pixels[index]=outAlpha<<24 | r<<16 | g<<8 | b;
+			}
+		}
+	}
+
+	/** Draws the labels onto the canvas. Call at the end of threadedDraw().
+	 *
+	 */
+	public void flush(){
+		if (pixels==null)
+			return;
+		PImage labelImage=new PImage(width,height,PConstants.ARGB);
+		labelImage.pixels=pixels;
+		labelImage.updatePixels();
+		//draw in canvas pixels, whatever transformation, image mode and tint have been set
+		canvas.pushMatrix();
+		canvas.pushStyle();
+		canvas.resetMatrix();
+		canvas.imageMode(PConstants.CORNER);
+		canvas.noTint();
+		canvas.image(labelImage,0,0);
+		canvas.popStyle();
+		canvas.popMatrix();
+		pixels=null;
+	}
+
+	/** Gets the number of labels drawn so far
+	 *
+	 * @return  Number of labels
+	 */
+	public int getNumDrawn(){
+		return numDrawn;
+	}
+
+	/** Gets the number of labels dropped so far, because they overlapped others or were off the
+	 * canvas
+	 *
+	 * @return  Number of labels
+	 */
+	public int getNumDropped(){
+		return numDropped;
+	}
+}
@@ -0,0 +1,292 @@
+package org.gicentre.utils.gui;
+
+import java.util.Arrays;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/** Level-of-detail filter for drawing many small shapes in a threadedDraw().
+ *
+ * When zoomed out, many shapes are smaller than a pixel on the canvas and many of them land on
+ * the same pixel, but each still costs a full call to canvas.ellipse() (or similar). Pass each
+ * shape's bounds to draw() first. Shapes that are smaller than the pixel threshold on the canvas
+ * are written as a single pixel (with their opacity reduced by the fraction of the pixel they
+ * cover), or skipped altogether if that pixel is already saturated. draw() returns false for
+ * larger shapes, which should then be drawn as normal.
+ *
+ * The pixels are collected in a separate image that is drawn onto the canvas by flush(), in tiles
+ * so that only the parts written to are drawn. So that shapes are painted in the order they were
+ * given, whatever their size, draw() flushes the tiles under a larger shape's bounds before
+ * returning false for it (so the bounds given should include any stroke). Call flush() at the end
+ * of the threadedDraw(), and before drawing anything that is not passed to draw() first.
+ *
+ * How opaque each pixel has been made by sub-pixel shapes is kept for the whole render, including
+ * after flushing, so a pixel that has been saturated is skipped from then on.
+ *
+ * Create a LevelOfDetail at the start of the threadedDraw(), BEFORE applying the zoom/pan
+ * transformation to the canvas, and create a new one for each render. A LevelOfDetail should
+ * only be used by the thread that created it.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class LevelOfDetail {
+
+	private static final int TILE_SIZE=32;      //size in pixels of the tiles that are flushed separately
+	
+	private PGraphics canvas;
+	private double scaleX, scaleY;              //canvas pixels per original unit
+	private double offsetX, offsetY;            //canvas pixel position of the original origin
+	private int width, height;                  //size of the canvas in pixels
+	private int numTilesX, numTilesY;           //number of tiles across and down the canvas
+	private float pixelThreshold=1;             //shapes smaller than this (in pixels) are written as pixels
+	private int saturationAlpha=250;            //pixels at least this opaque are not written to again
+	private int[] pixels=null;                  //sub-pixel shapes not yet flushed (created when first needed)
+	private byte[] occupancy=null;              //opacity given to each pixel by all the sub-pixel shapes so far
+	private boolean[] dirtyTiles=null;          //tiles with pixels not yet flushed
+	private int numDirtyTiles=0;
+	private PImage tileImage=null;              //reused to draw each tile that is flushed
+	private int numWritten=0, numSkipped=0;
+
+	/** Creates a level of detail filter for the canvas. The canvas should not yet have been
+	 * transformed by the zoom/pan state.
+	 *
+	 * @param canvas  The canvas being drawn to in threadedDraw()
+	 * @param zoomPanState  The zoom/pan state being drawn with (null if no ZoomPan is used)
+	 */
+	public LevelOfDetail(PGraphics canvas, ZoomPanState zoomPanState){
+		this.canvas=canvas;
+		ScreenMapping mapping=ScreenMapping.forCanvas(zoomPanState,canvas);
+		scaleX=mapping.scaleX;
+		scaleY=mapping.scaleY;
+		offsetX=mapping.offsetX;
+		offsetY=mapping.offsetY;
+		width=mapping.width;
+		height=mapping.height;
+		numTilesX=(width+TILE_SIZE-1)/TILE_SIZE;
+		numTilesY=(height+TILE_SIZE-1)/TILE_SIZE;
+	}
+
+	/** Sets the size (in pixels on the canvas) below which shapes are written as pixels. Default is 1.
+	 *
+	 * @param pixelThreshold  Size in pixels
+	 */
+	public void setPixelThreshold(float pixelThreshold){
+		this.pixelThreshold=pixelThreshold;
+	}
+
+	/** Gets the size (in pixels on the canvas) below which shapes are written as pixels
+	 *
+	 * @return  Size in pixels
+	 */
+	public float getPixelThreshold(){
+		return pixelThreshold;
+	}
+
+	/** Sets how opaque (0-255) a pixel has to be before later sub-pixel shapes on it are skipped.
+	 * Default is 250.
+	 *
+	 * @param saturationAlpha  Opacity from 0-255
+	 */
+	public void setSaturationAlpha(int saturationAlpha){
+		this.saturationAlpha=saturationAlpha;
+	}
+
+	/** Gets how opaque (0-255) a pixel has to be before later sub-pixel shapes on it are skipped
+	 *
+	 * @return  Opacity from 0-255
+	 */
+	public int getSaturationAlpha(){
+		return saturationAlpha;
+	}
+
+	/** Finds whether a shape is smaller than the pixel threshold on the canvas
+	 *
+	 * @param w  Width of the shape in original coordinates
+	 * @param h  Height of the shape in original coordinates
+	 * @return  True if the shape would be written as a pixel by draw()
+	 */
+	public boolean isSubPixel(float w, float h){
+		return Math.abs(w*scaleX)<pixelThreshold && Math.abs(h*scaleY)<pixelThreshold;
+	}
+
+	/** Writes a shape as a pixel if it is smaller than the pixel threshold on the canvas.
+	 *
+	 * @param x  Left of the shape's bounds in original coordinates
+	 * @param y  Top of the shape's bounds in original coordinates
+	 * @param w  Width of the shape in original coordinates
+	 * @param h  Height of the shape in original coordinates
+	 * @param colour  Colour of the shape (including its opacity)
+	 * @return  True if the shape has been dealt with (written or skipped), false if it is too
+	 *          large and should be drawn as normal (the sub-pixel shapes before it under its
+	 *          bounds have then been flushed, so it is drawn over them)
+	 */
+	public boolean draw(float x, float y, float w, float h, int colour){
+		double pixelW=Math.abs(w*scaleX);
+		double pixelH=Math.abs(h*scaleY);
+		if (pixelW>=pixelThreshold || pixelH>=pixelThreshold){
+			if (numDirtyTiles>0){
+				//only the tiles under the shape (allowing for antialiasing) need drawing first
+				double x1=x*scaleX+offsetX;
+				double x2=(x+w)*scaleX+offsetX;
+				double y1=y*scaleY+offsetY;
+				double y2=(y+h)*scaleY+offsetY;
+				flush((int)Math.floor(Math.min(x1,x2)-1)/TILE_SIZE,(int)Math.floor(Math.min(y1,y2)-1)/TILE_SIZE,
+						(int)Math.floor(Math.max(x1,x2)+1)/TILE_SIZE,(int)Math.floor(Math.max(y1,y2)+1)/TILE_SIZE);
+			}
+			return false;
+		}
+
+		//find the pixel the centre of the shape is in
+		int px=(int)Math.floor((x+w/2)*scaleX+offsetX);
+		int py=(int)Math.floor((y+h/2)*scaleY+offsetY);
+		if (px<0 || py<0 || px>=width || py>=height){
+			numSkipped++;
+			return true;
+		}
+		if (pixels==null){
+			pixels=new int[width*height];
+			occupancy=new byte[width*height];
+			dirtyTiles=new boolean[numTilesX*numTilesY];
+		}
+		int index=py*width+px;
+		int occupied=occupancy[index]&0xff;
+		if (occupied>=saturationAlpha){
+			numSkipped++;
+			return true;
+		}
+
+		//reduce the opacity by the fraction of the pixel covered
+		double coverage=Math.min(1,Math.max(pixelW,1/16.0)*Math.max(pixelH,1/16.0));
+		int srcAlpha=(int)((colour>>>24)*coverage);
+		if (srcAlpha==0){
+			numSkipped++;
+			return true;
+		}
+
+		occupancy[index]=(byte)(srcAlpha+occupied*(255-srcAlpha)/255);
+
+		//draw over what is waiting to be flushed
+		int dest=pixels[index];
+		int destAlpha=dest>>>24;
+		int outAlpha=srcAlpha+destAlpha*(255-srcAlpha)/255;
+		int destWeight=destAlpha*(255-srcAlpha)/255;
+		int r=((colour>>16&0xff)*srcAlpha+(dest>>16&0xff)*destWeight)/outAlpha;
+		int g=((colour>>8&0xff)*srcAlpha+(dest>>8&0xff)*destWeight)/outAlpha;
+		int b=((colour&0xff)*srcAlpha+(dest&0xff)*destWeight)/outAlpha;
+		pixels[index]=outAlpha<<24 | r<<16 | g<<8 | b;
+		int tile=(py/TILE_SIZE)*numTilesX+px/TILE_SIZE;
+		if (!dirtyTiles[tile]){
+			dirtyTiles[tile]=true;
+			numDirtyTiles++;
+		}
+		numWritten++;
+		return true;
+	}
+
+	/** Draws the sub-pixel shapes collected so far onto the canvas. Call at the end of
+	 * threadedDraw(), and before drawing anything that is not passed to draw() first.
+	 *
+	 */
+	public void flush(){
+		flush(0,0,numTilesX-1,numTilesY-1);
+	}
+	
+	/** Draws the sub-pixel shapes collected so far in a range of tiles onto the canvas
+	 * 
+	 * @param minTileX  Left-most tile column (may be outside the canvas)
+	 * @param minTileY  Top-most tile row (may be outside the canvas)
+	 * @param maxTileX  Right-most tile column (may be outside the canvas)
+	 * @param maxTileY  Bottom-most tile row (may be outside the canvas)
+	 */
+	private void flush(int minTileX, int minTileY, int maxTileX, int maxTileY){
+		if (numDirtyTiles==0)
+			return;
+		minTileX=Math.max(0,minTileX);
+		minTileY=Math.max(0,minTileY);
+		maxTileX=Math.min(numTilesX-1,maxTileX);
+		maxTileY=Math.min(numTilesY-1,maxTileY);
+		boolean isStarted=false;
+		for (int tileY=minTileY;tileY<=maxTileY;tileY++){
+			for (int tileX=minTileX;tileX<=maxTileX;tileX++){
+				int tile=tileY*numTilesX+tileX;
+				if (!dirtyTiles[tile])
+					continue;
+				if (!isStarted){
+					//draw in canvas pixels, whatever transformation and style the caller is drawing with
+					canvas.pushMatrix();
+					canvas.pushStyle();
+					canvas.resetMatrix();
+					canvas.imageMode(PConstants.CORNER);
+					canvas.noTint();
+					if (tileImage==null)
+						tileImage=new PImage(TILE_SIZE,TILE_SIZE,PConstants.ARGB);
+					isStarted=true;
+				}
+				flushTile(tileX,tileY);
+				dirtyTiles[tile]=false;
+				numDirtyTiles--;
+			}
+		}
+		if (isStarted){
+			canvas.popStyle();
+			canvas.popMatrix();
+		}
+	}
+	
+	/** Draws one tile's sub-pixel shapes onto the canvas and clears them. Tiles at the right and
+	 * bottom edges are drawn full size, with the part beyond the canvas transparent.
+	 */
+	private void flushTile(int tileX, int tileY){
+		int x=tileX*TILE_SIZE;
+		int y=tileY*TILE_SIZE;
+		int w=Math.min(TILE_SIZE,width-x);
+		int h=Math.min(TILE_SIZE,height-y);
+		for (int row=0;row<TILE_SIZE;row++){
+			int tileIndex=row*TILE_SIZE;
+			if (row<h){
+				int index=(y+row)*width+x;
+				System.arraycopy(pixels,index,tileImage.pixels,tileIndex,w);
+				Arrays.fill(pixels,index,index+w,0);
+				if (w<TILE_SIZE)
+					Arrays.fill(tileImage.pixels,tileIndex+w,tileIndex+TILE_SIZE,0);
+			}
+			else
+				Arrays.fill(tileImage.pixels,tileIndex,tileIndex+TILE_SIZE,0);
+		}
+		tileImage.updatePixels();
+		canvas.image(tileImage,x,y);
+	}
+
+	/** Gets the number of shapes written as pixels so far
+	 *
+	 * @return  Number of shapes
+	 */
+	public int getNumWritten(){
+		return numWritten;
+	}
+
+	/** Gets the number of sub-pixel shapes that were skipped so far, because their pixel
+	 * was saturated, they were too faint or they were off the canvas
+	 *
+	 * @return  Number of shapes
+	 */
+	public int getNumSkipped(){
+		return numSkipped;
+	}
+}
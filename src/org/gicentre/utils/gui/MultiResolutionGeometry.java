@@ -0,0 +1,419 @@
+package org.gicentre.utils.gui;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+
+/** Polylines or polygons simplified at several levels of detail, for drawing detailed geometry
+ * (e.g. coastlines and boundaries) in a threadedDraw().
+ *
+ * Each shape is simplified with the Douglas-Peucker algorithm at a number of tolerances when the
+ * MultiResolutionGeometry is created, using all processors. When drawing, the most simplified
+ * version whose tolerance is less than the pixel tolerance (half a pixel by default) at the size the
+ * shapes are drawn on the canvas (the zoom scale, and any other scaling of the canvas) is used, so
+ * far fewer vertices are drawn when zoomed out with no visible difference.
+ *
+ * Coordinates and tolerances are in original coordinates (those that ZoomPan transforms, where one
+ * unit is one pixel at a zoom scale of 1). Shapes are given as arrays of interleaved coordinates
+ * (x0,y0,x1,y1,...). The arrays should not be changed once given. Once created, a
+ * MultiResolutionGeometry does not change, so it can be drawn from any number of threads.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class MultiResolutionGeometry {
+
+	private static final float[] DEFAULT_TOLERANCES={0.5f,2,8,32,128,512};
+
+	private boolean isClosed;                   //whether shapes are polygons (or polylines)
+	private float[] tolerances;                 //tolerance of each level (level 0 is not simplified)
+	private float[][][] levels;                 //coordinates of each shape at each level, [level][shape]
+	private Rectangle2D[] shapeBounds;          //bounds of each shape
+	private float pixelTolerance=0.5f;          //largest simplification error allowed on screen, in pixels
+
+	/** Creates simplified versions of the shapes at the default tolerances (0.5, 2, 8, 32, 128 and 512).
+	 *
+	 * @param shapes  Coordinates of each shape, interleaved (x0,y0,x1,y1,...)
+	 * @param isClosed  Whether the shapes are polygons (true) or polylines (false)
+	 */
+	public MultiResolutionGeometry(List<float[]> shapes, boolean isClosed){
+		this(shapes, isClosed, DEFAULT_TOLERANCES);
+	}
+
+	/** Creates simplified versions of the shapes at given tolerances.
+	 *
+	 * @param shapes  Coordinates of each shape, interleaved (x0,y0,x1,y1,...)
+	 * @param isClosed  Whether the shapes are polygons (true) or polylines (false)
+	 * @param tolerances  Tolerances to simplify at, in original coordinates, in increasing order
+	 */
+	public MultiResolutionGeometry(List<float[]> shapes, boolean isClosed, float[] tolerances){
+		for (int i=1;i<tolerances.length;i++)
+			if (tolerances[i]<=tolerances[i-1])
+				throw new IllegalArgumentException("Tolerances must be in increasing order.");
+		this.isClosed=isClosed;
+		this.tolerances=new float[tolerances.length+1];
+		System.arraycopy(tolerances, 0, this.tolerances, 1, tolerances.length);
+
+		int numShapes=shapes.size();
+		levels=new float[this.tolerances.length][numShapes][];
+		shapeBounds=new Rectangle2D[numShapes];
+		for (int i=0;i<numShapes;i++){
+			float[] coords=shapes.get(i);
+			if (coords.length%2!=0)
+				throw new IllegalArgumentException("Shape "+i+" has an odd number of coordinates.");
+			levels[0][i]=coords;
+			shapeBounds[i]=findBounds(coords);
+		}
+		simplifyAll();
+	}
+
+	/** Simplifies all the shapes at all levels, in parallel
+	 */
+	private void simplifyAll(){
+		int numShapes=shapeBounds.length;
+		int numThreads=Math.max(1,Math.min(Runtime.getRuntime().availableProcessors(),numShapes));
+		List<Callable<Object>> tasks=new ArrayList<Callable<Object>>();
+		for (int i=0;i<numThreads;i++)
+			tasks.add(new SimplifyTask(numShapes*i/numThreads,numShapes*(i+1)/numThreads));
+		ExecutorService executor=Executors.newFixedThreadPool(numThreads,new DaemonThreadFactory());
+		try{
+			executor.invokeAll(tasks);
+		}
+		catch (InterruptedException e){
+			//shapes that were not simplified are drawn at full detail
+			Thread.currentThread().interrupt();
+		}
+		finally{
+			executor.shutdownNow();
+		}
+	}
+
+	/** Sets the largest simplification error allowed on screen. Default is half a pixel.
+	 *
+	 * @param pixelTolerance  Error in pixels
+	 */
+	public void setPixelTolerance(float pixelTolerance){
+		this.pixelTolerance=pixelTolerance;
+	}
+
+	/** Gets the largest simplification error allowed on screen
+	 *
+	 * @return  Error in pixels
+	 */
+	public float getPixelTolerance(){
+		return pixelTolerance;
+	}
+
+	/** Gets the number of shapes
+	 *
+	 * @return  Number of shapes
+	 */
+	public int getNumShapes(){
+		return shapeBounds.length;
+	}
+
+	/** Gets the number of levels of detail, including the original shapes (level 0)
+	 *
+	 * @return  Number of levels
+	 */
+	public int getNumLevels(){
+		return levels.length;
+	}
+
+	/** Gets the tolerance a level was simplified at
+	 *
+	 * @param level  Level of detail (0 is not simplified)
+	 * @return  Tolerance in original coordinates
+	 */
+	public float getTolerance(int level){
+		return tolerances[level];
+	}
+
+	/** Finds the most simplified level that can be drawn at a zoom scale without the
+	 * simplification being visible
+	 *
+	 * @param zoomScale  Zoom scale (see ZoomPanState.getZoomScale()), or more generally the number
+	 *                   of canvas pixels per unit of the original coordinates
+	 * @return  Level of detail
+	 */
+	public int getLevel(double zoomScale){
+		double allowedTolerance=pixelTolerance/zoomScale;
+		int level=0;
+		while (level+1<tolerances.length && tolerances[level+1]<=allowedTolerance)
+			level++;
+		return level;
+	}
+
+	/** Finds the most simplified level that can be drawn on a canvas without the simplification
+	 * being visible. The canvas's transformation, which should already include the zoom/pan
+	 * transformation, gives the size of the original coordinates in pixels, so any other scaling
+	 * (e.g. when exporting a poster at a higher resolution) is allowed for. Only the zoom scale
+	 * is used for renderers other than JAVA2D.
+	 *
+	 * @param canvas  Canvas being drawn to
+	 * @param zoomPanState  Zoom/pan state being drawn with (null if no ZoomPan is used)
+	 * @return  Level of detail
+	 */
+	public int getLevel(PGraphics canvas, ZoomPanState zoomPanState){
+		double pixelsPerUnit=zoomPanState==null?1:zoomPanState.getZoomScale();
+		if (canvas instanceof PGraphicsJava2D && ((PGraphicsJava2D)canvas).g2!=null){
+			AffineTransform transform=((PGraphicsJava2D)canvas).g2.getTransform();
+			//the longest a unit can be on the canvas, allowing for rotation
+			pixelsPerUnit=Math.max(Math.hypot(transform.getScaleX(),transform.getShearY()),
+					Math.hypot(transform.getShearX(),transform.getScaleY()));
+		}
+		return getLevel(pixelsPerUnit);
+	}
+
+	/** Gets the coordinates of a shape at a level of detail
+	 *
+	 * @param shape  Index of the shape
+	 * @param level  Level of detail (0 is not simplified)
+	 * @return  Interleaved coordinates (x0,y0,x1,y1,...), which should not be changed
+	 */
+	public float[] getCoordinates(int shape, int level){
+		//levels that were not built (because building was interrupted) use the next most detailed
+		while (levels[level][shape]==null)
+			level--;
+		return levels[level][shape];
+	}
+
+	/** Gets the bounds of a shape
+	 *
+	 * @param shape  Index of the shape
+	 * @return  Bounds in original coordinates
+	 */
+	public Rectangle2D getBounds(int shape){
+		return (Rectangle2D)shapeBounds[shape].clone();
+	}
+
+	/** Gets the total number of vertices in all the shapes at a level of detail
+	 *
+	 * @param level  Level of detail (0 is not simplified)
+	 * @return  Number of vertices
+	 */
+	public long getNumVertices(int level){
+		long numVertices=0;
+		for (int i=0;i<shapeBounds.length;i++)
+			numVertices+=getCoordinates(i, level).length/2;
+		return numVertices;
+	}
+
+	/** Draws a shape at the level of detail suited to its size on the canvas (see
+	 * getLevel(PGraphics,ZoomPanState)), using the canvas's current style. The zoom/pan
+	 * transformation should already have been applied to the canvas.
+	 *
+	 * @param canvas  Canvas to draw to
+	 * @param zoomPanState  Zoom/pan state being drawn with (null if no ZoomPan is used)
+	 * @param shape  Index of the shape
+	 */
+	public void draw(PGraphics canvas, ZoomPanState zoomPanState, int shape){
+		drawShape(canvas, shape, getLevel(canvas, zoomPanState));
+	}
+
+	/** Draws all the shapes in the viewport at the level of detail suited to their size on the
+	 * canvas (see getLevel(PGraphics,ZoomPanState)), using the canvas's current style. The zoom/pan transformation should already have been applied to
+	 * the canvas. Stops early if the thread is interrupted (i.e. drawing has been cancelled).
+	 *
+	 * @param canvas  Canvas to draw to
+	 * @param zoomPanState  Zoom/pan state being drawn with (null if no ZoomPan is used)
+	 * @param viewPort  Area to draw in original coordinates (e.g. ThreadedGraphicBuffer.getViewPort()),
+	 *                  or null to draw all shapes
+	 */
+	public void draw(PGraphics canvas, ZoomPanState zoomPanState, Rectangle2D viewPort){
+		int level=getLevel(canvas, zoomPanState);
+		for (int i=0;i<shapeBounds.length;i++){
+			if (viewPort==null || viewPort.intersects(shapeBounds[i]))
+				drawShape(canvas, i, level);
+			if (Thread.currentThread().isInterrupted())
+				return;
+		}
+	}
+
+	/** Draws one shape at one level of detail
+	 */
+	private void drawShape(PGraphics canvas, int shape, int level){
+		float[] coords=getCoordinates(shape, level);
+		canvas.beginShape();
+		for (int i=0;i<coords.length;i+=2)
+			canvas.vertex(coords[i],coords[i+1]);
+		if (isClosed)
+			canvas.endShape(PConstants.CLOSE);
+		else
+			canvas.endShape();
+	}
+
+	/** Finds the bounds of a shape's coordinates
+	 */
+	private static Rectangle2D findBounds(float[] coords){
+		if (coords.length==0)
+			return new Rectangle2D.Float();
+		float minX=coords[0],minY=coords[1],maxX=coords[0],maxY=coords[1];
+		for (int i=2;i<coords.length;i+=2){
+			minX=Math.min(minX,coords[i]);
+			maxX=Math.max(maxX,coords[i]);
+			minY=Math.min(minY,coords[i+1]);
+			maxY=Math.max(maxY,coords[i+1]);
+		}
+		return new Rectangle2D.Float(minX,minY,maxX-minX,maxY-minY);
+	}
+
+	/** Simplifies a shape using the Douglas-Peucker algorithm. Polygons are split at the vertex
+	 * furthest from the first one, so that they are never simplified to fewer than three vertices.
+	 *
+	 * @param coords  Interleaved coordinates
+	 * @param tolerance  Largest distance a removed vertex can be from the simplified shape
+	 * @param isClosed  Whether the shape is a polygon
+	 * @return  Simplified coordinates (the same array if no vertices were removed)
+	 */
+	static float[] simplify(float[] coords, float tolerance, boolean isClosed){
+		int numPoints=coords.length/2;
+		if (numPoints<3)
+			return coords;
+		boolean[] keep=new boolean[numPoints];
+		keep[0]=true;
+		keep[numPoints-1]=true;
+		double toleranceSq=(double)tolerance*tolerance;
+		if (isClosed){
+			int furthest=0;
+			double furthestDistSq=-1;
+			for (int i=1;i<numPoints;i++){
+				double dx=coords[i*2]-coords[0];
+				double dy=coords[i*2+1]-coords[1];
+				if (dx*dx+dy*dy>furthestDistSq){
+					furthestDistSq=dx*dx+dy*dy;
+					furthest=i;
+				}
+			}
+			keep[furthest]=true;
+			douglasPeucker(coords,0,furthest,toleranceSq,keep);
+			douglasPeucker(coords,furthest,numPoints-1,toleranceSq,keep);
+		}
+		else
+			douglasPeucker(coords,0,numPoints-1,toleranceSq,keep);
+
+		int numKept=0;
+		for (boolean k:keep)
+			if (k)
+				numKept++;
+		if (numKept==numPoints)
+			return coords;
+		float[] simplified=new float[numKept*2];
+		int j=0;
+		for (int i=0;i<numPoints;i++){
+			if (keep[i]){
+				simplified[j++]=coords[i*2];
+				simplified[j++]=coords[i*2+1];
+			}
+		}
+		return simplified;
+	}
+
+	/** Marks the vertices between two (kept) vertices that need to be kept. Uses a stack rather
+	 * than recursion so that very long lines do not overflow the thread's stack.
+	 */
+	private static void douglasPeucker(float[] coords, int first, int last, double toleranceSq, boolean[] keep){
+		int[] stack=new int[64];
+		int stackSize=0;
+		stack[stackSize++]=first;
+		stack[stackSize++]=last;
+		while (stackSize>0){
+			int end=stack[--stackSize];
+			int start=stack[--stackSize];
+			if (end-start<2)
+				continue;
+			int furthest=-1;
+			double furthestDistSq=toleranceSq;
+			for (int i=start+1;i<end;i++){
+				double distSq=segmentDistanceSq(coords[i*2],coords[i*2+1],coords[start*2],coords[start*2+1],coords[end*2],coords[end*2+1]);
+				if (distSq>furthestDistSq){
+					furthestDistSq=distSq;
+					furthest=i;
+				}
+			}
+			if (furthest>=0){
+				keep[furthest]=true;
+				if (stackSize+4>stack.length){
+					int[] newStack=new int[stack.length*2];
+					System.arraycopy(stack,0,newStack,0,stackSize);
+					stack=newStack;
+				}
+				stack[stackSize++]=start;
+				stack[stackSize++]=furthest;
+				stack[stackSize++]=furthest;
+				stack[stackSize++]=end;
+			}
+		}
+	}
+
+	/** Finds the squared distance from a point to a line segment
+	 */
+	private static double segmentDistanceSq(double px, double py, double x1, double y1, double x2, double y2){
+		double dx=x2-x1;
+		double dy=y2-y1;
+		double lengthSq=dx*dx+dy*dy;
+		double t=0;
+		if (lengthSq>0)
+			t=Math.max(0,Math.min(1,((px-x1)*dx+(py-y1)*dy)/lengthSq));
+		double nearestX=x1+t*dx-px;
+		double nearestY=y1+t*dy-py;
+		return nearestX*nearestX+nearestY*nearestY;
+	}
+
+	/** Simplifies a range of the shapes at every level. Each level is simplified from the original
+	 * shape, so its error is no more than its own tolerance. (Simplifying from the level before
+	 * would be quicker, but the errors of each level would add up.)
+	 */
+	private class SimplifyTask implements Callable<Object>{
+		int start,end;
+
+		SimplifyTask(int start, int end){
+			this.start=start;
+			this.end=end;
+		}
+
+		public Object call(){
+			for (int level=1;level<levels.length;level++){
+				for (int i=start;i<end;i++){
+					levels[level][i]=simplify(levels[0][i],tolerances[level],isClosed);
+					if (Thread.currentThread().isInterrupted())
+						return null;
+				}
+			}
+			return null;
+		}
+	}
+
+	/** Creates daemon threads, so that simplifying does not stop the sketch from exiting
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory{
+		public Thread newThread(Runnable runnable) {
+			Thread thread=new Thread(runnable,"MultiResolutionGeometry");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.gicentre.utils.gui;
+
+import java.awt.geom.Rectangle2D;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PGraphics;
+
+/** Interface for a dataset that is shown in many views (small multiples) by a
+ * SmallMultiplesRenderer. The dataset is a list of items, each with bounds in original
+ * coordinates. The renderer finds which items each view shows in a single pass over a shared
+ * spatial index, then each view's ThreadedGraphicBuffer draws only its own items.
+ * 
+ * drawItem() is called from the threads of several buffers at once.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public interface MultiViewDraw {
+
+	/** Gets the number of items in the dataset
+	 * 
+	 * @return  Number of items
+	 */
+	public int getNumItems();
+	
+	/** Gets the bounds of an item in original coordinates, used to find the views it appears in
+	 * 
+	 * @param item  The item (from 0 to getNumItems()-1)
+	 * @return  The item's bounds
+	 */
+	public Rectangle2D getItemBounds(int item);
+	
+	/** Draws one item in one view. Views that show a filtered subset of the data should simply
+	 * not draw the items they filter out.
+	 * 
+	 * @param canvas  The PGraphics canvas of the view's buffer
+	 * @param zoomPanState  The zoom/pan state of the view
+	 * @param drawData  Extra information passed to the view's ThreadedGraphicBuffer.draw()
+	 * @param item  The item to draw
+	 * @param view  The view being drawn (as returned by SmallMultiplesRenderer.addView())
+	 */
+	public void drawItem(PGraphics canvas,ZoomPanState zoomPanState,Object drawData,int item,int view);
+}
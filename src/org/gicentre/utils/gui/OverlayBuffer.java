@@ -0,0 +1,311 @@
+package org.gicentre.utils.gui;
+
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.gicentre.utils.move.ZoomPan;
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+import processing.core.PVector;
+
+/**Overlay Buffer
+ * 
+ * Offscreen buffer for dynamic content such as mouse-over highlights and selections, drawn over
+ * a GraphicBuffer or ThreadedGraphicBuffer that shares the same ZoomPan and screen bounds.
+ * 
+ * Rather than drawing the highlighted items every frame, give the buffer the set of items
+ * (any objects that identify them) using setItems() and an OverlayDraw that can draw an item
+ * and report its bounds. The overlay is only redrawn when the set of items or the view changes.
+ * When items are added, only those items are drawn. When items are removed, only the areas they
+ * covered are cleared and redrawn. This keeps brushing many items at full frame rate.
+ * 
+ * Drawing takes place in the animation thread when draw() is called. During zooming and panning
+ * the existing overlay is scaled, and it is redrawn when zooming/panning stops.
+ * 
+ * Partial redrawing only works with JAVA2D - with other renderers, the whole overlay is redrawn
+ * whenever the items change.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class OverlayBuffer {
+
+	private PGraphics bufferImage;           //the buffer
+	private PApplet applet;                  //the sketch
+	private Rectangle screenBounds;          //the bounds of the buffer (in screen coordinates)
+	private Rectangle2D boundsAtLastBuffer;  //keeps track of the zoompan state at the last draw
+	private ZoomPan zoomPan;                 //zoompan (may be null)
+	private OverlayDraw overlayDraw;         //draws the items
+	private Set<Object> items=new LinkedHashSet<Object>();       //items that should be drawn
+	private Set<Object> drawnItems=new LinkedHashSet<Object>();  //items that are on the buffer
+	private boolean needToUpdate=true;       //flag indicating the whole overlay needs to be redrawn
+	private int redrawMargin=2;              //pixels added around items' bounds when clearing them
+	
+	
+	/** Creates a new overlay buffer that fills the sketch screen
+	 * 
+	 * @param applet  The sketch
+	 * @param zoomPan  ZoomPan used to draw on this buffer - set to null if none used
+	 * @param overlayDraw  Draws the individual items
+	 */
+	public OverlayBuffer(PApplet applet, ZoomPan zoomPan, OverlayDraw overlayDraw){
+		this(applet,zoomPan,overlayDraw,new Rectangle(0,0,applet.width,applet.height));
+	}
+	
+	/** Creates a new overlay buffer at the specified screen area
+	 * 
+	 * @param applet  The sketch
+	 * @param zoomPan  ZoomPan used to draw on this buffer - set to null if none used
+	 * @param overlayDraw  Draws the individual items
+	 * @param screenBounds  Screen bounds (usually the same as those of the buffer underneath)
+	 */
+	public OverlayBuffer(PApplet applet, ZoomPan zoomPan, OverlayDraw overlayDraw, Rectangle screenBounds){
+		this.applet=applet;
+		this.zoomPan=zoomPan;
+		this.overlayDraw=overlayDraw;
+		this.screenBounds=screenBounds;
+		
+		//create the off-screen buffer
+		bufferImage=applet.createGraphics(screenBounds.width,screenBounds.height,PApplet.JAVA2D);
+		//give it a transparent background
+		bufferImage.beginDraw();
+		bufferImage.background(0,0,0,0);
+		bufferImage.endDraw();
+	}
+	
+	/** Sets the items to draw. The overlay will be updated the next time it is drawn.
+	 * 
+	 * @param ids  The items (objects that identify them, passed to the OverlayDraw)
+	 */
+	public void setItems(Collection<?> ids){
+		items=new LinkedHashSet<Object>(ids);
+	}
+	
+	/** Gets the items that are drawn
+	 * 
+	 * @return  The items
+	 */
+	public Set<Object> getItems(){
+		return Collections.unmodifiableSet(items);
+	}
+	
+	/** Sets the margin added around items' bounds when clearing removed items, to allow for
+	 * stroke weight and anti-aliasing. Default is 2 pixels.
+	 * 
+	 * @param redrawMargin  Margin in pixels
+	 */
+	public void setRedrawMargin(int redrawMargin){
+		this.redrawMargin=redrawMargin;
+	}
+	
+	/** Flags the whole overlay to be redrawn, e.g. if the way items are drawn has changed
+	 * 
+	 */
+	public void setUpdateFlag(){
+		this.needToUpdate=true;
+	}
+	
+	/** Gets the screen bounds
+	 * 
+	 * @return Screenbounds
+	 */
+	public Rectangle getScreenBounds(){
+		return this.screenBounds;
+	}
+	
+	/**Draws the overlay, updating it first if the items or the view have changed
+	 * 
+	 * If using ZoomPan.transform(), you must reset this before calling this method by using pushMatrix
+	 * before zoomPan.transform() and popMatrix afterwards, before calling this method
+	 */
+	public void draw(){
+		if (zoomPan!=null)
+			this.draw(zoomPan.getZoomPanState());
+		else
+			this.draw(null);
+	}
+	
+	/**Draws the overlay using a particular ZoomPanState - usually that at the start of the sketch's
+	 * draw loop - updating it first if the items or the view have changed
+	 * 
+	 * If using ZoomPan.transform(), you must reset this before calling this method by using pushMatrix
+	 * before zoomPan.transform() and popMatrix afterwards, before calling this method
+	 */
+	public void draw(ZoomPanState zoomPanState){
+		//only update when not zooming/panning - the existing overlay is scaled until then
+		if (zoomPan==null || !(zoomPan.isPanning() || zoomPan.isZooming())){
+			Rectangle2D viewPort=getViewPort(zoomPanState);
+			if (needToUpdate || (viewPort==null?boundsAtLastBuffer!=null:!viewPort.equals(boundsAtLastBuffer)))
+				redrawAll(zoomPanState);
+			else if (!items.equals(drawnItems))
+				redrawChanges(zoomPanState);
+		}
+		
+		if (boundsAtLastBuffer==null)
+			applet.image(bufferImage,screenBounds.x,screenBounds.y);
+		else{
+			//clip to the bounds
+			startClipping();
+			
+			//Calculate where to draw the image to take into account zooming/panning since the last update
+			PVector p1 = zoomPanState.getDispToCoord(new PVector((float)screenBounds.getMinX(),(float)screenBounds.getMinY()));
+			PVector p2 = zoomPanState.getDispToCoord(new PVector((float)screenBounds.getMaxX(),(float)screenBounds.getMaxY()));
+			float x=PApplet.map((float)boundsAtLastBuffer.getMinX(),p1.x,p2.x,(float)screenBounds.getMinX(),(float)screenBounds.getMaxX());
+			float y=PApplet.map((float)boundsAtLastBuffer.getMinY(),p1.y,p2.y,(float)screenBounds.getMinY(),(float)screenBounds.getMaxY());
+			float w=PApplet.map((float)boundsAtLastBuffer.getWidth(),0,p2.x-p1.x,0,(float)screenBounds.getWidth());
+			float h=PApplet.map((float)boundsAtLastBuffer.getHeight(),0,p2.y-p1.y,0,(float)screenBounds.getHeight());
+			applet.image(bufferImage,x,y,w,h);
+			
+			//stop clipping
+			stopClipping();
+		}
+	}
+	
+	/** Clears the overlay and draws all the items
+	 */
+	private void redrawAll(ZoomPanState zoomPanState){
+		Set<Object> itemsToDraw=items;
+		bufferImage.beginDraw();
+		bufferImage.background(0,0,0,0);
+		if (applet.g.smooth)
+			bufferImage.smooth();
+		drawItems(itemsToDraw,zoomPanState);
+		bufferImage.endDraw();
+		boundsAtLastBuffer=getViewPort(zoomPanState);
+		drawnItems=itemsToDraw;
+		needToUpdate=false;
+	}
+	
+	/** Draws only what has changed since the overlay was last drawn: removed items are cleared,
+	 * along with the parts of remaining items that they covered, and added items are drawn 
+	 */
+	private void redrawChanges(ZoomPanState zoomPanState){
+		Set<Object> itemsToDraw=items;
+		List<Object> removedItems=new ArrayList<Object>();
+		for (Object id:drawnItems)
+			if (!itemsToDraw.contains(id))
+				removedItems.add(id);
+		List<Object> addedItems=new ArrayList<Object>();
+		for (Object id:itemsToDraw)
+			if (!drawnItems.contains(id))
+				addedItems.add(id);
+		
+		//if most has been removed, or areas can't be cleared, it's quicker to redraw everything
+		if (!removedItems.isEmpty() && (removedItems.size()*2>drawnItems.size() || !(bufferImage instanceof PGraphicsJava2D))){
+			redrawAll(zoomPanState);
+			return;
+		}
+		
+		ScreenMapping mapping=new ScreenMapping(zoomPanState,screenBounds);
+		bufferImage.beginDraw();
+		if (applet.g.smooth)
+			bufferImage.smooth();
+		if (!removedItems.isEmpty()){
+			Graphics2D g2=((PGraphicsJava2D)bufferImage).g2;
+			//find the areas covered by the removed items and clear them
+			Area dirtyArea=new Area();
+			for (Object id:removedItems)
+				dirtyArea.add(new Area(toCanvasRect(overlayDraw.getOverlayItemBounds(id),mapping)));
+			Composite oldComposite=g2.getComposite();
+			g2.setComposite(AlphaComposite.Clear);
+			g2.fill(dirtyArea);
+			g2.setComposite(oldComposite);
+			
+			//redraw the remaining items that overlap those areas, only within those areas
+			List<Object> overlappingItems=new ArrayList<Object>();
+			for (Object id:itemsToDraw){
+				if (drawnItems.contains(id) && dirtyArea.intersects(toCanvasRect(overlayDraw.getOverlayItemBounds(id),mapping)))
+					overlappingItems.add(id);
+			}
+			g2.setClip(dirtyArea);
+			drawItems(overlappingItems,zoomPanState);
+			g2.setClip(null);
+		}
+		//draw the new items
+		drawItems(addedItems,zoomPanState);
+		bufferImage.endDraw();
+		drawnItems=itemsToDraw;
+	}
+	
+	/** Draws items onto the buffer, with the zoom/pan transformation applied
+	 */
+	private void drawItems(Collection<Object> ids, ZoomPanState zoomPanState){
+		if (ids.isEmpty())
+			return;
+		bufferImage.pushMatrix();
+		//offset
+		bufferImage.translate(-screenBounds.x,-screenBounds.y);
+		if (zoomPanState!=null)
+			zoomPanState.transform(bufferImage);
+		for (Object id:ids)
+			overlayDraw.drawOverlayItem(bufferImage,zoomPanState,id);
+		bufferImage.popMatrix();
+	}
+	
+	/** Finds the pixels of the canvas covered by bounds in original coordinates, with a margin
+	 */
+	private Rectangle toCanvasRect(Rectangle2D bounds, ScreenMapping mapping){
+		double x1=mapping.toCanvasX(bounds.getMinX());
+		double x2=mapping.toCanvasX(bounds.getMaxX());
+		double y1=mapping.toCanvasY(bounds.getMinY());
+		double y2=mapping.toCanvasY(bounds.getMaxY());
+		int minX=(int)Math.floor(Math.min(x1,x2))-redrawMargin;
+		int minY=(int)Math.floor(Math.min(y1,y2))-redrawMargin;
+		int maxX=(int)Math.ceil(Math.max(x1,x2))+redrawMargin;
+		int maxY=(int)Math.ceil(Math.max(y1,y2))+redrawMargin;
+		return new Rectangle(minX,minY,maxX-minX,maxY-minY);
+	}
+	
+	/** Finds the viewport of a zoom/pan state in original coordinates
+	 */
+	private Rectangle2D getViewPort(ZoomPanState zoomPanState){
+		if (zoomPanState==null)
+			return null;
+		return ScreenMapping.getViewPort(zoomPanState,screenBounds);
+	}
+	
+	/** Start clipping all drawn content to the screen bounds of this overlay
+	 * Only works with JAVA2D
+	 * 
+	 */
+	public void startClipping(){
+		if (applet.g instanceof PGraphicsJava2D)
+			((PGraphicsJava2D)applet.g).g2.setClip(screenBounds);
+		else
+			System.err.println("Cannot clip with this renderer.");
+	}
+
+	/** Stop clipping drawn content
+	 * Only works with JAVA2D
+	 * 
+	 */
+	public void stopClipping(){
+		if (applet.g instanceof PGraphicsJava2D)
+			((PGraphicsJava2D)applet.g).g2.setClip(null);
+	}
+}
@@ -0,0 +1,45 @@
+package org.gicentre.utils.gui;
+
+import java.awt.geom.Rectangle2D;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PGraphics;
+
+/** Interface for classes that draw the individual items (e.g. highlighted or selected shapes)
+ * of an OverlayBuffer
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public interface OverlayDraw {
+
+	/** Code to draw one item onto an OverlayBuffer. The zoom/pan transformation has already been
+	 * applied to the canvas, so draw in original coordinates.
+	 * 
+	 * @param canvas  The PGraphics canvas to draw to
+	 * @param zoomPanState  The zoom/pan state being drawn (null if no ZoomPan is used)
+	 * @param id  The item to draw
+	 */
+	public void drawOverlayItem(PGraphics canvas,ZoomPanState zoomPanState,Object id);
+	
+	/** Gets the bounds of an item in original coordinates. Used to find which parts of the
+	 * overlay need to be redrawn when items are removed.
+	 * 
+	 * @param id  The item
+	 * @return  Bounds of the item in original coordinates
+	 */
+	public Rectangle2D getOverlayItemBounds(Object id);
+}
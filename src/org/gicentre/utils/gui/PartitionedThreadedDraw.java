@@ -0,0 +1,43 @@
+package org.gicentre.utils.gui;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PGraphics;
+
+/** Interface for classes that can draw a share (partition) of their data, so that a
+ * ThreadedGraphicBuffer can draw the partitions in parallel. See
+ * ThreadedGraphicBuffer.setNumPartitions().
+ * 
+ * Each partition is drawn to its own transparent canvas, and the canvases are combined in
+ * partition order, so the result is the same as drawing the partitions one after another.
+ * To match drawing everything with threadedDraw(), partition 0 should draw the items that would
+ * be drawn first, partition 1 the next, and so on.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public interface PartitionedThreadedDraw extends ThreadedDraw{
+
+	/** Code to draw one partition of the data onto a ThreadedGraphicBuffer. Called from several
+	 * threads at once, one for each partition.
+	 * 
+	 * @param canvas  The PGraphics canvas to draw to
+	 * @param zoomPanState  The zoom/pan state to draw with
+	 * @param drawData  Extra information passed to ThreadedGraphicBuffer.draw()
+	 * @param partition  The partition to draw (from 0 to numPartitions-1)
+	 * @param numPartitions  The number of partitions the data is split into
+	 */
+	public void threadedDraw(PGraphics canvas,ZoomPanState zoomPanState,Object drawData,int partition,int numPartitions);
+}
@@ -0,0 +1,223 @@
+package org.gicentre.utils.gui;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+/** Exports the content of a ThreadedDraw at many times screen resolution (e.g. for printing)
+ * to a PNG file, without needing memory for the whole image.
+ * 
+ * The image is drawn in square tiles. A row of tiles is drawn in parallel and written to the
+ * file, then the tile canvases are reused for the next row, so memory use depends on the width
+ * of the image and the tile size, not on its height.
+ * 
+ * Each tile is drawn by calling threadedDraw() with the canvas already scaled and offset for that
+ * tile, so the same code that draws a ThreadedGraphicBuffer can be used. Because the canvas is
+ * scaled, lines and text look as they do on screen, just at higher resolution. threadedDraw() is
+ * called from several threads at once, so it must not change shared data. While a tile is being
+ * drawn, a ThreadedGraphicBuffer's getViewPort() called from threadedDraw() returns the tile's
+ * viewport, so code that only draws what is in the viewport only draws what is in the tile.
+ * 
+ * Exporting can take a long time, so call export() from a separate thread rather than the
+ * sketch's draw().  
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class PosterExporter {
+
+	private PApplet applet;                //the sketch
+	private ThreadedDraw threadedDraw;     //the class containing the threadedDraw code
+	private Rectangle screenBounds;        //the screen area being exported
+	private int tileSize=512;              //width and height of tiles in pixels
+	private int numThreads;                //number of tiles drawn at once
+	private int backgroundColour=0;        //ARGB background (transparent by default)
+	
+	/** Creates a new exporter for the content drawn in a screen area
+	 * 
+	 * @param applet  The sketch
+	 * @param threadedDraw  The class containing the threadedDraw code
+	 * @param screenBounds  Screen area to export (usually that of the ThreadedGraphicBuffer)
+	 */
+	public PosterExporter(PApplet applet, ThreadedDraw threadedDraw, Rectangle screenBounds){
+		this.applet=applet;
+		this.threadedDraw=threadedDraw;
+		this.screenBounds=screenBounds;
+		this.numThreads=Runtime.getRuntime().availableProcessors();
+	}
+	
+	/** Sets the width and height of the tiles. Default is 512.
+	 * 
+	 * @param tileSize  Tile size in pixels
+	 */
+	public void setTileSize(int tileSize){
+		if (tileSize<1)
+			throw new IllegalArgumentException("Tile size must be at least 1 pixel.");
+		this.tileSize=tileSize;
+	}
+	
+	/** Sets the number of tiles drawn at once. Default is the number of processors.
+	 * 
+	 * @param numThreads
+	 */
+	public void setNumThreads(int numThreads){
+		if (numThreads<1)
+			throw new IllegalArgumentException("At least one thread is needed.");
+		this.numThreads=numThreads;
+	}
+	
+	/** Sets the background colour. Default is transparent.
+	 * 
+	 * @param backgroundColour  ARGB colour
+	 */
+	public void setBackground(int backgroundColour){
+		this.backgroundColour=backgroundColour;
+	}
+	
+	/** Exports to a PNG file
+	 * 
+	 * @param file  The file to write
+	 * @param zoomPanState  The zoom/pan state to draw with (null if no ZoomPan is used)
+	 * @param drawData  Passed to threadedDraw()
+	 * @param scale  How many times screen resolution to export at
+	 * @throws IOException
+	 * @throws InterruptedException  If the thread calling this is interrupted (the file will be incomplete)
+	 */
+	public void exportPNG(File file, ZoomPanState zoomPanState, Object drawData, float scale) throws IOException, InterruptedException{
+		OutputStream out=new BufferedOutputStream(new FileOutputStream(file));
+		try{
+			exportPNG(out,zoomPanState,drawData,scale);
+		}
+		finally{
+			out.close();
+		}
+	}
+	
+	/** Exports to a stream in PNG format
+	 * 
+	 * @param out  Where to write the image (not closed by this)
+	 * @param zoomPanState  The zoom/pan state to draw with (null if no ZoomPan is used)
+	 * @param drawData  Passed to threadedDraw()
+	 * @param scale  How many times screen resolution to export at
+	 * @throws IOException
+	 * @throws InterruptedException  If the thread calling this is interrupted (the image will be incomplete)
+	 */
+	public void exportPNG(OutputStream out, ZoomPanState zoomPanState, Object drawData, float scale) throws IOException, InterruptedException{
+		int width=Math.round(screenBounds.width*scale);
+		int height=Math.round(screenBounds.height*scale);
+		int numTilesX=(width+tileSize-1)/tileSize;
+		int numTilesY=(height+tileSize-1)/tileSize;
+		
+		//one canvas per column of tiles, reused for each row of tiles
+		PGraphics[] canvases=new PGraphics[numTilesX];
+		for (int i=0;i<numTilesX;i++)
+			canvases[i]=applet.createGraphics(tileSize,tileSize,PApplet.JAVA2D);
+		
+		StreamingPNGWriter writer=new StreamingPNGWriter(out,width,height);
+		ExecutorService executor=Executors.newFixedThreadPool(numThreads);
+		try{
+			int[] row=new int[width];
+			for (int tileY=0;tileY<numTilesY;tileY++){
+				//draw this row of tiles in parallel
+				List<Callable<Object>> tasks=new ArrayList<Callable<Object>>();
+				for (int tileX=0;tileX<numTilesX;tileX++)
+					tasks.add(new TileTask(canvases[tileX],tileX,tileY,zoomPanState,drawData,scale));
+				for (Future<Object> result:executor.invokeAll(tasks)){
+					try{
+						result.get();
+					}
+					catch (ExecutionException e) {
+						throw new IOException("Drawing a tile failed: "+e.getCause(),e.getCause());
+					}
+				}
+				
+				//write the rows of pixels in this row of tiles
+				int rowsInTile=Math.min(tileSize,height-tileY*tileSize);
+				for (int y=0;y<rowsInTile;y++){
+					for (int tileX=0;tileX<numTilesX;tileX++){
+						int columnsInTile=Math.min(tileSize,width-tileX*tileSize);
+						System.arraycopy(canvases[tileX].pixels,y*tileSize,row,tileX*tileSize,columnsInTile);
+					}
+					writer.writeRow(row,0);
+				}
+			}
+			writer.close();
+		}
+		finally{
+			executor.shutdownNow();
+		}
+	}
+	
+	/** Draws one tile
+	 */
+	private class TileTask implements Callable<Object>{
+		PGraphics canvas;
+		int tileX,tileY;
+		ZoomPanState zoomPanState;
+		Object drawData;
+		float scale;
+		
+		TileTask(PGraphics canvas, int tileX, int tileY, ZoomPanState zoomPanState, Object drawData, float scale){
+			this.canvas=canvas;
+			this.tileX=tileX;
+			this.tileY=tileY;
+			this.zoomPanState=zoomPanState;
+			this.drawData=drawData;
+			this.scale=scale;
+		}
+		
+		public Object call(){
+			canvas.beginDraw();
+			canvas.background(backgroundColour>>16&0xff,backgroundColour>>8&0xff,backgroundColour&0xff,backgroundColour>>>24);
+			if (applet.g.smooth)
+				canvas.smooth();
+			canvas.pushMatrix();
+			//offset to this tile, scale up, then offset to the screen bounds as a ThreadedGraphicBuffer does
+			canvas.translate(-tileX*tileSize,-tileY*tileSize);
+			canvas.scale(scale);
+			canvas.translate(-screenBounds.x,-screenBounds.y);
+			//so that getViewPort() only gives this tile to threadedDraw()
+			Rectangle2D tileScreenArea=new Rectangle2D.Double(screenBounds.x+tileX*tileSize/(double)scale,screenBounds.y+tileY*tileSize/(double)scale,
+					tileSize/(double)scale,tileSize/(double)scale);
+			ScreenMapping.setPartialViewPort(ScreenMapping.getViewPort(zoomPanState,tileScreenArea));
+			try{
+				threadedDraw.threadedDraw(canvas,zoomPanState,drawData);
+			}
+			finally{
+				ScreenMapping.setPartialViewPort(null);
+			}
+			canvas.popMatrix();
+			canvas.endDraw();
+			canvas.loadPixels();
+			return null;
+		}
+	}
+}
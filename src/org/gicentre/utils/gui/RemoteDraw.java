@@ -0,0 +1,39 @@
+package org.gicentre.utils.gui;
+
+import java.awt.geom.Rectangle2D;
+
+import processing.core.PGraphics;
+
+/** Interface for classes that draw in a separate worker JVM (see RemoteRenderPool). Each worker
+ * creates its own instance by class name, so implementations must be public, have a public
+ * no-argument constructor and load their own data (identified by the draw-data key).
+ * 
+ * The canvas has already been transformed so that drawing is in original coordinates, as it
+ * would be after ZoomPan.transform() in a threadedDraw().
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public interface RemoteDraw {
+
+	/** Draws one tile of a render in a worker JVM
+	 * 
+	 * @param canvas  The PGraphics canvas to draw to, transformed to original coordinates
+	 * @param viewPort  The part of the data covered by the canvas, in original coordinates
+	 * @param drawDataKey  Identifies what to draw (the drawData passed to ThreadedGraphicBuffer.draw(),
+	 *                     as a String), or null if there was no drawData
+	 */
+	public void remoteDraw(PGraphics canvas,Rectangle2D viewPort,String drawDataKey);
+}
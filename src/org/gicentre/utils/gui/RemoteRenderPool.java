@@ -0,0 +1,423 @@
+package org.gicentre.utils.gui;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/** Pool of worker JVMs on the same machine that draw for a ThreadedGraphicBuffer (see
+ * ThreadedGraphicBuffer.setRemoteRenderPool()), so that very heavy layers are drawn outside the
+ * sketch's heap and garbage collector, and across several processes.
+ * 
+ * Each render is split into horizontal tiles, one per worker. A tile job (its size, the
+ * mapping from original coordinates to the tile, its viewport and the draw-data key) is sent
+ * over a loopback socket. The worker draws with its own instance of the RemoteDraw class and
+ * writes the raw pixels to a memory-mapped file shared with the pool, from which they are drawn
+ * onto the buffer's canvas.
+ * 
+ * Workers are started with the same Java and classpath as the sketch. Call close() to stop
+ * them (they also stop if the sketch exits).
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class RemoteRenderPool {
+
+	private List<Worker> workers=new CopyOnWriteArrayList<Worker>(); //workers that are still running
+	private LinkedBlockingQueue<Worker> idleWorkers=new LinkedBlockingQueue<Worker>();
+	private volatile boolean isClosed=false;
+	
+	/** Starts a pool of worker JVMs
+	 * 
+	 * @param remoteDrawClassName  Name of the RemoteDraw class that workers draw with
+	 * @param numWorkers  Number of worker JVMs
+	 * @param jvmArguments  Extra arguments for the worker JVMs (e.g. "-Xmx2g")
+	 * @throws IOException  If the workers could not be started
+	 */
+	public RemoteRenderPool(String remoteDrawClassName, int numWorkers, String... jvmArguments) throws IOException{
+		if (numWorkers<1)
+			throw new IllegalArgumentException("A RemoteRenderPool needs at least one worker.");
+		ServerSocket serverSocket=new ServerSocket(0,numWorkers,InetAddress.getByName(null));
+		try{
+			serverSocket.setSoTimeout(30000);
+			String java=System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+			for (int i=0;i<numWorkers;i++){
+				List<String> command=new ArrayList<String>();
+				command.add(java);
+				command.addAll(Arrays.asList(jvmArguments));
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(RemoteRenderWorker.class.getName());
+				command.add(String.valueOf(serverSocket.getLocalPort()));
+				command.add(remoteDrawClassName);
+				Process process=new ProcessBuilder(command).redirectErrorStream(true).start();
+				//pass on the worker's output so it doesn't block, and so errors can be seen
+				Thread outputThread=new Thread(new OutputCopier(process),"RemoteRenderWorker output");
+				outputThread.setDaemon(true);
+				outputThread.start();
+				Worker worker=new Worker(process,serverSocket.accept());
+				workers.add(worker);
+				idleWorkers.add(worker);
+			}
+		}
+		catch (IOException e){
+			close();
+			throw e;
+		}
+		finally{
+			serverSocket.close();
+		}
+	}
+	
+	/** Gets the number of worker JVMs. Workers that stop (e.g. if their JVM crashes) are removed.
+	 * 
+	 * @return  Number of workers
+	 */
+	public int getNumWorkers(){
+		return workers.size();
+	}
+	
+	/** Stops the workers. The pool cannot be used afterwards.
+	 */
+	public void close(){
+		isClosed=true;
+		for (Worker worker:workers)
+			worker.close();
+	}
+	
+	/** Draws a render with the workers, one tile per worker. Returns early (with the interrupted
+	 * flag set) if the calling thread is interrupted, leaving the workers to finish in the
+	 * background.
+	 * 
+	 * @param canvas  Canvas to draw to, translated so that it covers the screen bounds
+	 * @param zoomPanState  The zoom/pan state (null if no ZoomPan is used)
+	 * @param screenBounds  Screen bounds of the canvas
+	 * @param drawDataKey  Identifies what to draw (may be null)
+	 * @throws IOException  If a worker could not draw, or there are no workers left
+	 */
+	void render(PGraphics canvas, ZoomPanState zoomPanState, Rectangle screenBounds, String drawDataKey) throws IOException{
+		if (isClosed)
+			throw new IOException("The RemoteRenderPool has been closed.");
+		if (workers.isEmpty())
+			throw new IOException("All the RemoteRenderPool's workers have stopped.");
+		ScreenMapping mapping=new ScreenMapping(zoomPanState,screenBounds);
+		int numTiles=Math.max(1,Math.min(workers.size(),screenBounds.height));
+		List<Tile> inFlight=new ArrayList<Tile>();
+		try{
+			for (int i=0;i<numTiles;i++){
+				int y1=i*screenBounds.height/numTiles;
+				int y2=(i+1)*screenBounds.height/numTiles;
+				//wait for a worker, finishing earlier tiles if they are holding them all
+				Worker worker=idleWorkers.poll();
+				while (worker==null){
+					if (!inFlight.isEmpty())
+						finishTile(canvas,inFlight);
+					else if (workers.isEmpty())
+						throw new IOException("All the RemoteRenderPool's workers have stopped.");
+					else
+						//wait in steps, so that workers stopping meanwhile are noticed
+						worker=idleWorkers.poll(100,TimeUnit.MILLISECONDS);
+					if (worker==null)
+						worker=idleWorkers.poll();
+				}
+				Tile tile=new Tile(worker,0,y1,screenBounds.width,y2-y1);
+				try{
+					worker.send(tile,mapping,canvas.smooth,drawDataKey);
+				}
+				catch (IOException e){
+					workerStopped(worker);
+					throw e;
+				}
+				inFlight.add(tile);
+			}
+			while (!inFlight.isEmpty())
+				finishTile(canvas,inFlight);
+		}
+		catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		finally{
+			if (!inFlight.isEmpty())
+				new Thread(new Drainer(inFlight),"RemoteRenderPool drainer").start();
+		}
+	}
+	
+	/** Removes a worker that has stopped (or can no longer be reached), so that renders do not
+	 * wait for it
+	 * 
+	 * @param worker  The worker
+	 */
+	private void workerStopped(Worker worker){
+		workers.remove(worker);
+		idleWorkers.remove(worker);
+		worker.close();
+	}
+	
+	/** Waits for the first tile in flight and draws it onto the canvas. The tile stays in flight
+	 * if waiting is interrupted, so that its reply is still read.
+	 */
+	private void finishTile(PGraphics canvas, List<Tile> inFlight) throws IOException, InterruptedException{
+		Tile tile=inFlight.get(0);
+		PImage tileImage;
+		try{
+			tileImage=tile.worker.receive(tile,true);
+		}
+		catch (IOException e){
+			inFlight.remove(0);
+			throw e;
+		}
+		inFlight.remove(0);
+		//the canvas is translated so that it covers the screen bounds
+		canvas.pushMatrix();
+		canvas.resetMatrix();
+		canvas.image(tileImage,tile.x,tile.y);
+		canvas.popMatrix();
+	}
+	
+	/** Part of a render drawn by one worker
+	 */
+	private static class Tile{
+		Worker worker;
+		int x,y,width,height;   //pixels of the canvas covered
+		
+		Tile(Worker worker, int x, int y, int width, int height){
+			this.worker=worker;
+			this.x=x;
+			this.y=y;
+			this.width=width;
+			this.height=height;
+		}
+	}
+	
+	/** A reply from a worker to a tile job
+	 */
+	private static class Reply{
+		int status;        //RemoteRenderWorker.STATUS_OK or STATUS_FAILED
+		String message;    //why the tile failed (null if it did not)
+		boolean stopped;   //whether the worker has stopped, so will not reply again
+		
+		Reply(int status, String message, boolean stopped){
+			this.status=status;
+			this.message=message;
+			this.stopped=stopped;
+		}
+	}
+	
+	/** A worker JVM, its socket and the file its pixels come back through. Replies are read by a
+	 * thread of their own with blocking reads, so a reply is never read in part by a wait that
+	 * gives up.
+	 */
+	private class Worker implements Runnable{
+		Process process;
+		Socket socket;
+		DataInputStream in;
+		DataOutputStream out;
+		File pixelFile;
+		long capacity=0;
+		MappedByteBuffer pixelBuffer=null;
+		LinkedBlockingQueue<Reply> replies=new LinkedBlockingQueue<Reply>();
+		
+		Worker(Process process, Socket socket) throws IOException{
+			this.process=process;
+			this.socket=socket;
+			socket.setTcpNoDelay(true);
+			in=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			pixelFile=File.createTempFile("remoterender",".pixels");
+			pixelFile.deleteOnExit();
+			Thread replyThread=new Thread(this,"RemoteRenderPool replies");
+			replyThread.setDaemon(true);
+			replyThread.start();
+		}
+		
+		/** Reads replies until the worker stops 
+		 */
+		public void run(){
+			try{
+				while (true){
+					int status=in.readInt();
+					String message=status==RemoteRenderWorker.STATUS_OK?null:in.readUTF();
+					replies.add(new Reply(status,message,false));
+				}
+			}
+			catch (IOException e){
+				//the worker has stopped or the pool was closed
+				String message=isClosed?"The RemoteRenderPool has been closed.":"A RemoteRenderWorker has stopped ("+e+").";
+				replies.add(new Reply(RemoteRenderWorker.STATUS_FAILED,message,true));
+				workerStopped(this);
+			}
+		}
+		
+		/** Sends a tile job 
+		 */
+		void send(Tile tile, ScreenMapping mapping, boolean smooth, String drawDataKey) throws IOException{
+			//grow the shared file if needed
+			long needed=(long)tile.width*tile.height*4;
+			if (needed>capacity){
+				capacity=Math.max(needed,capacity*2);
+				RandomAccessFile file=new RandomAccessFile(pixelFile,"rw");
+				try{
+					file.setLength(capacity);
+					pixelBuffer=file.getChannel().map(FileChannel.MapMode.READ_WRITE,0,capacity);
+				}
+				finally{
+					file.close();
+				}
+			}
+			//mapping from original coordinates to the tile's pixels
+			double offsetX=mapping.offsetX-tile.x;
+			double offsetY=mapping.offsetY-tile.y;
+			double minX=(0-offsetX)/mapping.scaleX;
+			double maxX=(tile.width-offsetX)/mapping.scaleX;
+			double minY=(0-offsetY)/mapping.scaleY;
+			double maxY=(tile.height-offsetY)/mapping.scaleY;
+			Rectangle2D viewPort=new Rectangle2D.Double(Math.min(minX,maxX),Math.min(minY,maxY),Math.abs(maxX-minX),Math.abs(maxY-minY));
+			
+			out.writeInt(tile.width);
+			out.writeInt(tile.height);
+			out.writeBoolean(smooth);
+			out.writeDouble(mapping.scaleX);
+			out.writeDouble(mapping.scaleY);
+			out.writeDouble(offsetX);
+			out.writeDouble(offsetY);
+			out.writeDouble(viewPort.getX());
+			out.writeDouble(viewPort.getY());
+			out.writeDouble(viewPort.getWidth());
+			out.writeDouble(viewPort.getHeight());
+			out.writeBoolean(drawDataKey!=null);
+			if (drawDataKey!=null)
+				out.writeUTF(drawDataKey);
+			out.writeUTF(pixelFile.getPath());
+			out.writeLong(capacity);
+			out.flush();
+		}
+		
+		/** Waits for a tile to finish. The worker is then idle again.
+		 * 
+		 * @param tile  The tile
+		 * @param interruptible  Whether to stop waiting if the thread is interrupted
+		 * @return  The tile's pixels
+		 */
+		PImage receive(Tile tile, boolean interruptible) throws IOException, InterruptedException{
+			Reply reply=null;
+			boolean isInterrupted=false;
+			while (reply==null){
+				try{
+					reply=replies.take();
+				}
+				catch (InterruptedException e){
+					if (interruptible)
+						throw e;
+					isInterrupted=true;
+				}
+			}
+			if (isInterrupted)
+				Thread.currentThread().interrupt();
+			if (reply.stopped){
+				//leave the reply for anything else still waiting on this worker
+				replies.add(reply);
+				throw new IOException(reply.message);
+			}
+			if (reply.status!=RemoteRenderWorker.STATUS_OK){
+				idleWorkers.add(this);
+				throw new IOException("Remote render failed: "+reply.message);
+			}
+			PImage tileImage=new PImage(tile.width,tile.height,PConstants.ARGB);
+			pixelBuffer.clear();
+			pixelBuffer.asIntBuffer().get(tileImage.pixels,0,tile.width*tile.height);
+			idleWorkers.add(this);
+			return tileImage;
+		}
+		
+		void close(){
+			try{
+				socket.close();
+			}
+			catch (IOException e){
+				//closing anyway
+			}
+			process.destroy();
+			pixelFile.delete();
+		}
+	}
+	
+	/** Waits for the tiles of an abandoned render, so the workers can be reused 
+	 */
+	private class Drainer implements Runnable{
+		List<Tile> tiles;
+		
+		Drainer(List<Tile> tiles){
+			this.tiles=new ArrayList<Tile>(tiles);
+		}
+		
+		public void run(){
+			for (Tile tile:tiles){
+				try{
+					tile.worker.receive(tile,false);
+				}
+				catch (IOException e){
+					//the worker has stopped, and was removed from the pool when it did
+				}
+				catch (InterruptedException e){
+					//not interruptible
+				}
+			}
+		}
+	}
+	
+	/** Copies a worker's output to this JVM's standard error 
+	 */
+	private static class OutputCopier implements Runnable{
+		Process process;
+		
+		OutputCopier(Process process){
+			this.process=process;
+		}
+		
+		public void run(){
+			byte[] bytes=new byte[4096];
+			try{
+				int numBytes;
+				while ((numBytes=process.getInputStream().read(bytes))>=0)
+					System.err.write(bytes,0,numBytes);
+			}
+			catch (IOException e){
+				//worker has gone
+			}
+		}
+	}
+}
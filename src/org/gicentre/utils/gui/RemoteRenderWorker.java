@@ -0,0 +1,128 @@
+package org.gicentre.utils.gui;
+
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import processing.core.PGraphicsJava2D;
+
+/** Worker JVM started by a RemoteRenderPool. It connects back to the pool over a loopback
+ * socket, then draws tiles with a RemoteDraw until the socket is closed. The pixels of each
+ * finished tile are written to a memory-mapped file shared with the pool, and only a short reply
+ * goes over the socket.
+ * 
+ * Not intended to be run directly. Arguments are the pool's port and the RemoteDraw class name.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class RemoteRenderWorker {
+
+	static final int STATUS_OK=0;
+	static final int STATUS_FAILED=1;
+	
+	private RemoteRenderWorker(){
+	}
+	
+	/** Runs the worker
+	 * 
+	 * @param args  Port of the pool and name of the RemoteDraw class
+	 */
+	public static void main(String[] args) throws Exception{
+		//getDeclaredConstructor() rather than Class.newInstance(), which can throw checked exceptions it does not declare
+		RemoteDraw remoteDraw=Class.forName(args[1]).asSubclass(RemoteDraw.class).getDeclaredConstructor().newInstance();
+		Socket socket=new Socket(InetAddress.getByName(null),Integer.parseInt(args[0]));
+		socket.setTcpNoDelay(true);
+		DataInputStream in=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		
+		String mappedPath=null;
+		long mappedCapacity=0;
+		MappedByteBuffer mappedBuffer=null;
+		PGraphicsJava2D canvas=null;
+		while (true){
+			//read the job
+			int width;
+			try{
+				width=in.readInt();
+			}
+			catch (EOFException e){
+				//pool has closed
+				break;
+			}
+			int height=in.readInt();
+			boolean smooth=in.readBoolean();
+			double scaleX=in.readDouble();
+			double scaleY=in.readDouble();
+			double offsetX=in.readDouble();
+			double offsetY=in.readDouble();
+			Rectangle2D viewPort=new Rectangle2D.Double(in.readDouble(),in.readDouble(),in.readDouble(),in.readDouble());
+			String drawDataKey=in.readBoolean()?in.readUTF():null;
+			String path=in.readUTF();
+			long capacity=in.readLong();
+			
+			//(re)map the shared file if the pool has grown it
+			if (!path.equals(mappedPath) || capacity!=mappedCapacity){
+				RandomAccessFile file=new RandomAccessFile(path,"rw");
+				try{
+					mappedBuffer=file.getChannel().map(FileChannel.MapMode.READ_WRITE,0,capacity);
+				}
+				finally{
+					file.close();
+				}
+				mappedPath=path;
+				mappedCapacity=capacity;
+			}
+			
+			try{
+				if (canvas==null || canvas.width!=width || canvas.height!=height){
+					canvas=new PGraphicsJava2D();
+					canvas.setPrimary(false);
+					canvas.setSize(width,height);
+				}
+				canvas.beginDraw();
+				canvas.background(255,0);//transparent background
+				if (smooth)
+					canvas.smooth();
+				else
+					canvas.noSmooth();
+				canvas.pushMatrix();
+				canvas.translate((float)offsetX,(float)offsetY);
+				canvas.scale((float)scaleX,(float)scaleY);
+				remoteDraw.remoteDraw(canvas,viewPort,drawDataKey);
+				canvas.popMatrix();
+				canvas.endDraw();
+				canvas.loadPixels();
+				mappedBuffer.clear();
+				mappedBuffer.asIntBuffer().put(canvas.pixels,0,width*height);
+				out.writeInt(STATUS_OK);
+			}
+			catch (RuntimeException e){
+				out.writeInt(STATUS_FAILED);
+				out.writeUTF(String.valueOf(e));
+			}
+			out.flush();
+		}
+		socket.close();
+	}
+}
@@ -0,0 +1,302 @@
+package org.gicentre.utils.gui;
+
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Cache of images drawn by ThreadedGraphicBuffers, so that returning to an earlier view
+ * (e.g. resetting the zoom, or going back to a bookmarked view) is instant.
+ * 
+ * Give a cache to a buffer with ThreadedGraphicBuffer.setRenderCache(). Whenever the buffer
+ * finishes drawing, a copy of the image is stored, keyed by the view (quantised to a fraction of
+ * a pixel, so tiny differences in zoom/pan still match), the buffer size, the draw data, the
+ * draw data version and the number of batches appended to the buffer. When the buffer next needs
+ * to update, its drawing thread uses a matching image instead of drawing, so decompressing and
+ * copying it does not hold up the sketch.
+ * 
+ * The draw data version must be changed (ThreadedGraphicBuffer.setDrawDataVersion()) whenever
+ * the data being drawn changes, otherwise out of date images will be used.
+ * 
+ * The least recently used images are removed when the cache exceeds its memory budget. 
+ * Optionally, all but the most recently used images can be held compressed, fitting more images
+ * in the budget at the cost of decompressing them when used. One cache may be shared by several
+ * buffers.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class RenderCache {
+
+	private static final int SUB_PIXEL_STEPS=8;      //views are matched to 1/8 of a pixel
+	
+	private long maxBytes;                           //memory budget
+	private long numBytes=0;                         //memory used by cached images
+	private boolean compressColdEntries=false;       //whether less recently used images are compressed
+	private int numHotEntries=2;                     //number of most recently used images kept uncompressed
+	private LinkedHashMap<Key,Entry> entries=new LinkedHashMap<Key, Entry>(16,0.75f,true); //in order of use
+	
+	
+	/** Creates a new cache
+	 * 
+	 * @param maxBytes  Memory budget in bytes
+	 */
+	public RenderCache(long maxBytes){
+		this.maxBytes=maxBytes;
+	}
+	
+	/** Sets whether all but the most recently used images are held compressed
+	 * 
+	 * @param compressColdEntries  Whether to compress images
+	 * @param numHotEntries  Number of most recently used images kept uncompressed
+	 */
+	public synchronized void setCompressColdEntries(boolean compressColdEntries, int numHotEntries){
+		this.compressColdEntries=compressColdEntries;
+		this.numHotEntries=numHotEntries;
+		compressColdEntries();
+	}
+	
+	/** Sets the memory budget, removing images if necessary
+	 * 
+	 * @param maxBytes  Memory budget in bytes
+	 */
+	public synchronized void setMaxBytes(long maxBytes){
+		this.maxBytes=maxBytes;
+		removeEldestEntries();
+	}
+	
+	/** Gets the memory used by cached images
+	 * 
+	 * @return  Memory used in bytes
+	 */
+	public synchronized long getNumBytes(){
+		return numBytes;
+	}
+	
+	/** Gets the number of cached images
+	 * 
+	 * @return  Number of images
+	 */
+	public synchronized int getNumEntries(){
+		return entries.size();
+	}
+	
+	/** Removes all cached images
+	 * 
+	 */
+	public synchronized void clear(){
+		entries.clear();
+		numBytes=0;
+	}
+	
+	/** Finds a cached image
+	 * 
+	 * @param key  Key of the image
+	 * @return  The image (uncompressed, and not affected by later changes to the cache), or
+	 *          null if not cached
+	 */
+	synchronized Entry get(Key key){
+		Entry entry=entries.get(key);
+		if (entry==null)
+			return null;
+		if (entry.compressedPixels!=null){
+			//recently used, so keep uncompressed
+			numBytes-=entry.getNumBytes();
+			entry.decompress();
+			numBytes+=entry.getNumBytes();
+			compressColdEntries();
+			removeEldestEntries();
+		}
+		return new Entry(entry.pixels,entry.width,entry.height,entry.bounds);
+	}
+	
+	/** Adds an image to the cache. The pixels are used directly, so should be a copy. 
+	 * 
+	 * @param key  Key of the image
+	 * @param pixels  ARGB pixels
+	 * @param width  Width of the image
+	 * @param height  Height of the image
+	 * @param bounds  Bounds the image was drawn at (in original coordinates - may be null)
+	 */
+	synchronized void put(Key key, int[] pixels, int width, int height, Rectangle2D bounds){
+		Entry oldEntry=entries.remove(key);
+		if (oldEntry!=null)
+			numBytes-=oldEntry.getNumBytes();
+		Entry entry=new Entry(pixels,width,height,bounds);
+		entries.put(key,entry);
+		numBytes+=entry.getNumBytes();
+		compressColdEntries();
+		removeEldestEntries();
+	}
+	
+	/** Removes the least recently used images until within the memory budget
+	 */
+	private void removeEldestEntries(){
+		Iterator<Entry> it=entries.values().iterator();
+		while (numBytes>maxBytes && it.hasNext()){
+			numBytes-=it.next().getNumBytes();
+			it.remove();
+		}
+	}
+	
+	/** Compresses all but the most recently used images, if compression is on
+	 */
+	private void compressColdEntries(){
+		if (!compressColdEntries)
+			return;
+		int numCold=entries.size()-numHotEntries;
+		Iterator<Entry> it=entries.values().iterator();
+		for (int i=0;i<numCold;i++){
+			Entry entry=it.next();
+			if (entry.pixels!=null){
+				numBytes-=entry.getNumBytes();
+				entry.compress();
+				numBytes+=entry.getNumBytes();
+			}
+		}
+	}
+	
+	/** Creates the key for an image
+	 * 
+	 * @param viewPort  The view drawn, in original coordinates (null if no ZoomPan is used)
+	 * @param width  Width of the buffer in pixels
+	 * @param height  Height of the buffer in pixels
+	 * @param drawDataVersion  Version of the data drawn
+	 * @param numAppends  Number of batches appended to the buffer (see ThreadedGraphicBuffer.append())
+	 * @param drawData  Extra information passed to threadedDraw (may be null)
+	 * @return  The key
+	 */
+	static Key createKey(Rectangle2D viewPort, int width, int height, long drawDataVersion, long numAppends, Object drawData){
+		return new Key(viewPort,width,height,drawDataVersion,numAppends,drawData);
+	}
+	
+	/** Identifies a cached image
+	 */
+	static class Key{
+		long x,y,scaleX,scaleY;  //view, quantised
+		boolean hasViewPort;
+		int width,height;
+		long drawDataVersion;
+		long numAppends;
+		Object drawData;
+		
+		Key(Rectangle2D viewPort, int width, int height, long drawDataVersion, long numAppends, Object drawData){
+			this.width=width;
+			this.height=height;
+			this.drawDataVersion=drawDataVersion;
+			this.numAppends=numAppends;
+			this.drawData=drawData;
+			if (viewPort!=null){
+				hasViewPort=true;
+				double pixelWidth=viewPort.getWidth()/width;
+				double pixelHeight=viewPort.getHeight()/height;
+				//position to a fraction of a pixel, and scale to a small fraction of a percent 
+				x=Math.round(viewPort.getMinX()/pixelWidth*SUB_PIXEL_STEPS);
+				y=Math.round(viewPort.getMinY()/pixelHeight*SUB_PIXEL_STEPS);
+				scaleX=Math.round(Math.log(Math.abs(pixelWidth))*width*SUB_PIXEL_STEPS);
+				scaleY=Math.round(Math.log(Math.abs(pixelHeight))*height*SUB_PIXEL_STEPS);
+			}
+		}
+		
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other=(Key)obj;
+			return x==other.x && y==other.y && scaleX==other.scaleX && scaleY==other.scaleY
+					&& hasViewPort==other.hasViewPort && width==other.width && height==other.height
+					&& drawDataVersion==other.drawDataVersion && numAppends==other.numAppends
+					&& (drawData==null?other.drawData==null:drawData.equals(other.drawData));
+		}
+		
+		public int hashCode() {
+			long hash=x;
+			hash=hash*31+y;
+			hash=hash*31+scaleX;
+			hash=hash*31+scaleY;
+			hash=hash*31+width;
+			hash=hash*31+height;
+			hash=hash*31+drawDataVersion;
+			hash=hash*31+numAppends;
+			hash=hash*31+(drawData==null?0:drawData.hashCode());
+			return (int)(hash^(hash>>>32));
+		}
+	}
+	
+	/** A cached image, held as pixels or compressed pixels
+	 */
+	static class Entry{
+		int[] pixels;             //null if compressed
+		byte[] compressedPixels;  //null if not compressed
+		int width,height;
+		Rectangle2D bounds;
+		
+		Entry(int[] pixels, int width, int height, Rectangle2D bounds){
+			this.pixels=pixels;
+			this.width=width;
+			this.height=height;
+			this.bounds=bounds;
+		}
+		
+		long getNumBytes(){
+			return pixels!=null?pixels.length*4L:compressedPixels.length;
+		}
+		
+		void compress(){
+			byte[] bytes=new byte[pixels.length*4];
+			for (int i=0;i<pixels.length;i++){
+				int pixel=pixels[i];
+				bytes[i*4]=(byte)(pixel>>>24);
+				bytes[i*4+1]=(byte)(pixel>>16);
+				bytes[i*4+2]=(byte)(pixel>>8);
+				bytes[i*4+3]=(byte)pixel;
+			}
+			Deflater deflater=new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream out=new ByteArrayOutputStream(bytes.length/4);
+			byte[] buffer=new byte[1<<16];
+			while (!deflater.finished())
+				out.write(buffer,0,deflater.deflate(buffer));
+			deflater.end();
+			compressedPixels=out.toByteArray();
+			pixels=null;
+		}
+		
+		void decompress(){
+			byte[] bytes=new byte[width*height*4];
+			Inflater inflater=new Inflater();
+			inflater.setInput(compressedPixels);
+			try{
+				int offset=0;
+				while (offset<bytes.length && !inflater.finished())
+					offset+=inflater.inflate(bytes,offset,bytes.length-offset);
+			}
+			catch (DataFormatException e) {
+				//can't happen as we compressed it
+				throw new IllegalStateException(e);
+			}
+			finally{
+				inflater.end();
+			}
+			pixels=new int[width*height];
+			for (int i=0;i<pixels.length;i++)
+				pixels[i]=(bytes[i*4]&0xff)<<24 | (bytes[i*4+1]&0xff)<<16 | (bytes[i*4+2]&0xff)<<8 | (bytes[i*4+3]&0xff);
+			compressedPixels=null;
+		}
+	}
+}
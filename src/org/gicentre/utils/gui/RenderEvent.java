@@ -0,0 +1,143 @@
+package org.gicentre.utils.gui;
+
+import java.awt.geom.Rectangle2D;
+
+/** Something that happened to one render (frame) of a ThreadedGraphicBuffer: it started, made
+ * progress, completed or was cancelled. Received by RenderEventListeners.
+ * 
+ * Each render has a frame ID, which increases with each render requested. Times are from
+ * System.nanoTime().
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class RenderEvent {
+
+	/** What happened to the render */
+	public enum Type{
+		/** Drawing started */
+		STARTED,
+		/** Part of the drawing has been done (see getProgress()) */
+		PROGRESS,
+		/** Drawing finished and the new image is being drawn by the buffer */
+		COMPLETED,
+		/** The render was cancelled (e.g. because the view changed) before it completed */
+		CANCELLED,
+		/** Drawing failed (e.g. a RemoteRenderPool worker stopped), so the image is not shown */
+		FAILED
+	}
+	
+	private ThreadedGraphicBuffer buffer;
+	private Type type;
+	private long frameId;
+	private Rectangle2D viewPort;
+	private float progress;
+	private long requestTime,startTime,eventTime;
+	
+	RenderEvent(ThreadedGraphicBuffer buffer, Type type, long frameId, Rectangle2D viewPort, float progress, long requestTime, long startTime){
+		this.buffer=buffer;
+		this.type=type;
+		this.frameId=frameId;
+		this.viewPort=viewPort;
+		this.progress=progress;
+		this.requestTime=requestTime;
+		this.startTime=startTime;
+		this.eventTime=System.nanoTime();
+	}
+	
+	/** Gets the buffer that is rendering
+	 * 
+	 * @return  The buffer
+	 */
+	public ThreadedGraphicBuffer getBuffer(){
+		return buffer;
+	}
+	
+	/** Gets what happened
+	 * 
+	 * @return  The type of event
+	 */
+	public Type getType(){
+		return type;
+	}
+	
+	/** Gets the ID of the render. Later renders have higher IDs.
+	 * 
+	 * @return  The frame ID
+	 */
+	public long getFrameId(){
+		return frameId;
+	}
+	
+	/** Gets the viewport being drawn
+	 * 
+	 * @return  The viewport in original coordinates (null if no ZoomPan is used)
+	 */
+	public Rectangle2D getViewPort(){
+		return viewPort==null?null:(Rectangle2D)viewPort.clone();
+	}
+	
+	/** Gets how much of the drawing has been done
+	 * 
+	 * @return  Fraction done, from 0 to 1 (1 when completed, or -1 if not known)
+	 */
+	public float getProgress(){
+		return progress;
+	}
+	
+	/** Gets when the render was requested
+	 * 
+	 * @return  Time from System.nanoTime()
+	 */
+	public long getRequestTime(){
+		return requestTime;
+	}
+	
+	/** Gets when drawing started
+	 * 
+	 * @return  Time from System.nanoTime() (-1 if drawing did not start)
+	 */
+	public long getStartTime(){
+		return startTime;
+	}
+	
+	/** Gets when this event happened
+	 * 
+	 * @return  Time from System.nanoTime()
+	 */
+	public long getEventTime(){
+		return eventTime;
+	}
+	
+	/** Gets how long the render waited before drawing started (e.g. for a RenderScheduler)
+	 * 
+	 * @return  Time in milliseconds (or the time waited so far if drawing did not start)
+	 */
+	public float getQueueMillis(){
+		return ((startTime<0?eventTime:startTime)-requestTime)/1000000f;
+	}
+	
+	/** Gets how long the render had been drawing when this event happened
+	 * 
+	 * @return  Time in milliseconds (0 if drawing did not start)
+	 */
+	public float getDrawMillis(){
+		return startTime<0?0:(eventTime-startTime)/1000000f;
+	}
+	
+	public String toString(){
+		return "RenderEvent["+type+", frame "+frameId+", progress "+progress+", queued "+getQueueMillis()+"ms, drawing "+getDrawMillis()+"ms]";
+	}
+}
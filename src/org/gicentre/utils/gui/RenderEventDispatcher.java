@@ -0,0 +1,133 @@
+package org.gicentre.utils.gui;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Delivers render events to RenderEventListeners without ever making the renderer wait.
+ *
+ * Each listener has a slot holding the latest event it has not yet received, so a slow listener
+ * only misses intermediate events. Listeners either receive events on a separate (daemon) thread,
+ * one at a time, or on the animation thread when deliverOnAnimationThread() is called (from the
+ * buffer's draw()).
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+final class RenderEventDispatcher {
+
+	private CopyOnWriteArrayList<Subscription> subscriptions=new CopyOnWriteArrayList<Subscription>();
+	private ExecutorService executor=null;   //delivers events not on the animation thread (created when needed)
+
+	/** Adds a listener
+	 *
+	 * @param listener  The listener
+	 * @param onAnimationThread  Whether events should be received on the animation thread
+	 */
+	synchronized void addListener(RenderEventListener listener, boolean onAnimationThread){
+		removeListener(listener);
+		if (!onAnimationThread && executor==null)
+			executor=Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread=new Thread(runnable,"RenderEventDispatcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		subscriptions.add(new Subscription(listener,onAnimationThread));
+	}
+
+	/** Removes a listener. It may still receive an event that is being delivered.
+	 *
+	 * @param listener  The listener
+	 */
+	synchronized void removeListener(RenderEventListener listener){
+		for (Subscription subscription:subscriptions)
+			if (subscription.listener==listener)
+				subscriptions.remove(subscription);
+	}
+
+	/** Finds whether there are any listeners, so events need not be created if there are none
+	 *
+	 * @return  Whether there are any listeners
+	 */
+	boolean hasListeners(){
+		return !subscriptions.isEmpty();
+	}
+
+	/** Passes an event to all listeners, replacing any earlier event they have not yet received.
+	 * Never waits for listeners.
+	 *
+	 * @param event  The event
+	 */
+	void publish(RenderEvent event){
+		for (Subscription subscription:subscriptions){
+			subscription.latestEvent.set(event);
+			if (!subscription.onAnimationThread && subscription.isScheduled.compareAndSet(false,true))
+				executor.execute(subscription);
+		}
+	}
+
+	/** Delivers waiting events to the listeners that receive events on the animation thread.
+	 * Call from the animation thread.
+	 */
+	void deliverOnAnimationThread(){
+		for (Subscription subscription:subscriptions){
+			if (subscription.onAnimationThread){
+				RenderEvent event=subscription.latestEvent.getAndSet(null);
+				if (event!=null)
+					subscription.listener.renderEvent(event);
+			}
+		}
+	}
+
+	/** A listener and the latest event it has not yet received
+	 */
+	private static class Subscription implements Runnable{
+		RenderEventListener listener;
+		boolean onAnimationThread;
+		AtomicReference<RenderEvent> latestEvent=new AtomicReference<RenderEvent>();
+		AtomicBoolean isScheduled=new AtomicBoolean(false);  //whether delivery on the executor is due
+
+		Subscription(RenderEventListener listener, boolean onAnimationThread){
+			this.listener=listener;
+			this.onAnimationThread=onAnimationThread;
+		}
+
+		/** Delivers the latest event on the executor. Only one of these runs at a time for each
+		 * listener, so listeners do not receive events concurrently.
+		 */
+		public void run(){
+			while (true){
+				RenderEvent event=latestEvent.getAndSet(null);
+				if (event!=null){
+					try{
+						listener.renderEvent(event);
+					}
+					catch (RuntimeException e){
+						e.printStackTrace();
+					}
+				}
+				isScheduled.set(false);
+				//carry on if an event arrived during delivery and no other delivery has been scheduled
+				if (latestEvent.get()==null || !isScheduled.compareAndSet(false,true))
+					return;
+			}
+		}
+	}
+}
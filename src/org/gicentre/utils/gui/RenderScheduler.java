@@ -0,0 +1,230 @@
+package org.gicentre.utils.gui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**Shared scheduler for the threaded drawing of many ThreadedGraphicBuffers
+ *
+ * Without a scheduler, each ThreadedGraphicBuffer starts its own thread whenever it needs
+ * to redraw, so a sketch with many buffers can start many full renders at once. Buffers
+ * that are given the same RenderScheduler (using ThreadedGraphicBuffer.setRenderScheduler())
+ * have their renders queued instead. At most getMaxConcurrentRenders() renders take place
+ * at once, and the waiting renders with the highest priority are started first.
+ *
+ * Priority is taken from the buffer at the time a render is started: visible buffers come
+ * before hidden ones, then foreground buffers before background ones, then buffers with a
+ * higher priority weight (see ThreadedGraphicBuffer.setVisible(), setForeground() and
+ * setPriorityWeight()). Renders with the same priority are started in the order they were
+ * requested.
+ *
+ * Only the most recent render request for each buffer is kept. A new request replaces one
+ * that is still waiting, and cancels (interrupts) one that is already running.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class RenderScheduler {
+
+	private int maxConcurrentRenders;                  //global limit on the number of simultaneous renders
+	private List<RenderJob> pendingJobs=new ArrayList<RenderJob>();   //renders waiting to start
+	private Map<ThreadedGraphicBuffer,RenderJob> runningJobs=new HashMap<ThreadedGraphicBuffer, RenderJob>(); //renders in progress
+	private List<Thread> workers=new ArrayList<Thread>(); //threads that do the rendering
+	private long jobCount=0;                           //used to keep requests of equal priority in order
+	private boolean isShutdown=false;
+
+
+	/**Creates a scheduler that allows as many simultaneous renders as there are processors
+	 *
+	 */
+	public RenderScheduler(){
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**Creates a scheduler with a specific limit on the number of simultaneous renders
+	 *
+	 * @param maxConcurrentRenders  Maximum number of renders that can take place at once
+	 */
+	public RenderScheduler(int maxConcurrentRenders){
+		if (maxConcurrentRenders<1)
+			throw new IllegalArgumentException("At least one concurrent render is needed.");
+		this.maxConcurrentRenders=maxConcurrentRenders;
+		for (int i=0;i<maxConcurrentRenders;i++){
+			Thread worker=new Thread(new Worker(),"RenderScheduler-"+i);
+			worker.setDaemon(true);  //don't stop the sketch from exiting
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**Gets the maximum number of renders that can take place at once
+	 *
+	 * @return  Maximum number of simultaneous renders
+	 */
+	public int getMaxConcurrentRenders(){
+		return maxConcurrentRenders;
+	}
+
+	/**Gets the number of renders waiting to start
+	 *
+	 * @return  Number of waiting renders
+	 */
+	public synchronized int getNumPendingRenders(){
+		return pendingJobs.size();
+	}
+
+	/**Gets the number of renders in progress
+	 *
+	 * @return  Number of renders in progress
+	 */
+	public synchronized int getNumRunningRenders(){
+		return runningJobs.size();
+	}
+
+	/**Stops the scheduler. Waiting renders are discarded and those in progress are cancelled.
+	 *
+	 */
+	public synchronized void shutdown(){
+		isShutdown=true;
+		pendingJobs.clear();
+		for (RenderJob job:runningJobs.values())
+			job.worker.interrupt();
+		notifyAll();
+	}
+
+	/**Queues a render for a buffer, superseding any earlier request for the same buffer
+	 *
+	 * @param buffer  The buffer the render is for
+	 * @param task    The render itself
+	 */
+	synchronized void submit(ThreadedGraphicBuffer buffer, Runnable task){
+		if (isShutdown)
+			throw new IllegalStateException("RenderScheduler has been shut down.");
+		cancel(buffer);
+		pendingJobs.add(new RenderJob(buffer,task,jobCount++));
+		notifyAll();
+	}
+
+	/**Removes any waiting render for a buffer and cancels any render in progress
+	 *
+	 * @param buffer  The buffer whose renders should be cancelled
+	 */
+	synchronized void cancel(ThreadedGraphicBuffer buffer){
+		Iterator<RenderJob> it=pendingJobs.iterator();
+		while (it.hasNext()){
+			if (it.next().buffer==buffer)
+				it.remove();
+		}
+		RenderJob runningJob=runningJobs.get(buffer);
+		if (runningJob!=null && !runningJob.isCancelled){
+			runningJob.isCancelled=true;
+			runningJob.worker.interrupt();
+		}
+	}
+
+	/**Waits for and removes the highest priority render that can be started. Renders for a
+	 * buffer that already has a render in progress are left until that one has finished.
+	 *
+	 * @return  The render to start, or null if the scheduler has been shut down
+	 * @throws InterruptedException
+	 */
+	private synchronized RenderJob takeJob() throws InterruptedException{
+		while (!isShutdown){
+			RenderJob bestJob=null;
+			for (RenderJob job:pendingJobs){
+				if (!runningJobs.containsKey(job.buffer) && (bestJob==null || job.hasPriorityOver(bestJob)))
+					bestJob=job;
+			}
+			if (bestJob!=null){
+				pendingJobs.remove(bestJob);
+				bestJob.worker=Thread.currentThread();
+				runningJobs.put(bestJob.buffer,bestJob);
+				return bestJob;
+			}
+			wait();
+		}
+		return null;
+	}
+
+	/**Records that a render has finished, allowing others to start
+	 *
+	 * @param job  The finished render
+	 */
+	private synchronized void jobFinished(RenderJob job){
+		if (runningJobs.get(job.buffer)==job)
+			runningJobs.remove(job.buffer);
+		//clear the interrupt so that it does not affect the next render on this thread
+		Thread.interrupted();
+		notifyAll();
+	}
+
+	/** A render request for a particular buffer
+	 */
+	private static class RenderJob{
+		ThreadedGraphicBuffer buffer;
+		Runnable task;
+		long order;
+		Thread worker=null;        //set when the render starts
+		boolean isCancelled=false;
+
+		RenderJob(ThreadedGraphicBuffer buffer, Runnable task, long order){
+			this.buffer=buffer;
+			this.task=task;
+			this.order=order;
+		}
+
+		/**Whether this render should be started before another one
+		 */
+		boolean hasPriorityOver(RenderJob other){
+			if (buffer.isVisible()!=other.buffer.isVisible())
+				return buffer.isVisible();
+			if (buffer.isForeground()!=other.buffer.isForeground())
+				return buffer.isForeground();
+			if (buffer.getPriorityWeight()!=other.buffer.getPriorityWeight())
+				return buffer.getPriorityWeight()>other.buffer.getPriorityWeight();
+			return order<other.order;
+		}
+	}
+
+	/** Takes renders from the queue and runs them, until the scheduler is shut down
+	 */
+	private class Worker implements Runnable{
+		public void run(){
+			while (true){
+				RenderJob job;
+				try{
+					job=takeJob();
+				}
+				catch (InterruptedException e){
+					return;
+				}
+				if (job==null)
+					return;
+				try{
+					job.task.run();
+				}
+				catch (RuntimeException e){
+					//don't let one failed render stop this thread from doing others
+					e.printStackTrace();
+				}
+				finally{
+					jobFinished(job);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.gicentre.utils.gui;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+import processing.core.PVector;
+
+/** Maps original (world) coordinates to pixels in a buffer's canvas for a particular zoom/pan
+ * state, without creating a PVector for every point. Used by layers that write pixels directly.
+ * 
+ * Assumes that zooming and panning only scale and translate, so the mapping is found from two
+ * points and then applied as x*scaleX+offsetX (and the same for y).
+ * 
+ * Also keeps the viewport being drawn by a thread that only draws part of the view (e.g. a tile
+ * of a poster, or the area newly exposed by panning), which buffers' getViewPort() returns
+ * instead of the whole view when called from that thread.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+final class ScreenMapping {
+
+	final double scaleX, scaleY;     //canvas pixels per original unit
+	final double offsetX, offsetY;   //canvas pixel position of the original origin
+	final int width, height;         //size of the canvas in pixels
+	
+	private static final ThreadLocal<Rectangle2D> partialViewPort=new ThreadLocal<Rectangle2D>(); //viewport being drawn by this thread, if only part of the view
+	
+	private ScreenMapping(double scaleX, double scaleY, double offsetX, double offsetY, int width, int height){
+		this.scaleX=scaleX;
+		this.scaleY=scaleY;
+		this.offsetX=offsetX;
+		this.offsetY=offsetY;
+		this.width=width;
+		this.height=height;
+	}
+	
+	/** Creates the mapping to a canvas's pixels, including the transformation already set up on
+	 * the canvas (e.g. the buffer's offset, or the scaling used when exporting a poster). The
+	 * canvas should not yet have been transformed by the zoom/pan state.
+	 * 
+	 * @param zoomPanState  The zoom/pan state (null if no ZoomPan is used)
+	 * @param canvas  The canvas
+	 * @return  The mapping
+	 */
+	static ScreenMapping forCanvas(ZoomPanState zoomPanState, PGraphics canvas){
+		//original coordinates to screen coordinates...
+		ScreenMapping screen=new ScreenMapping(zoomPanState,new Rectangle(0,0,canvas.width,canvas.height));
+		//...then screen coordinates to canvas pixels
+		AffineTransform transform=new AffineTransform();
+		if (canvas instanceof PGraphicsJava2D && ((PGraphicsJava2D)canvas).g2!=null)
+			transform=((PGraphicsJava2D)canvas).g2.getTransform();
+		return new ScreenMapping(screen.scaleX*transform.getScaleX(),screen.scaleY*transform.getScaleY(),
+				screen.offsetX*transform.getScaleX()+transform.getTranslateX(),screen.offsetY*transform.getScaleY()+transform.getTranslateY(),
+				canvas.width,canvas.height);
+	}
+	
+	/** Creates the mapping for a canvas that covers the given screen bounds
+	 * 
+	 * @param zoomPanState  The zoom/pan state (null if no ZoomPan is used, in which case original
+	 *                      coordinates are screen coordinates)
+	 * @param screenBounds  Screen bounds of the canvas
+	 */
+	ScreenMapping(ZoomPanState zoomPanState, Rectangle screenBounds){
+		if (zoomPanState==null){
+			scaleX=1;
+			scaleY=1;
+			offsetX=-screenBounds.x;
+			offsetY=-screenBounds.y;
+		}
+		else{
+			PVector p0=zoomPanState.getCoordToDisp(new PVector(0,0));
+			PVector p1=zoomPanState.getCoordToDisp(new PVector(1,1));
+			scaleX=p1.x-p0.x;
+			scaleY=p1.y-p0.y;
+			offsetX=p0.x-screenBounds.x;
+			offsetY=p0.y-screenBounds.y;
+		}
+		width=screenBounds.width;
+		height=screenBounds.height;
+	}
+	
+	/** Finds the viewport in original coordinates of an area of the screen
+	 * 
+	 * @param zoomPanState  The zoom/pan state (null if no ZoomPan is used, in which case original
+	 *                      coordinates are screen coordinates)
+	 * @param screenArea  The screen area
+	 * @return  The viewport
+	 */
+	static Rectangle2D getViewPort(ZoomPanState zoomPanState, Rectangle2D screenArea){
+		if (zoomPanState==null)
+			return new Rectangle2D.Double(screenArea.getX(),screenArea.getY(),screenArea.getWidth(),screenArea.getHeight());
+		//Find the coordinates of the top left and bottom right corners
+		PVector topLeft=zoomPanState.getDispToCoord(new PVector((float)screenArea.getMinX(),(float)screenArea.getMinY()));
+		PVector bottomRight=zoomPanState.getDispToCoord(new PVector((float)screenArea.getMaxX(),(float)screenArea.getMaxY()));
+		return new Rectangle2D.Float(topLeft.x,topLeft.y,bottomRight.x-topLeft.x,bottomRight.y-topLeft.y);
+	}
+	
+	/** Sets the viewport the calling thread is drawing, when it only draws part of the view
+	 * 
+	 * @param viewPort  The viewport (null when drawing the whole view again)
+	 */
+	static void setPartialViewPort(Rectangle2D viewPort){
+		if (viewPort==null)
+			partialViewPort.remove();
+		else
+			partialViewPort.set(viewPort);
+	}
+	
+	/** Gets the viewport the calling thread is drawing, if it only draws part of the view
+	 * 
+	 * @return  A copy of the viewport (null if drawing the whole view)
+	 */
+	static Rectangle2D getPartialViewPort(){
+		Rectangle2D viewPort=partialViewPort.get();
+		return viewPort==null?null:(Rectangle2D)viewPort.clone();
+	}
+	
+	/** Finds the canvas pixel column of an original x coordinate (may be outside the canvas) 
+	 */
+	double toCanvasX(double x){
+		return x*scaleX+offsetX;
+	}
+
+	/** Finds the canvas pixel row of an original y coordinate (may be outside the canvas) 
+	 */
+	double toCanvasY(double y){
+		return y*scaleY+offsetY;
+	}
+}
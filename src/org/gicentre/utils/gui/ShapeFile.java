@@ -0,0 +1,543 @@
+package org.gicentre.utils.gui;
+
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+
+/** Compact binary file of shapes (ellipses, rectangles, polygons and polylines with fill and stroke
+ * colours) that is memory-mapped rather than loaded.
+ *
+ * Creating one Java object per shape at startup takes a long time and a lot of memory with
+ * millions of shapes. A ShapeFile is instead written once (using ShapeFile.Writer) and then
+ * opened by memory-mapping its columns (bounds, fill colours, stroke colours, shape types and
+ * geometry), so opening is almost instant and the data do not take up heap space. Shapes are read
+ * with a Cursor, which can be limited to those in a viewport and/or a partition (for
+ * PartitionedThreadedDraw), and which can draw the current shape.
+ *
+ * Coordinates are floats in original coordinates. A fill or stroke colour that is completely
+ * transparent means no fill or no stroke. An open ShapeFile can be read from any number of
+ * threads at once, each with its own Cursor. The geometry of all the polygons and polylines
+ * together is limited to 2GB (about 268 million vertices), and a file can have up to about 134
+ * million shapes, as each column is mapped in one piece.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see
+ * http://www.gnu.org/licenses/.
+ */
+
+public class ShapeFile {
+
+	/** Shape type of an ellipse, given by its bounds */
+	public static final byte ELLIPSE=0;
+	/** Shape type of a rectangle, given by its bounds */
+	public static final byte RECTANGLE=1;
+	/** Shape type of a polygon, given by its vertices */
+	public static final byte POLYGON=2;
+	/** Shape type of a polyline, given by its vertices */
+	public static final byte POLYLINE=3;
+
+	private static final int MAGIC=0x67435366;      //identifies shape files
+	private static final int FORMAT_VERSION=1;
+	private static final int HEADER_SIZE=4+4+4+8+4*4;
+	//each column is mapped in one piece, and a mapping cannot be more than Integer.MAX_VALUE bytes
+	private static final long MAX_COORDS=Integer.MAX_VALUE/4;  //4 bytes per coordinate
+	private static final int MAX_SHAPES=Integer.MAX_VALUE/16;  //16 bytes of bounds per shape
+
+	private int numShapes;
+	private Rectangle2D bounds;            //bounds of all the shapes
+	private FloatBuffer shapeBounds;       //minX,minY,maxX,maxY of each shape
+	private IntBuffer fillColours;         //fill colour of each shape
+	private IntBuffer strokeColours;       //stroke colour of each shape
+	private IntBuffer geometryOffsets;     //index of each shape's first coordinate (numShapes+1 of these)
+	private ByteBuffer types;              //type of each shape
+	private FloatBuffer coords;            //interleaved vertex coordinates of polygons and polylines
+
+	/** Opens a shape file by memory-mapping it
+	 *
+	 * @param file  The shape file (written by ShapeFile.Writer)
+	 * @throws IOException  If the file cannot be read or is not a shape file
+	 */
+	public ShapeFile(File file) throws IOException{
+		FileInputStream in=new FileInputStream(file);
+		try{
+			FileChannel channel=in.getChannel();
+			ByteBuffer header=channel.map(FileChannel.MapMode.READ_ONLY,0,HEADER_SIZE);
+			if (header.getInt()!=MAGIC || header.getInt()!=FORMAT_VERSION)
+				throw new IOException(file+" is not a shape file.");
+			numShapes=header.getInt();
+			long numCoords=header.getLong();
+			float minX=header.getFloat(),minY=header.getFloat(),maxX=header.getFloat(),maxY=header.getFloat();
+			bounds=new Rectangle2D.Float(minX,minY,maxX-minX,maxY-minY);
+			if (numShapes<0 || numShapes>MAX_SHAPES || numCoords<0 || numCoords>MAX_COORDS)
+				throw new IOException(file+" has too many shapes or vertices to be mapped.");
+			if (channel.size()!=fileSize(numShapes,numCoords))
+				throw new IOException(file+" is incomplete.");
+
+			//map each column separately, so that no one mapping is too large
+			long position=HEADER_SIZE;
+			shapeBounds=channel.map(FileChannel.MapMode.READ_ONLY,position,numShapes*16L).asFloatBuffer();
+			position+=numShapes*16L;
+			fillColours=channel.map(FileChannel.MapMode.READ_ONLY,position,numShapes*4L).asIntBuffer();
+			position+=numShapes*4L;
+			strokeColours=channel.map(FileChannel.MapMode.READ_ONLY,position,numShapes*4L).asIntBuffer();
+			position+=numShapes*4L;
+			geometryOffsets=channel.map(FileChannel.MapMode.READ_ONLY,position,(numShapes+1)*4L).asIntBuffer();
+			position+=(numShapes+1)*4L;
+			types=channel.map(FileChannel.MapMode.READ_ONLY,position,numShapes);
+			position+=padToInt(numShapes);
+			coords=channel.map(FileChannel.MapMode.READ_ONLY,position,numCoords*4).asFloatBuffer();
+		}
+		finally{
+			//mappings remain valid after the channel is closed
+			in.close();
+		}
+	}
+
+	/** Finds the size of a shape file's columns, with the type column padded to a whole number of ints
+	 */
+	private static long fileSize(int numShapes, long numCoords){
+		return HEADER_SIZE+numShapes*16L+numShapes*4L+numShapes*4L+(numShapes+1)*4L+padToInt(numShapes)+numCoords*4;
+	}
+
+	private static long padToInt(long numBytes){
+		return (numBytes+3)/4*4;
+	}
+
+	/** Gets the number of shapes
+	 *
+	 * @return  Number of shapes
+	 */
+	public int getNumShapes(){
+		return numShapes;
+	}
+
+	/** Gets the bounds of all the shapes
+	 *
+	 * @return  Bounds in original coordinates
+	 */
+	public Rectangle2D getBounds(){
+		return (Rectangle2D)bounds.clone();
+	}
+
+	/** Creates a cursor over all the shapes
+	 *
+	 * @return  The cursor, positioned before the first shape
+	 */
+	public Cursor cursor(){
+		return new Cursor(null,0,numShapes);
+	}
+
+	/** Creates a cursor over the shapes whose bounds intersect a viewport
+	 *
+	 * @param viewPort  The viewport in original coordinates (e.g. ThreadedGraphicBuffer.getViewPort()),
+	 *                  or null for all shapes
+	 * @return  The cursor, positioned before the first shape
+	 */
+	public Cursor cursor(Rectangle2D viewPort){
+		return new Cursor(viewPort,0,numShapes);
+	}
+
+	/** Creates a cursor over one partition of the shapes whose bounds intersect a viewport, for
+	 * use in PartitionedThreadedDraw. Partitions are consecutive ranges of shapes, so drawing them
+	 * in partition order draws shapes in file order.
+	 *
+	 * @param viewPort  The viewport in original coordinates, or null for all shapes
+	 * @param partition  The partition, from 0 to numPartitions-1
+	 * @param numPartitions  The number of partitions
+	 * @return  The cursor, positioned before the first shape
+	 */
+	public Cursor cursor(Rectangle2D viewPort, int partition, int numPartitions){
+		return new Cursor(viewPort,(int)((long)numShapes*partition/numPartitions),(int)((long)numShapes*(partition+1)/numPartitions));
+	}
+
+	/** Reads shapes from a ShapeFile without creating an object for each. Call next() to move to
+	 * each shape in turn, then use the getters or draw(). A cursor should only be used by one thread.
+	 */
+	public class Cursor{
+		private float minX,minY,maxX,maxY;   //viewport (if filtered)
+		private boolean isFiltered;
+		private int index;                   //current shape
+		private int end;                     //index after the last shape
+
+		private Cursor(Rectangle2D viewPort, int start, int end){
+			this.isFiltered=viewPort!=null;
+			if (isFiltered){
+				minX=(float)viewPort.getMinX();
+				minY=(float)viewPort.getMinY();
+				maxX=(float)viewPort.getMaxX();
+				maxY=(float)viewPort.getMaxY();
+			}
+			this.index=start-1;
+			this.end=end;
+		}
+
+		/** Moves to the next shape
+		 *
+		 * @return  Whether there is another shape (false when the end has been reached)
+		 */
+		public boolean next(){
+			while (++index<end){
+				if (!isFiltered)
+					return true;
+				int i=index*4;
+				if (shapeBounds.get(i)<=maxX && shapeBounds.get(i+2)>=minX && shapeBounds.get(i+1)<=maxY && shapeBounds.get(i+3)>=minY)
+					return true;
+			}
+			index=end;
+			return false;
+		}
+
+		/** Gets the position of the current shape in the file
+		 *
+		 * @return  Index of the shape
+		 */
+		public int getIndex(){
+			return index;
+		}
+
+		/** Gets the type of the current shape
+		 *
+		 * @return  ELLIPSE, RECTANGLE, POLYGON or POLYLINE
+		 */
+		public byte getType(){
+			return types.get(index);
+		}
+
+		/** Gets the left of the current shape's bounds
+		 *
+		 * @return  X in original coordinates
+		 */
+		public float getX(){
+			return shapeBounds.get(index*4);
+		}
+
+		/** Gets the top of the current shape's bounds
+		 *
+		 * @return  Y in original coordinates
+		 */
+		public float getY(){
+			return shapeBounds.get(index*4+1);
+		}
+
+		/** Gets the width of the current shape's bounds
+		 *
+		 * @return  Width in original coordinates
+		 */
+		public float getWidth(){
+			return shapeBounds.get(index*4+2)-shapeBounds.get(index*4);
+		}
+
+		/** Gets the height of the current shape's bounds
+		 *
+		 * @return  Height in original coordinates
+		 */
+		public float getHeight(){
+			return shapeBounds.get(index*4+3)-shapeBounds.get(index*4+1);
+		}
+
+		/** Gets the fill colour of the current shape
+		 *
+		 * @return  ARGB colour (completely transparent for no fill)
+		 */
+		public int getFillColour(){
+			return fillColours.get(index);
+		}
+
+		/** Gets the stroke colour of the current shape
+		 *
+		 * @return  ARGB colour (completely transparent for no stroke)
+		 */
+		public int getStrokeColour(){
+			return strokeColours.get(index);
+		}
+
+		/** Gets the number of vertices of the current shape (0 for ellipses and rectangles)
+		 *
+		 * @return  Number of vertices
+		 */
+		public int getNumVertices(){
+			return (geometryOffsets.get(index+1)-geometryOffsets.get(index))/2;
+		}
+
+		/** Gets the x coordinate of one of the current shape's vertices
+		 *
+		 * @param vertex  The vertex, from 0 to getNumVertices()-1
+		 * @return  X in original coordinates
+		 */
+		public float getVertexX(int vertex){
+			return coords.get(geometryOffsets.get(index)+vertex*2);
+		}
+
+		/** Gets the y coordinate of one of the current shape's vertices
+		 *
+		 * @param vertex  The vertex, from 0 to getNumVertices()-1
+		 * @return  Y in original coordinates
+		 */
+		public float getVertexY(int vertex){
+			return coords.get(geometryOffsets.get(index)+vertex*2+1);
+		}
+
+		/** Draws the current shape with its fill and stroke colours. The zoom/pan transformation
+		 * should already have been applied to the canvas. Other styles (such as the stroke weight)
+		 * are those of the canvas.
+		 *
+		 * @param canvas  The canvas to draw to
+		 */
+		public void draw(PGraphics canvas){
+			byte type=getType();
+			int fillColour=getFillColour();
+			int strokeColour=getStrokeColour();
+			if (type==POLYLINE || fillColour>>>24==0)
+				canvas.noFill();
+			else
+				canvas.fill(fillColour);
+			if (strokeColour>>>24==0)
+				canvas.noStroke();
+			else
+				canvas.stroke(strokeColour);
+
+			if (type==ELLIPSE){
+				int oldEllipseMode=canvas.ellipseMode;
+				canvas.ellipseMode(PConstants.CORNER);
+				canvas.ellipse(getX(),getY(),getWidth(),getHeight());
+				canvas.ellipseMode(oldEllipseMode);
+			}
+			else if (type==RECTANGLE){
+				int oldRectMode=canvas.rectMode;
+				canvas.rectMode(PConstants.CORNER);
+				canvas.rect(getX(),getY(),getWidth(),getHeight());
+				canvas.rectMode(oldRectMode);
+			}
+			else{
+				int start=geometryOffsets.get(index);
+				int stop=geometryOffsets.get(index+1);
+				canvas.beginShape();
+				for (int i=start;i<stop;i+=2)
+					canvas.vertex(coords.get(i),coords.get(i+1));
+				if (type==POLYGON)
+					canvas.endShape(PConstants.CLOSE);
+				else
+					canvas.endShape();
+			}
+		}
+	}
+
+	/** Writes a shape file. Add the shapes in drawing order, then call close(). Vertex coordinates
+	 * are written to a temporary file as they are added, so that only a few numbers per shape are
+	 * kept in memory while writing.
+	 */
+	public static class Writer{
+		private File file;
+		private File coordsFile;                 //temporary file for the geometry column
+		private DataOutputStream coordsOut;
+		private long numCoords=0;
+		private int numShapes=0;
+		private float[] shapeBounds=new float[1024*4];
+		private int[] fillColours=new int[1024];
+		private int[] strokeColours=new int[1024];
+		private int[] geometryOffsets=new int[1025];
+		private byte[] types=new byte[1024];
+		private float minX=Float.MAX_VALUE,minY=Float.MAX_VALUE,maxX=-Float.MAX_VALUE,maxY=-Float.MAX_VALUE;
+
+		/** Starts writing a shape file
+		 *
+		 * @param file  File to write to
+		 * @throws IOException
+		 */
+		public Writer(File file) throws IOException{
+			this.file=file;
+			File directory=file.getAbsoluteFile().getParentFile();
+			coordsFile=File.createTempFile("shapes",".tmp",directory);
+			coordsOut=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(coordsFile),1<<16));
+		}
+
+		/** Adds an ellipse
+		 *
+		 * @param x  Left of the ellipse's bounds
+		 * @param y  Top of the ellipse's bounds
+		 * @param w  Width of the ellipse
+		 * @param h  Height of the ellipse
+		 * @param fillColour  ARGB fill colour (completely transparent for no fill)
+		 * @param strokeColour  ARGB stroke colour (completely transparent for no stroke)
+		 */
+		public void addEllipse(float x, float y, float w, float h, int fillColour, int strokeColour){
+			addShape(ELLIPSE,x,y,x+w,y+h,fillColour,strokeColour);
+		}
+
+		/** Adds a rectangle
+		 *
+		 * @param x  Left of the rectangle
+		 * @param y  Top of the rectangle
+		 * @param w  Width of the rectangle
+		 * @param h  Height of the rectangle
+		 * @param fillColour  ARGB fill colour (completely transparent for no fill)
+		 * @param strokeColour  ARGB stroke colour (completely transparent for no stroke)
+		 */
+		public void addRectangle(float x, float y, float w, float h, int fillColour, int strokeColour){
+			addShape(RECTANGLE,x,y,x+w,y+h,fillColour,strokeColour);
+		}
+
+		/** Adds a polygon
+		 *
+		 * @param vertices  Interleaved vertex coordinates (x0,y0,x1,y1,...)
+		 * @param fillColour  ARGB fill colour (completely transparent for no fill)
+		 * @param strokeColour  ARGB stroke colour (completely transparent for no stroke)
+		 * @throws IOException
+		 */
+		public void addPolygon(float[] vertices, int fillColour, int strokeColour) throws IOException{
+			addVertices(POLYGON,vertices,fillColour,strokeColour);
+		}
+
+		/** Adds a polyline
+		 *
+		 * @param vertices  Interleaved vertex coordinates (x0,y0,x1,y1,...)
+		 * @param strokeColour  ARGB stroke colour
+		 * @throws IOException
+		 */
+		public void addPolyline(float[] vertices, int strokeColour) throws IOException{
+			addVertices(POLYLINE,vertices,0,strokeColour);
+		}
+
+		private void addVertices(byte type, float[] vertices, int fillColour, int strokeColour) throws IOException{
+			if (vertices.length<2 || vertices.length%2!=0)
+				throw new IllegalArgumentException("Vertices must be pairs of coordinates.");
+			checkCanAddShape();
+			if (numCoords+vertices.length>MAX_COORDS)
+				throw new IllegalStateException("Too many vertices for one shape file.");
+			float shapeMinX=vertices[0],shapeMinY=vertices[1],shapeMaxX=vertices[0],shapeMaxY=vertices[1];
+			for (int i=0;i<vertices.length;i+=2){
+				shapeMinX=Math.min(shapeMinX,vertices[i]);
+				shapeMaxX=Math.max(shapeMaxX,vertices[i]);
+				shapeMinY=Math.min(shapeMinY,vertices[i+1]);
+				shapeMaxY=Math.max(shapeMaxY,vertices[i+1]);
+				coordsOut.writeFloat(vertices[i]);
+				coordsOut.writeFloat(vertices[i+1]);
+			}
+			numCoords+=vertices.length;
+			addShape(type,shapeMinX,shapeMinY,shapeMaxX,shapeMaxY,fillColour,strokeColour);
+		}
+
+		/** Checks that another shape can be added, before anything is written for it
+		 */
+		private void checkCanAddShape(){
+			if (coordsOut==null)
+				throw new IllegalStateException("The shape file has been closed.");
+			if (numShapes==MAX_SHAPES)
+				throw new IllegalStateException("Too many shapes for one shape file.");
+		}
+
+		private void addShape(byte type, float shapeMinX, float shapeMinY, float shapeMaxX, float shapeMaxY, int fillColour, int strokeColour){
+			checkCanAddShape();
+			if (numShapes==types.length){
+				int newSize=(int)Math.min((long)types.length*2,MAX_SHAPES);
+				float[] newBounds=new float[newSize*4];
+				System.arraycopy(shapeBounds,0,newBounds,0,numShapes*4);
+				shapeBounds=newBounds;
+				int[] newFills=new int[newSize];
+				System.arraycopy(fillColours,0,newFills,0,numShapes);
+				fillColours=newFills;
+				int[] newStrokes=new int[newSize];
+				System.arraycopy(strokeColours,0,newStrokes,0,numShapes);
+				strokeColours=newStrokes;
+				int[] newOffsets=new int[newSize+1];
+				System.arraycopy(geometryOffsets,0,newOffsets,0,numShapes+1);
+				geometryOffsets=newOffsets;
+				byte[] newTypes=new byte[newSize];
+				System.arraycopy(types,0,newTypes,0,numShapes);
+				types=newTypes;
+			}
+			shapeBounds[numShapes*4]=shapeMinX;
+			shapeBounds[numShapes*4+1]=shapeMinY;
+			shapeBounds[numShapes*4+2]=shapeMaxX;
+			shapeBounds[numShapes*4+3]=shapeMaxY;
+			fillColours[numShapes]=fillColour;
+			strokeColours[numShapes]=strokeColour;
+			types[numShapes]=type;
+			numShapes++;
+			geometryOffsets[numShapes]=(int)numCoords;
+			minX=Math.min(minX,shapeMinX);
+			minY=Math.min(minY,shapeMinY);
+			maxX=Math.max(maxX,shapeMaxX);
+			maxY=Math.max(maxY,shapeMaxY);
+		}
+
+		/** Writes the shape file. No more shapes can be added.
+		 *
+		 * @throws IOException
+		 */
+		public void close() throws IOException{
+			if (coordsOut==null)
+				return;
+			coordsOut.close();
+			coordsOut=null;
+			if (numShapes==0)
+				minX=minY=maxX=maxY=0;
+
+			RandomAccessFile out=new RandomAccessFile(file,"rw");
+			try{
+				out.setLength(0);
+				FileChannel channel=out.getChannel();
+				ByteBuffer buffer=ByteBuffer.allocate((int)(fileSize(numShapes,0)));
+				buffer.putInt(MAGIC);
+				buffer.putInt(FORMAT_VERSION);
+				buffer.putInt(numShapes);
+				buffer.putLong(numCoords);
+				buffer.putFloat(minX);
+				buffer.putFloat(minY);
+				buffer.putFloat(maxX);
+				buffer.putFloat(maxY);
+				buffer.asFloatBuffer().put(shapeBounds,0,numShapes*4);
+				buffer.position(buffer.position()+numShapes*16);
+				buffer.asIntBuffer().put(fillColours,0,numShapes);
+				buffer.position(buffer.position()+numShapes*4);
+				buffer.asIntBuffer().put(strokeColours,0,numShapes);
+				buffer.position(buffer.position()+numShapes*4);
+				buffer.asIntBuffer().put(geometryOffsets,0,numShapes+1);
+				buffer.position(buffer.position()+(numShapes+1)*4);
+				buffer.put(types,0,numShapes);
+				buffer.rewind();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+
+				//append the geometry column
+				channel.position(fileSize(numShapes,0));
+				FileInputStream coordsIn=new FileInputStream(coordsFile);
+				try{
+					FileChannel coordsChannel=coordsIn.getChannel();
+					long transferred=0;
+					while (transferred<coordsChannel.size())
+						transferred+=channel.transferFrom(coordsChannel,fileSize(numShapes,0)+transferred,coordsChannel.size()-transferred);
+				}
+				finally{
+					coordsIn.close();
+				}
+			}
+			finally{
+				out.close();
+				coordsFile.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package org.gicentre.utils.gui;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PGraphics;
+
+/** Draws one dataset in many views (small multiples), each with its own ThreadedGraphicBuffer
+ * and ZoomPan. Without this, each view's threadedDraw() goes through the whole dataset to find
+ * what it shows. Here, the items are put into a grid index once, and the items shown in each
+ * view are found in a single pass over the index that routes each item to every view whose
+ * viewport it intersects. The views are then drawn in parallel by their own buffers.
+ * 
+ * Add each view with addView() and give its buffer the ThreadedDraw returned by getViewDraw().
+ * The first view to draw after the data have changed also routes the items for the other views
+ * that are out of date, using the viewport each last drew, so they can draw straight away if
+ * their viewports have not changed. Call setDataChanged() when the items or their bounds change.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class SmallMultiplesRenderer {
+
+	private MultiViewDraw multiViewDraw;
+	private List<View> views=new ArrayList<View>();
+	
+	//grid index of the items' bounds
+	private int indexVersion=0;         //increases when the data changes
+	private boolean isIndexBuilt=false;
+	private int numItems;
+	private float[] itemMinX,itemMinY,itemMaxX,itemMaxY;
+	private double gridMinX,gridMinY;   //origin of the grid in original coordinates
+	private double cellWidth,cellHeight;
+	private int numCols,numRows;
+	private int[] cellStart;            //start of each cell's items in cellItems (with one extra at the end)
+	private int[] cellItems;            //items in each cell, cell after cell
+	private int numRoutingPasses=0;
+	
+	/** Creates a renderer for a dataset
+	 * 
+	 * @param multiViewDraw  The dataset, which draws its items
+	 */
+	public SmallMultiplesRenderer(MultiViewDraw multiViewDraw){
+		this.multiViewDraw=multiViewDraw;
+	}
+	
+	/** Adds a view
+	 * 
+	 * @param screenBounds  Screen bounds of the view's buffer
+	 * @return  Index of the view, passed to drawItem()
+	 */
+	public synchronized int addView(Rectangle screenBounds){
+		views.add(new View(views.size(),screenBounds));
+		return views.size()-1;
+	}
+	
+	/** Sets the screen bounds of a view, if its buffer's screen bounds were changed
+	 * 
+	 * @param view  The view
+	 * @param screenBounds  Screen bounds of the view's buffer
+	 */
+	public synchronized void setViewScreenBounds(int view, Rectangle screenBounds){
+		views.get(view).screenBounds=screenBounds;
+	}
+	
+	/** Gets the ThreadedDraw to give to a view's ThreadedGraphicBuffer
+	 * 
+	 * @param view  The view
+	 * @return  ThreadedDraw that draws the view's items
+	 */
+	public synchronized ThreadedDraw getViewDraw(int view){
+		return views.get(view);
+	}
+	
+	/** Gets the number of views
+	 * 
+	 * @return  Number of views
+	 */
+	public synchronized int getNumViews(){
+		return views.size();
+	}
+	
+	/** Indicates that the items or their bounds have changed, so the index is rebuilt before the
+	 * next draw. The views' buffers also need to be told to redraw.
+	 */
+	public synchronized void setDataChanged(){
+		isIndexBuilt=false;
+		indexVersion++;
+	}
+	
+	/** Gets the number of passes over the index made to route items to views, which is useful
+	 * for checking that views are sharing passes
+	 * 
+	 * @return  Number of routing passes
+	 */
+	public synchronized int getNumRoutingPasses(){
+		return numRoutingPasses;
+	}
+	
+	/** Finds the items a view shows, routing items for all out-of-date views if necessary
+	 * 
+	 * @param view  The view
+	 * @param zoomPanState  The zoom/pan state the view is drawing (null if it does not zoom or pan)
+	 * @return  The items
+	 */
+	private synchronized int[] getItems(View view, ZoomPanState zoomPanState){
+		Rectangle2D viewPort=ScreenMapping.getViewPort(zoomPanState,view.screenBounds);
+		view.drawnViewPort=viewPort;
+		if (!isIndexBuilt)
+			buildIndex();
+		if (view.isRoutedFor(viewPort,indexVersion))
+			return view.items;
+		
+		//route for this view and for any others that are out of date, using the viewports they
+		//last drew (not their ZoomPans, which the sketch may be changing)
+		List<View> staleViews=new ArrayList<View>();
+		List<Rectangle2D> staleViewPorts=new ArrayList<Rectangle2D>();
+		staleViews.add(view);
+		staleViewPorts.add(viewPort);
+		for (View otherView:views){
+			Rectangle2D otherViewPort=otherView.drawnViewPort;
+			if (otherView==view || otherViewPort==null)
+				continue;
+			if (!otherView.isRoutedFor(otherViewPort,indexVersion)){
+				staleViews.add(otherView);
+				staleViewPorts.add(otherViewPort);
+			}
+		}
+		route(staleViews,staleViewPorts);
+		return view.items;
+	}
+	
+	/** Builds the grid index of the items' bounds
+	 */
+	private void buildIndex(){
+		numItems=multiViewDraw.getNumItems();
+		itemMinX=new float[numItems];
+		itemMinY=new float[numItems];
+		itemMaxX=new float[numItems];
+		itemMaxY=new float[numItems];
+		double minX=Double.MAX_VALUE,minY=Double.MAX_VALUE,maxX=-Double.MAX_VALUE,maxY=-Double.MAX_VALUE;
+		for (int i=0;i<numItems;i++){
+			Rectangle2D bounds=multiViewDraw.getItemBounds(i);
+			itemMinX[i]=(float)bounds.getMinX();
+			itemMinY[i]=(float)bounds.getMinY();
+			itemMaxX[i]=(float)bounds.getMaxX();
+			itemMaxY[i]=(float)bounds.getMaxY();
+			minX=Math.min(minX,itemMinX[i]);
+			minY=Math.min(minY,itemMinY[i]);
+			maxX=Math.max(maxX,itemMaxX[i]);
+			maxY=Math.max(maxY,itemMaxY[i]);
+		}
+		if (numItems==0){
+			minX=0;
+			minY=0;
+			maxX=1;
+			maxY=1;
+		}
+		
+		//aim for about 8 items per cell
+		int numCells=Math.max(1,Math.min(numItems/8,1024*1024));
+		numCols=Math.max(1,(int)Math.sqrt(numCells));
+		numRows=Math.max(1,numCells/numCols);
+		gridMinX=minX;
+		gridMinY=minY;
+		cellWidth=Math.max(maxX-minX,Double.MIN_VALUE)/numCols;
+		cellHeight=Math.max(maxY-minY,Double.MIN_VALUE)/numRows;
+		
+		//count the items in each cell, then fill in the cells
+		cellStart=new int[numCols*numRows+1];
+		for (int i=0;i<numItems;i++)
+			for (int row=getRow(itemMinY[i]);row<=getRow(itemMaxY[i]);row++)
+				for (int col=getCol(itemMinX[i]);col<=getCol(itemMaxX[i]);col++)
+					cellStart[row*numCols+col+1]++;
+		for (int cell=0;cell<numCols*numRows;cell++)
+			cellStart[cell+1]+=cellStart[cell];
+		cellItems=new int[cellStart[numCols*numRows]];
+		int[] cellFill=Arrays.copyOf(cellStart,numCols*numRows);
+		for (int i=0;i<numItems;i++)
+			for (int row=getRow(itemMinY[i]);row<=getRow(itemMaxY[i]);row++)
+				for (int col=getCol(itemMinX[i]);col<=getCol(itemMaxX[i]);col++)
+					cellItems[cellFill[row*numCols+col]++]=i;
+		isIndexBuilt=true;
+	}
+	
+	/** Finds the grid column of an x coordinate (clamped to the grid) 
+	 */
+	private int getCol(double x){
+		return Math.max(0,Math.min(numCols-1,(int)Math.floor((x-gridMinX)/cellWidth)));
+	}
+
+	/** Finds the grid row of a y coordinate (clamped to the grid) 
+	 */
+	private int getRow(double y){
+		return Math.max(0,Math.min(numRows-1,(int)Math.floor((y-gridMinY)/cellHeight)));
+	}
+	
+	/** Routes items to views in a single pass over the cells that any of the viewports cover
+	 * 
+	 * @param routedViews  Views to route items to
+	 * @param viewPorts  The views' viewports
+	 */
+	private void route(List<View> routedViews, List<Rectangle2D> viewPorts){
+		numRoutingPasses++;
+		int numViews=routedViews.size();
+		int[] minCol=new int[numViews],maxCol=new int[numViews],minRow=new int[numViews],maxRow=new int[numViews];
+		int[][] viewItems=new int[numViews][];
+		int[] numViewItems=new int[numViews];
+		BitSet[] isAdded=new BitSet[numViews];  //items can be in several cells
+		int passMinCol=numCols,passMaxCol=-1,passMinRow=numRows,passMaxRow=-1;
+		for (int v=0;v<numViews;v++){
+			Rectangle2D viewPort=viewPorts.get(v);
+			minCol[v]=getCol(viewPort.getMinX());
+			maxCol[v]=getCol(viewPort.getMaxX());
+			minRow[v]=getRow(viewPort.getMinY());
+			maxRow[v]=getRow(viewPort.getMaxY());
+			passMinCol=Math.min(passMinCol,minCol[v]);
+			passMaxCol=Math.max(passMaxCol,maxCol[v]);
+			passMinRow=Math.min(passMinRow,minRow[v]);
+			passMaxRow=Math.max(passMaxRow,maxRow[v]);
+			viewItems[v]=new int[64];
+			isAdded[v]=new BitSet(numItems);
+		}
+		
+		int[] cellViews=new int[numViews];
+		for (int row=passMinRow;row<=passMaxRow;row++){
+			for (int col=passMinCol;col<=passMaxCol;col++){
+				//views that cover this cell
+				int numCellViews=0;
+				for (int v=0;v<numViews;v++)
+					if (col>=minCol[v] && col<=maxCol[v] && row>=minRow[v] && row<=maxRow[v])
+						cellViews[numCellViews++]=v;
+				if (numCellViews==0)
+					continue;
+				int cell=row*numCols+col;
+				for (int j=cellStart[cell];j<cellStart[cell+1];j++){
+					int item=cellItems[j];
+					for (int k=0;k<numCellViews;k++){
+						int v=cellViews[k];
+						if (isAdded[v].get(item))
+							continue;
+						Rectangle2D viewPort=viewPorts.get(v);
+						if (itemMaxX[item]>=viewPort.getMinX() && itemMinX[item]<=viewPort.getMaxX()
+								&& itemMaxY[item]>=viewPort.getMinY() && itemMinY[item]<=viewPort.getMaxY()){
+							isAdded[v].set(item);
+							if (numViewItems[v]==viewItems[v].length)
+								viewItems[v]=Arrays.copyOf(viewItems[v],viewItems[v].length*2);
+							viewItems[v][numViewItems[v]++]=item;
+						}
+					}
+				}
+			}
+		}
+		
+		for (int v=0;v<numViews;v++){
+			//draw in the dataset's order, as a full scan would
+			int[] items=Arrays.copyOf(viewItems[v],numViewItems[v]);
+			Arrays.sort(items);
+			routedViews.get(v).setRouted(viewPorts.get(v),indexVersion,items);
+		}
+	}
+	
+	/** One view, which is also the ThreadedDraw for its buffer
+	 */
+	private class View implements ThreadedDraw{
+		int index;
+		Rectangle screenBounds;
+		Rectangle2D drawnViewPort=null;   //viewport the view last drew (null if it has not drawn)
+		Rectangle2D routedViewPort=null;  //viewport the items were routed for
+		int routedIndexVersion=-1;
+		int[] items=null;                 //items the view shows
+		
+		View(int index, Rectangle screenBounds){
+			this.index=index;
+			this.screenBounds=screenBounds;
+		}
+		
+		boolean isRoutedFor(Rectangle2D viewPort, int version){
+			return items!=null && routedIndexVersion==version && viewPort.equals(routedViewPort);
+		}
+		
+		void setRouted(Rectangle2D viewPort, int version, int[] items){
+			this.routedViewPort=viewPort;
+			this.routedIndexVersion=version;
+			this.items=items;
+		}
+		
+		public void threadedDraw(PGraphics canvas, ZoomPanState zoomPanState, Object drawData){
+			int[] viewItems=getItems(this,zoomPanState);
+			for (int i=0;i<viewItems.length;i++){
+				if ((i&0xff)==0 && Thread.currentThread().isInterrupted())
+					return;
+				multiViewDraw.drawItem(canvas,zoomPanState,drawData,viewItems[i],index);
+			}
+		}
+	}
+}
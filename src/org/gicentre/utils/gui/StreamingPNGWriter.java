@@ -0,0 +1,156 @@
+package org.gicentre.utils.gui;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/** Writes a PNG image one row at a time, so that images far too large to hold in memory can be
+ * written. Rows of ARGB pixels (as used by Processing) must be written from top to bottom.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+class StreamingPNGWriter {
+
+	private static final byte[] SIGNATURE={(byte)0x89,'P','N','G','\r','\n',0x1a,'\n'};
+	private static final int MAX_CHUNK_SIZE=1<<16;   //size of IDAT chunks
+	
+	private DataOutputStream out;             //the file
+	private DeflaterOutputStream compressedOut; //compresses image data into IDAT chunks
+	private Deflater deflater;
+	private int width,height;
+	private int rowsWritten=0;
+	private byte[] row;                        //current row (filter type followed by RGBA bytes)
+	private byte[] previousRow;                //previous row (unfiltered), for the Sub filter
+	
+	/** Starts writing a PNG image
+	 * 
+	 * @param out  Where to write it
+	 * @param width  Width of the image in pixels
+	 * @param height  Height of the image in pixels
+	 * @throws IOException
+	 */
+	StreamingPNGWriter(OutputStream out, int width, int height) throws IOException{
+		this.out=new DataOutputStream(out);
+		this.width=width;
+		this.height=height;
+		this.row=new byte[1+width*4];
+		this.previousRow=new byte[width*4];
+		
+		this.out.write(SIGNATURE);
+		ByteArrayOutputStream header=new ByteArrayOutputStream();
+		DataOutputStream headerData=new DataOutputStream(header);
+		headerData.writeInt(width);
+		headerData.writeInt(height);
+		headerData.writeByte(8);  //bit depth
+		headerData.writeByte(6);  //colour type: RGBA
+		headerData.writeByte(0);  //compression: deflate
+		headerData.writeByte(0);  //filtering: adaptive
+		headerData.writeByte(0);  //no interlacing
+		writeChunk("IHDR",header.toByteArray(),header.size());
+		
+		deflater=new Deflater(Deflater.DEFAULT_COMPRESSION);
+		compressedOut=new DeflaterOutputStream(new ChunkOutputStream(),deflater,MAX_CHUNK_SIZE);
+	}
+	
+	/** Writes the next row of the image
+	 * 
+	 * @param pixels  ARGB pixels
+	 * @param offset  Index of the first pixel of the row in pixels
+	 * @throws IOException
+	 */
+	void writeRow(int[] pixels, int offset) throws IOException{
+		if (rowsWritten>=height)
+			throw new IOException("All rows of the image have already been written.");
+		//convert to RGBA, using the Sub filter (difference from the pixel to the left) which 
+		//compresses much better than no filter for typical graphics
+		row[0]=1;
+		for (int i=0;i<width;i++){
+			int argb=pixels[offset+i];
+			int j=i*4;
+			previousRow[j]=(byte)(argb>>16);
+			previousRow[j+1]=(byte)(argb>>8);
+			previousRow[j+2]=(byte)argb;
+			previousRow[j+3]=(byte)(argb>>>24);
+		}
+		for (int j=0;j<width*4;j++)
+			row[j+1]=(byte)(previousRow[j]-(j>=4?previousRow[j-4]:0));
+		compressedOut.write(row);
+		rowsWritten++;
+	}
+	
+	/** Finishes the image. All rows must have been written.
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException{
+		if (rowsWritten!=height)
+			throw new IOException("Only "+rowsWritten+" of "+height+" rows have been written.");
+		compressedOut.finish();
+		compressedOut.flush();
+		deflater.end();
+		writeChunk("IEND",new byte[0],0);
+		out.flush();
+	}
+	
+	/** Writes a PNG chunk
+	 */
+	private void writeChunk(String type, byte[] data, int length) throws IOException{
+		byte[] typeBytes=type.getBytes("US-ASCII");
+		CRC32 crc=new CRC32();
+		crc.update(typeBytes);
+		crc.update(data,0,length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data,0,length);
+		out.writeInt((int)crc.getValue());
+	}
+	
+	/** Collects compressed image data and writes it out as IDAT chunks
+	 */
+	private class ChunkOutputStream extends OutputStream{
+		private byte[] buffer=new byte[MAX_CHUNK_SIZE];
+		private int size=0;
+		
+		public void write(int b) throws IOException {
+			buffer[size++]=(byte)b;
+			if (size==buffer.length)
+				flush();
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len>0){
+				int n=Math.min(len,buffer.length-size);
+				System.arraycopy(b,off,buffer,size,n);
+				size+=n;
+				off+=n;
+				len-=n;
+				if (size==buffer.length)
+					flush();
+			}
+		}
+		
+		public void flush() throws IOException {
+			if (size>0){
+				writeChunk("IDAT",buffer,size);
+				size=0;
+			}
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package org.gicentre.utils.gui;
+
+import org.gicentre.utils.move.ZoomPanState;
+
+import processing.core.PGraphics;
+
+/** Interface for classes that can draw new items on top of the existing content of a
+ * ThreadedGraphicBuffer, rather than redrawing everything. Used with
+ * ThreadedGraphicBuffer.append() for streaming data.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public interface ThreadedAppendDraw extends ThreadedDraw{
+
+	/** Code to draw a batch of new items onto a ThreadedGraphicBuffer in a different thread.
+	 * The canvas already contains the previously drawn content, so should not be cleared.
+	 * 
+	 * @param canvas  The PGraphics canvas to draw to
+	 * @param zoomPanState  The zoom/pan state the existing content was drawn with
+	 * @param appendData  The batch of new items, as passed to ThreadedGraphicBuffer.append() 
+	 */
+	public void threadedAppendDraw(PGraphics canvas,ZoomPanState zoomPanState,Object appendData);
+}
@@ -1,14 +1,27 @@
 package org.gicentre.utils.gui;
 
 
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.gicentre.utils.move.ZoomPanListener;
 import org.gicentre.utils.move.ZoomPan;
@@ -42,6 +55,10 @@ import processing.core.PVector;
  *   - Whilst it's drawing, the previous buffered image will be displayed. Use isDrawingInThread
  *     to find out whether it's being updated. You may like to use the BusyIcon to indicate this
  *   - use setUpdateFlag() to flag for redraw
+ *   - to use several processors for one buffer, implement PartitionedThreadedDraw and use
+ *     setNumPartitions()
+ *   - for streaming data, implement ThreadedAppendDraw and use append() to draw new items
+ *     on top of the existing content without a full redraw
  * 
  * As with GraphicBuffer, multiple ThreadedGraphical buffers can be used for mangagin groups (layers)
  * of graphical objects.
@@ -71,21 +88,63 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 	private PImage oldImage;                       //the buffered image
 	private PImage image;                       //the buffered image
 	private PApplet applet;						//the sketch 
-	private Rectangle screenBounds; 			//the bounds of the buffer (in screen coordinates)
-	private Rectangle2D boundsAtLastLastBuffer; 	//keeps track of the zoompan state at the last draw
+	private volatile Rectangle screenBounds; 	//the bounds of the buffer (in screen coordinates)
 	private Rectangle2D boundsAtLastBuffer; 	//keeps track of the zoompan state at the last draw
 	private ZoomPan zoomPan;
 	private boolean needToUpdate=true; 			//flag to update 
 	private ThreadedDraw threadedDrawToGraphicBuffer; //The class containing the draw code
 	private Thread thread=null;                 //The thread in which the drawing takes place
-	private boolean isDrawingInThread=false;    //indicates whether drawing on the on-screen buffer is taking place
+	private volatile boolean isDrawingInThread=false; //indicates whether drawing on the on-screen buffer is taking place
 	private int lastMouseX=-1;
 	private int lastMouseY=-1;
 	private Set<ThreadedGraphicBufferListener> listeners;
 	private boolean updateDuringZoomPan=false;
 	private boolean useFade=false;              //fade drawn image in       
-	private int tintValue=0;  					//amount of fade (if fading)
-	private int fadeIncrement;      			//
+	private int numFadeSteps=10;                //number of blended frames in a fade
+	private int fadeDuration=250;               //length of a fade in milliseconds
+	private PImage[] fadeFrames=null;           //blended frames of the current fade (null if not fading, guarded by publishLock)
+	private long fadeStartTime=-1;              //when the current fade started (-1 if not started, guarded by publishLock)
+	private PImage[] spareFadeFrames=null;      //frames that can be reused for the next fade
+	private RenderScheduler renderScheduler=null; //shared scheduler for threaded drawing (null if each draw has its own thread)
+	private volatile boolean visible=true;      //used to prioritise drawing when a RenderScheduler is used
+	private volatile boolean foreground=true;   //used to prioritise drawing when a RenderScheduler is used
+	private volatile float priorityWeight=1;    //used to prioritise drawing when a RenderScheduler is used
+	private List<Object> pendingAppends=new ArrayList<Object>(); //batches of new items waiting to be drawn over the existing content
+	private RenderCache renderCache=null;       //cache of drawn images (null if none used)
+	private long drawDataVersion=0;             //version of the data being drawn, for matching cached images
+	private long numAppends=0;                  //number of batches appended, for matching cached images (guarded by pendingAppends)
+	private VersionedData<?> versionedData=null; //data whose changes trigger an update (null if none)
+	private long drawnDataVersion=-1;           //version of versionedData when drawing last started
+	private int numPartitions=1;                //number of partitions of the data drawn in parallel
+	private ExecutorService partitionExecutor=null; //threads for drawing partitions (created when needed)
+	private boolean resumableRendering=false;   //whether completed partitions are kept for reuse by later renders
+	private KeptPartitions keptPartitions=null; //completed partitions from the last partitioned render (null if none)
+	private int keptPartitionsGeneration=0;     //increases whenever kept partitions become out of date (guarded by this)
+	private RenderEventDispatcher renderEvents=new RenderEventDispatcher(); //passes render events to listeners
+	private long frameCount=0;                  //number of renders requested, used for frame IDs
+	private volatile DrawInSeparateThread latestDrawTask=null; //the most recently requested render
+	private Object drawTaskLock=new Object();   //held while changing latestDrawTask and isDrawingInThread together
+	private Object publishLock=new Object();     //held while publishing a new image
+	private long publishedFrameId=-1;           //frame ID of the image being shown (guarded by publishLock)
+	private volatile int numPublished=0;        //number of images published
+	private volatile int numStalePublishes=0;   //number of images not published because a newer one already was
+	private AtomicInteger numRendersCompleted=new AtomicInteger(0); //number of threaded renders that finished
+	private AtomicInteger numRendersCancelled=new AtomicInteger(0); //number of threaded renders that were cancelled
+	private AtomicInteger numRendersFailed=new AtomicInteger(0); //number of threaded renders that failed
+	private boolean useAcceleratedImage=false;  //whether images are drawn from an accelerated copy
+	private BufferedImage acceleratedImage=null; //accelerated copy of image (null if not used, guarded by publishLock)
+	private BufferedImage spareAcceleratedImage=null; //accelerated image that can be reused for the next image
+	private PImage drawnImage=null;             //image draw() last took to show, which may still be on screen (guarded by publishLock)
+	private Rectangle2D drawnBounds=null;       //bounds of drawnImage (guarded by publishLock)
+	private PImage[] drawnFadeFrames=null;      //fade frames draw() last took to show (guarded by publishLock)
+	private BufferedImage drawnAcceleratedImage=null; //accelerated image draw() last took to show (guarded by publishLock)
+	private List<PImage> pinnedImages=new ArrayList<PImage>(); //images being faded from or saved, which must not be recycled (guarded by publishLock)
+	private Rectangle lastScreenBounds;         //copy of the screen bounds, to find whether they have changed
+	private long lastResizeTime=0;              //when the screen bounds were last changed
+	private int resizeDelay=200;                //milliseconds after resizing before drawing at the new size
+	private AnimationPrefetch animation=null;   //animation being played (null if none)
+	private boolean loopAnimation=true;         //whether animations start again at the beginning
+	private volatile RemoteRenderPool remoteRenderPool=null; //worker JVMs that draw instead of threadedDraw() (null if none)
 
 	private List<PGraphics> tempImages=Collections.synchronizedList(new ArrayList<PGraphics>());
 	private Set<PGraphics> tempImagesInUse=Collections.synchronizedSet(new HashSet<PGraphics>());
@@ -136,6 +195,7 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 	public ThreadedGraphicBuffer(PApplet applet,ZoomPan zoomPan,ThreadedDraw threadedDrawToGraphicBuffer, Rectangle screenBounds){
 		this.applet=applet;
 		this.screenBounds=screenBounds;
+		this.lastScreenBounds=new Rectangle(screenBounds);
 		this.zoomPan=zoomPan;
 		this.threadedDrawToGraphicBuffer=threadedDrawToGraphicBuffer;
 		
@@ -148,7 +208,7 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 		if (zoomPan!=null)
 			zoomPan.addZoomPanListener(this);
 		
-		this.listeners=new HashSet<ThreadedGraphicBufferListener>();
+		this.listeners=new CopyOnWriteArraySet<ThreadedGraphicBufferListener>();
 		
 	}
 
@@ -157,6 +217,78 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 		this.updateDuringZoomPan=updateDuringZoomPan;
 	}
 	
+	/**Sets a scheduler shared with other buffers, which limits how many buffers draw at once
+	 * and decides which draws first. Set to null to draw in a new thread each time (the default).
+	 * 
+	 * Any drawing in progress is cancelled, and the buffer is flagged for update.
+	 * 
+	 * @param renderScheduler  The shared scheduler, or null
+	 */
+	public void setRenderScheduler(RenderScheduler renderScheduler){
+		cancelThreadedDraw();
+		this.renderScheduler=renderScheduler;
+		setUpdateFlag();
+	}
+	
+	/**Gets the shared scheduler used for drawing
+	 * 
+	 * @return  The scheduler, or null if none is used
+	 */
+	public RenderScheduler getRenderScheduler(){
+		return renderScheduler;
+	}
+	
+	/**Sets whether this buffer is currently visible. Visible buffers are drawn before hidden
+	 * ones when a RenderScheduler is used.
+	 * 
+	 * @param visible
+	 */
+	public void setVisible(boolean visible){
+		this.visible=visible;
+	}
+	
+	/**Reports whether this buffer is marked as visible
+	 * 
+	 * @return
+	 */
+	public boolean isVisible(){
+		return visible;
+	}
+	
+	/**Sets whether this buffer is in the foreground. Foreground buffers are drawn before
+	 * background ones (of the same visibility) when a RenderScheduler is used.
+	 * 
+	 * @param foreground
+	 */
+	public void setForeground(boolean foreground){
+		this.foreground=foreground;
+	}
+	
+	/**Reports whether this buffer is marked as being in the foreground
+	 * 
+	 * @return
+	 */
+	public boolean isForeground(){
+		return foreground;
+	}
+	
+	/**Sets a weight that is used to order buffers of the same visibility and foreground
+	 * state when a RenderScheduler is used. Higher weights are drawn first. Default is 1.
+	 * 
+	 * @param priorityWeight
+	 */
+	public void setPriorityWeight(float priorityWeight){
+		this.priorityWeight=priorityWeight;
+	}
+	
+	/**Gets the priority weight
+	 * 
+	 * @return
+	 */
+	public float getPriorityWeight(){
+		return priorityWeight;
+	}
+	
 	/**Draws content
 	 * If flagged for update/redraw, the code in threadedDraw() will be run (incomplete threaded
 	 * drawing will be cancelled).
@@ -198,36 +330,94 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 	 * appropriately positioned and scaled.
 	 */
 	public void draw(ZoomPanState zoomPanState, Object drawData){
+		//pass on any render events to listeners that want them in the animation thread
+		renderEvents.deliverOnAnimationThread();
+		
+		//show the next animation frame if it is due (animations are not drawn on demand)
+		if (animation!=null)
+			animation.step(zoomPanState);
+		
+		//a view that differs from the one the existing content was drawn at needs a full redraw
+		//before any new items can be appended
+		if (!pendingAppends.isEmpty() && !isDrawingInThread && !isSameViewAsLastBuffer(zoomPanState)
+				&& (zoomPan==null || !(zoomPan.isPanning() || zoomPan.isZooming())))
+			needToUpdate=true;
 		if (needToUpdate()){
 			needToUpdate=false;   //reset
-			if (thread!=null){    //cancel existing threaded drawing
-				thread.interrupt();
-				isDrawingInThread=false;
+			if (versionedData!=null)
+				drawnDataVersion=versionedData.getVersion();
+			//the full redraw will include any items waiting to be appended
+			long localNumAppends;
+			synchronized (pendingAppends) {
+				pendingAppends.clear();
+				localNumAppends=numAppends;
 			}
-			thread=new Thread(new DrawInSeparateThread(zoomPanState,drawData,useFade)); //create a new thread, and a new runnable task which will call threadDraw()
-			thread.start(); //start this thread
+			DrawInSeparateThread drawTask=new DrawInSeparateThread(zoomPanState,drawData,useFade); //create a new runnable task which will call threadDraw()
+			//the drawing thread uses a cached image instead of drawing if there is one, so that
+			//decompressing and copying it does not hold up the sketch
+			if (renderCache!=null)
+				drawTask.cacheKey=RenderCache.createKey(zoomPanState==null?null:getViewPort(zoomPanState),screenBounds.width,screenBounds.height,getDrawDataVersion(),localNumAppends,drawData);
+			startThreadedDraw(drawTask);
 		}
-		//if no zoompan is used, just draw the buffer to the screen
-		if (boundsAtLastBuffer==null){
-			if (useFade){
-				applet.g.pushStyle();
-				if (tintValue<255){
-					applet.g.image(oldImage,screenBounds.x,screenBounds.y);
-				}
-				if (tintValue==255)
-					applet.g.noTint();
-				else
-					applet.g.tint(255,tintValue);
-				applet.g.image(image,screenBounds.x,screenBounds.y);
-				applet.g.popStyle();
-				if (tintValue<255)
-					tintValue+=fadeIncrement;
-				if (tintValue>255)
-					tintValue=255;
-			}
-			else{
-				applet.g.image(image,screenBounds.x,screenBounds.y);
+		else if (animation==null && !pendingAppends.isEmpty() && !isDrawingInThread && isSameViewAsLastBuffer(zoomPanState)){
+			//draw the new items over the existing content
+			List<Object> appendBatches;
+			synchronized (pendingAppends) {
+				appendBatches=new ArrayList<Object>(pendingAppends);
+				pendingAppends.clear();
 			}
+			startThreadedDraw(new DrawInSeparateThread(zoomPanState,appendBatches));
+		}
+		//take the published image and everything that goes with it together, so they all come
+		//from the same frame even if a new one is published while drawing
+		PImage localImage;
+		Rectangle2D localBounds;
+		PImage[] localFadeFrames;
+		BufferedImage localAcceleratedImage;
+		long localFadeStartTime;
+		synchronized (publishLock) {
+			localImage=image;
+			localBounds=boundsAtLastBuffer;
+			localFadeFrames=fadeFrames;
+			localAcceleratedImage=acceleratedImage;
+			if (localFadeFrames!=null && fadeStartTime<0)
+				fadeStartTime=System.currentTimeMillis();
+			localFadeStartTime=fadeStartTime;
+			//what was shown last time is off screen now, so anything publishImage() left for
+			//this to recycle can be
+			recycleDrawnImages();
+			drawnImage=localImage;
+			drawnBounds=localBounds;
+			drawnFadeFrames=localFadeFrames;
+			drawnAcceleratedImage=localAcceleratedImage;
+		}
+		
+		//if fading in a new image, find the blended frame for the time since the fade started
+		PImage imageToDraw=localImage;
+		if (localFadeFrames!=null){
+			long now=System.currentTimeMillis();
+			int frame=(int)((now-localFadeStartTime)*(localFadeFrames.length+1)/Math.max(1,fadeDuration));
+			if (frame<localFadeFrames.length)
+				imageToDraw=localFadeFrames[frame];
+		}
+		
+		//use the accelerated copy if there is one (not while fading)
+		BufferedImage acceleratedImageToDraw=null;
+		if (imageToDraw==localImage && applet.g instanceof PGraphicsJava2D && applet.g.imageMode==PConstants.CORNER)
+			acceleratedImageToDraw=localAcceleratedImage;
+		
+		//if no zoompan is used, just draw the buffer to the screen
+		if (localBounds==null){
+			//crop an image drawn before the buffer was resized
+			boolean isCropped=imageToDraw.width>screenBounds.width || imageToDraw.height>screenBounds.height;
+			if (isCropped)
+				startClipping();
+			if (acceleratedImageToDraw!=null)
+				AcceleratedImage.draw(((PGraphicsJava2D)applet.g).g2,acceleratedImageToDraw,screenBounds.x,screenBounds.y,imageToDraw.width,imageToDraw.height);
+			else
+				applet.g.image(imageToDraw,screenBounds.x,screenBounds.y);
+			if (isCropped)
+				stopClipping();
 		}
 		else{		
 			//otherwise work out how to scale it (with respect to the zoomstate on the last update)
@@ -239,45 +429,722 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 			PVector p1 = zoomPanState.getDispToCoord(new PVector((float)screenBounds.getMinX(),(float)screenBounds.getMinY()));
 			PVector p2 = zoomPanState.getDispToCoord(new PVector((float)screenBounds.getMaxX(),(float)screenBounds.getMaxY()));
 
-			float x=PApplet.map((float)boundsAtLastBuffer.getMinX(),p1.x,p2.x,(float)screenBounds.getMinX(),(float)screenBounds.getMaxX());
-			float y=PApplet.map((float)boundsAtLastBuffer.getMinY(),p1.y,p2.y,(float)screenBounds.getMinY(),(float)screenBounds.getMaxY());
-			float w=PApplet.map((float)boundsAtLastBuffer.getWidth(),0,p2.x-p1.x,0,(float)screenBounds.getWidth());
-			float h=PApplet.map((float)boundsAtLastBuffer.getHeight(),0,p2.y-p1.y,0,(float)screenBounds.getHeight());
-
-			if (useFade){
-				float x1=PApplet.map((float)boundsAtLastLastBuffer.getMinX(),p1.x,p2.x,(float)screenBounds.getMinX(),(float)screenBounds.getMaxX());
-				float y1=PApplet.map((float)boundsAtLastLastBuffer.getMinY(),p1.y,p2.y,(float)screenBounds.getMinY(),(float)screenBounds.getMaxY());
-				float w1=PApplet.map((float)boundsAtLastLastBuffer.getWidth(),0,p2.x-p1.x,0,(float)screenBounds.getWidth());
-				float h1=PApplet.map((float)boundsAtLastLastBuffer.getHeight(),0,p2.y-p1.y,0,(float)screenBounds.getHeight());
+			float x=PApplet.map((float)localBounds.getMinX(),p1.x,p2.x,(float)screenBounds.getMinX(),(float)screenBounds.getMaxX());
+			float y=PApplet.map((float)localBounds.getMinY(),p1.y,p2.y,(float)screenBounds.getMinY(),(float)screenBounds.getMaxY());
+			float w=PApplet.map((float)localBounds.getWidth(),0,p2.x-p1.x,0,(float)screenBounds.getWidth());
+			float h=PApplet.map((float)localBounds.getHeight(),0,p2.y-p1.y,0,(float)screenBounds.getHeight());
 
-				if (tintValue<255){
-					applet.g.image(oldImage,x1,y1,w1,h1);
-				}
-				applet.g.pushStyle();
-				if (tintValue<255){
-					applet.g.tint(255,tintValue);
+			if (acceleratedImageToDraw!=null)
+				AcceleratedImage.draw(((PGraphicsJava2D)applet.g).g2,acceleratedImageToDraw,x,y,w,h);
+			else
+				applet.g.image(imageToDraw,x,y,w,h);
+			
+			//stop clipping
+			stopClipping();
+		}
+//		System.out.println(tempImagesInUse.size()+"/"+tempImages.size());
+	}
+	
+	/** Starts a threaded drawing task, cancelling any that is in progress
+	 * 
+	 * @param drawTask  The drawing task
+	 */
+	private void startThreadedDraw(DrawInSeparateThread drawTask){
+		//a render that is still waiting will never start
+		DrawInSeparateThread previousDrawTask=latestDrawTask;
+		if (previousDrawTask!=null)
+			previousDrawTask.cancelIfNotStarted();
+		//the render counts as in progress as soon as it is requested
+		synchronized (drawTaskLock) {
+			latestDrawTask=drawTask;
+			isDrawingInThread=true;
+		}
+		if (renderScheduler!=null){
+			//queue the drawing - this supersedes any drawing for this buffer that is queued or in progress
+			renderScheduler.submit(this,drawTask);
+		}
+		else{
+			if (thread!=null)    //cancel existing threaded drawing
+				thread.interrupt();
+			thread=new Thread(drawTask); //create a new thread
+			thread.start(); //start this thread
+		}
+	}
+	
+	/** Cancels any threaded drawing that is queued or in progress
+	 */
+	private void cancelThreadedDraw(){
+		DrawInSeparateThread previousDrawTask=latestDrawTask;
+		if (previousDrawTask!=null)
+			previousDrawTask.cancelIfNotStarted();
+		if (renderScheduler!=null)
+			renderScheduler.cancel(this);
+		if (thread!=null){
+			thread.interrupt();
+			thread=null;
+		}
+		synchronized (drawTaskLock) {
+			isDrawingInThread=false;
+		}
+	}
+	
+	/** Records that a render has finished, unless a newer one has been requested since (a render
+	 * superseded by a newer one must not change the flag the newer one set)
+	 * 
+	 * @param drawTask  The render that finished
+	 */
+	private void finishedThreadedDraw(DrawInSeparateThread drawTask){
+		synchronized (drawTaskLock) {
+			if (latestDrawTask==drawTask)
+				isDrawingInThread=false;
+		}
+	}
+	
+	/** Makes a newly drawn image the one that is drawn, and informs listeners. Images are only
+	 * published in the order they were requested, so a render that finishes after a newer one
+	 * (e.g. one that missed being cancelled) is not shown.
+	 * 
+	 * @param frameId  Frame ID of the render that drew the image
+	 * @param newImage  The new image
+	 * @param newBounds  Bounds in original coordinates that the image was drawn at (null if no ZoomPan is used)
+	 * @param newFadeFrames  Blended frames to fade in the new image with (null if not fading)
+	 * @return  Whether the image was published (false if a newer one already has been)
+	 */
+	private boolean publishImage(long frameId, PImage newImage, Rectangle2D newBounds, PImage[] newFadeFrames){
+		return publishImage(frameId,newImage,newBounds,newFadeFrames,createAcceleratedImage(newImage));
+	}
+	
+	/** Makes a newly drawn image the one that is drawn, as publishImage() above, with an
+	 * accelerated copy already made by createAcceleratedImage().
+	 * 
+	 * @param newAcceleratedImage  Accelerated copy of the new image (null if not used)
+	 * @return  Whether the image was published (false if a newer one already has been)
+	 */
+	private boolean publishImage(long frameId, PImage newImage, Rectangle2D newBounds, PImage[] newFadeFrames, BufferedImage newAcceleratedImage){
+		synchronized (publishLock) {
+			if (frameId<publishedFrameId){
+				numStalePublishes++;
+				//what was made for the image can be reused for the next one
+				if (newFadeFrames!=null)
+					spareFadeFrames=newFadeFrames;
+				if (newAcceleratedImage!=null && useAcceleratedImage)
+					spareAcceleratedImage=newAcceleratedImage;
+				return false;
+			}
+			publishedFrameId=frameId;
+			numPublished++;
+			publishImage(newImage,newBounds,newFadeFrames,newAcceleratedImage);
+		}
+		return true;
+	}
+	
+	/** Makes the accelerated copy of an image before it is published, so that the copy is not
+	 * made with publishLock held (which would hold up draw()).
+	 * 
+	 * @param newImage  The image to be published
+	 * @return  The accelerated copy (null if not used)
+	 */
+	private BufferedImage createAcceleratedImage(PImage newImage){
+		BufferedImage spare;
+		synchronized (publishLock) {
+			if (!useAcceleratedImage)
+				return null;
+			spare=spareAcceleratedImage;
+			spareAcceleratedImage=null;
+		}
+		return AcceleratedImage.copy(newImage,spare);
+	}
+	
+	/** Makes an image the one that is drawn, and informs listeners. Called with publishLock held.
+	 */
+	private void publishImage(PImage newImage, Rectangle2D newBounds, PImage[] newFadeFrames, BufferedImage newAcceleratedImage){
+		//anything replaced here that draw() may still be drawing is recycled by draw() instead,
+		//once it has moved on to a newer image
+		boundsAtLastBuffer=newBounds;
+		//frames of the previous fade can be reused 
+		if (fadeFrames!=null && fadeFrames!=drawnFadeFrames)
+			spareFadeFrames=fadeFrames;
+		fadeStartTime=-1;
+		fadeFrames=newFadeFrames;
+		//keep the accelerated copy, and reuse the one from before the current one
+		if (useAcceleratedImage){
+			//only copied here if accelerated images were switched on after the copy would have been made
+			if (newAcceleratedImage==null)
+				newAcceleratedImage=AcceleratedImage.copy(newImage,null);
+			if (acceleratedImage!=drawnAcceleratedImage)
+				spareAcceleratedImage=acceleratedImage;
+			acceleratedImage=newAcceleratedImage;
+		}
+		if (oldImage!=drawnImage && !pinnedImages.contains(oldImage)){
+			synchronized (tempImagesInUse) {
+				tempImagesInUse.remove(oldImage);
+			}
+		}
+		oldImage=image;
+		image=newImage;
+		//inform listeners that imagine is ready
+		for (ThreadedGraphicBufferListener threadedGraphicBufferListener:listeners)
+			threadedGraphicBufferListener.newBufferedImageAvailable();
+	}
+	
+	/** Recycles whatever draw() last showed, if it has been replaced since. Called by draw() with
+	 * publishLock held, before it takes the latest image to show.
+	 */
+	private void recycleDrawnImages(){
+		if (drawnImage!=null && drawnImage!=image && drawnImage!=oldImage && !pinnedImages.contains(drawnImage)){
+			synchronized (tempImagesInUse) {
+				tempImagesInUse.remove(drawnImage);
+			}
+		}
+		if (drawnFadeFrames!=null && drawnFadeFrames!=fadeFrames)
+			spareFadeFrames=drawnFadeFrames;
+		if (drawnAcceleratedImage!=null && drawnAcceleratedImage!=acceleratedImage && useAcceleratedImage)
+			spareAcceleratedImage=drawnAcceleratedImage;
+	}
+	
+	/** Creates the blended frames for fading from the image on screen to a new one. The image on
+	 * screen is the one draw() last showed, which is not necessarily the last one published, as
+	 * images published between calls to draw() are never seen. It is first lined up with the new
+	 * one, in case the view has changed. Called in the drawing thread. publishLock is only held to
+	 * find the image on screen and pin it (so that it is not recycled while being faded from);
+	 * the blending is done without it, into frames that only this thread uses, so draw() is not
+	 * held up.
+	 * 
+	 * @param frameId  Frame ID of the render that drew the new image
+	 * @param newImage  The new image
+	 * @param newBounds  Bounds in original coordinates that the new image was drawn at (null if no ZoomPan is used)
+	 * @return  The blended frames, in order (null if the new image will not be published or if interrupted)
+	 */
+	private PImage[] createFadeFrames(long frameId, PImage newImage, Rectangle2D newBounds){
+		int width=newImage.width;
+		int height=newImage.height;
+		PImage fromImage;
+		Rectangle2D fromBounds;
+		PImage[] frames;
+		synchronized (publishLock) {
+			//no need to fade an image that will be discarded as older than the one shown
+			if (frameId<=publishedFrameId)
+				return null;
+			fromImage=image;
+			fromBounds=boundsAtLastBuffer;
+			if (drawnImage!=null){
+				fromImage=drawnImage;
+				fromBounds=drawnBounds;
+			}
+			pinnedImages.add(fromImage);
+			//reuse the frames of an earlier fade if possible
+			frames=spareFadeFrames;
+			spareFadeFrames=null;
+		}
+		PGraphics fadeCanvas=getPooledCanvas(width,height);
+		try{
+			//draw the image on screen where it would appear in the new one
+			fadeCanvas.beginDraw();
+			fadeCanvas.background(0,0);
+			if (fromBounds==null || newBounds==null)
+				fadeCanvas.image(fromImage,0,0,width,height);
+			else{
+				float x=PApplet.map((float)fromBounds.getMinX(),(float)newBounds.getMinX(),(float)newBounds.getMaxX(),0,width);
+				float y=PApplet.map((float)fromBounds.getMinY(),(float)newBounds.getMinY(),(float)newBounds.getMaxY(),0,height);
+				float w=PApplet.map((float)fromBounds.getWidth(),0,(float)newBounds.getWidth(),0,width);
+				float h=PApplet.map((float)fromBounds.getHeight(),0,(float)newBounds.getHeight(),0,height);
+				fadeCanvas.image(fromImage,x,y,w,h);
+			}
+			fadeCanvas.endDraw();
+		}
+		finally{
+			unpinImage(fromImage);
+		}
+		try{
+			fadeCanvas.loadPixels();
+			newImage.loadPixels();
+			
+			//blend
+			if (frames==null || frames.length!=numFadeSteps-1 || (frames.length>0 && (frames[0].width!=width || frames[0].height!=height))){
+				frames=new PImage[numFadeSteps-1];
+				for (int i=0;i<frames.length;i++)
+					frames[i]=applet.createImage(width,height,PConstants.ARGB);
+			}
+			for (int i=0;i<frames.length;i++){
+				frames[i].loadPixels();
+				AlphaBlend.crossFade(fadeCanvas.pixels,newImage.pixels,frames[i].pixels,(i+1)*256/numFadeSteps);
+				frames[i].updatePixels();
+				if (Thread.currentThread().isInterrupted())
+					return null;
+			}
+			return frames;
+		}
+		finally{
+			releasePooledCanvas(fadeCanvas);
+		}
+	}
+	
+	/** Stops an image being pinned by createFadeFrames(), recycling it if it was replaced
+	 * while pinned
+	 * 
+	 * @param pinnedImage  The image
+	 */
+	private void unpinImage(PImage pinnedImage){
+		synchronized (publishLock) {
+			pinnedImages.remove(pinnedImage);
+			if (!pinnedImages.contains(pinnedImage) && pinnedImage!=image && pinnedImage!=oldImage && pinnedImage!=drawnImage){
+				synchronized (tempImagesInUse) {
+					tempImagesInUse.remove(pinnedImage);
 				}
-				else{
-					applet.g.noTint();
+			}
+		}
+	}
+	
+	/** Gets a free canvas from the pool, creating one if there are none of the right size
+	 * 
+	 * @param width  Width of the canvas
+	 * @param height  Height of the canvas
+	 * @return  The canvas, which is in use until released
+	 */
+	private PGraphics getPooledCanvas(int width, int height){
+		PGraphics localBufferImage=null;
+		synchronized (tempImages) {
+			Iterator<PGraphics> it = tempImages.iterator();
+			while (it.hasNext() && localBufferImage==null){
+				PGraphics image=it.next();
+				if (tempImagesInUse.contains(image))
+					continue;
+				if (image.width!=width || image.height!=height){
+					//discard free canvases of the wrong size (e.g. after resizing)
+					it.remove();
 				}
-				applet.g.image(image,x,y,w,h);
-				applet.g.popStyle();
-				
-//				image.get().save("/Users/sbbb717/Desktop/temp/sdssd_"+applet.frameCount+".png");
-				
-				if (tintValue<255)
-					tintValue+=fadeIncrement;
-				if (tintValue>255)
-					tintValue=255;
+				else
+					localBufferImage=image;
+			}
+			if (localBufferImage==null){
+				localBufferImage=applet.createGraphics(width,height,PApplet.JAVA2D);
+				tempImages.add(localBufferImage);
+			}
+			tempImagesInUse.add(localBufferImage);
+		}
+		return localBufferImage;
+	}
+	
+	/** Returns a canvas to the pool, so it can be reused
+	 * 
+	 * @param canvas  The canvas
+	 */
+	private void releasePooledCanvas(PGraphics canvas){
+		synchronized (tempImagesInUse) {
+			tempImagesInUse.remove(canvas);
+		}
+	}
+	
+	/** Finds whether the existing content was drawn with the same view as a zoom/pan state 
+	 * 
+	 * @param zoomPanState  The zoom/pan state to compare with (may be null if no ZoomPan is used)
+	 * @return Whether the view is the same
+	 */
+	private boolean isSameViewAsLastBuffer(ZoomPanState zoomPanState){
+		Rectangle2D localBounds;
+		synchronized (publishLock) {
+			localBounds=boundsAtLastBuffer;
+		}
+		if (zoomPanState==null || localBounds==null)
+			return zoomPanState==null && localBounds==null;
+		return localBounds.equals(getViewPort(zoomPanState));
+	}
+	
+	/** Appends a batch of new items, which will be drawn on top of the existing content by
+	 * threadedAppendDraw() the next time this is drawn, without clearing it. This means the cost
+	 * of an update depends on the size of the batch, not on everything drawn so far.
+	 * 
+	 * The ThreadedDraw given to this buffer must implement ThreadedAppendDraw. Batches are drawn
+	 * in the order they were appended. If the view has changed since the existing content was
+	 * drawn, or the update flag is set, a full redraw with threadedDraw() takes place instead,
+	 * so threadedDraw() must also draw all appended items. 
+	 * 
+	 * @param appendData  The batch of new items, which will be passed to threadedAppendDraw()
+	 */
+	public void append(Object appendData){
+		if (!(threadedDrawToGraphicBuffer instanceof ThreadedAppendDraw))
+			throw new IllegalStateException("The ThreadedDraw must implement ThreadedAppendDraw to append.");
+		synchronized (pendingAppends) {
+			pendingAppends.add(appendData);
+			numAppends++;
+		}
+		//kept partitions do not have the new items
+		discardKeptPartitions();
+	}
+	
+	/** Saves the buffered image to a file, so that it can be shown as soon as the sketch next
+	 * starts (see loadSnapshot()). Usually called when the sketch is closed.
+	 * 
+	 * @param file  File to save to
+	 * @param dataKey  Identifies the data that has been drawn (e.g. a hash of the data file), so
+	 *                 that the snapshot is only used when the same data is to be drawn
+	 * @return  Whether the snapshot was saved (false if nothing has been drawn yet)
+	 * @throws IOException
+	 */
+	public boolean saveSnapshot(File file, long dataKey) throws IOException{
+		PImage localImage;
+		Rectangle2D localBounds;
+		synchronized (publishLock) {
+			if (publishedFrameId<0)
+				return false;
+			localImage=image;
+			localBounds=boundsAtLastBuffer;
+			//pin the image so that it is not reused for drawing while its pixels are saved
+			pinnedImages.add(localImage);
+		}
+		try{
+			BufferSnapshot.save(file,dataKey,localImage,localBounds,zoomPan);
+		}
+		finally{
+			unpinImage(localImage);
+		}
+		return true;
+	}
+	
+	/** Loads an image saved by saveSnapshot(), if the file exists, was saved with the same data key
+	 * and is the same size as this buffer.
+	 * 
+	 * @param file  File to load from
+	 * @param dataKey  Identifies the data that is to be drawn
+	 * @return  Whether the snapshot was loaded
+	 * @throws IOException
+	 */
+	public boolean loadSnapshot(File file, long dataKey) throws IOException{
+		return loadSnapshot(file,dataKey,false);
+	}
+	
+	/** Loads an image saved by saveSnapshot(), if the file exists, was saved with the same data key
+	 * and is the same size as this buffer.
+	 * 
+	 * The snapshot is shown straight away, and is replaced when the content has been drawn
+	 * (drawing still takes place).
+	 * 
+	 * @param file  File to load from
+	 * @param dataKey  Identifies the data that is to be drawn
+	 * @param restoreView  Whether to set the ZoomPan to the view that was saved
+	 * @return  Whether the snapshot was loaded
+	 * @throws IOException
+	 */
+	public boolean loadSnapshot(File file, long dataKey, boolean restoreView) throws IOException{
+		Rectangle localScreenBounds=screenBounds;
+		PImage newImage=applet.createImage(localScreenBounds.width,localScreenBounds.height,PConstants.ARGB);
+		newImage.loadPixels();
+		BufferSnapshot snapshot=BufferSnapshot.load(file,dataKey,localScreenBounds.width,localScreenBounds.height,newImage.pixels);
+		if (snapshot==null)
+			return false;
+		newImage.updatePixels();
+		if (restoreView && zoomPan!=null)
+			snapshot.restoreView(zoomPan);
+		//a render requested before the snapshot was loaded would be discarded as older than it, so
+		//cancel it and draw again after the snapshot is shown
+		cancelThreadedDraw();
+		publishImage(nextFrameId(),newImage,snapshot.bounds,null);
+		setUpdateFlag();
+		return true;
+	}
+	
+	/** Sets whether to keep a copy of each new image in the form that Java2D draws fastest
+	 * (premultiplied ARGB, compatible with the screen), and draw that straight to the sketch's
+	 * Graphics2D. This makes draw() quicker, which helps when there are many layers, but needs
+	 * memory for two extra images. Only used with the JAVA2D renderer. Default is false.
+	 * 
+	 * @param useAcceleratedImage  Whether to draw from an accelerated copy
+	 */
+	public void setUseAcceleratedImage(boolean useAcceleratedImage){
+		synchronized (publishLock) {
+			this.useAcceleratedImage=useAcceleratedImage;
+			if (useAcceleratedImage)
+				acceleratedImage=AcceleratedImage.copy(image,null);
+			else{
+				acceleratedImage=null;
+				spareAcceleratedImage=null;
+			}
+		}
+	}
+	
+	/** Gets whether a copy of each new image is kept in the form that Java2D draws fastest
+	 * 
+	 * @return  Whether to draw from an accelerated copy
+	 */
+	public boolean isUseAcceleratedImage(){
+		return useAcceleratedImage;
+	}
+	
+	/** Sets the number of partitions the data is split into and drawn in parallel. The
+	 * ThreadedDraw must implement PartitionedThreadedDraw to use more than one partition.
+	 * Default is 1 (no partitioning).
+	 * 
+	 * Each partition is drawn on a separate canvas and these are combined in partition order, so
+	 * the result looks the same as drawing everything in one thread. This uses several processors
+	 * when all the data is in view, which dividing the screen into tiles would not help with.
+	 * 
+	 * If drawing a partition throws an exception, the render is not shown and render event
+	 * listeners are told it FAILED.
+	 * 
+	 * @param numPartitions  Number of partitions (usually the number of processors)
+	 */
+	public void setNumPartitions(int numPartitions){
+		if (numPartitions<1)
+			throw new IllegalArgumentException("At least one partition is needed.");
+		if (numPartitions>1 && !(threadedDrawToGraphicBuffer instanceof PartitionedThreadedDraw))
+			throw new IllegalStateException("The ThreadedDraw must implement PartitionedThreadedDraw to use partitions.");
+		synchronized (this) {
+			if (partitionExecutor!=null && numPartitions!=this.numPartitions){
+				partitionExecutor.shutdown();
+				partitionExecutor=null;
+			}
+			this.numPartitions=numPartitions;
+		}
+		setUpdateFlag();
+	}
+	
+	/** Gets the number of partitions the data is split into and drawn in parallel
+	 * 
+	 * @return  Number of partitions
+	 */
+	public int getNumPartitions(){
+		return numPartitions;
+	}
+	
+	/** Sets a pool of worker JVMs to draw in, instead of calling threadedDraw() in this JVM. The
+	 * workers draw with their own RemoteDraw, which is told the drawData passed to draw() as a
+	 * String (using toString()). Appending and animation still use threadedDraw().
+	 * 
+	 * If the workers cannot draw a render (e.g. because they have stopped), it is not shown and
+	 * render event listeners are told it FAILED.
+	 * 
+	 * @param remoteRenderPool  The pool (null to draw in this JVM)
+	 */
+	public void setRemoteRenderPool(RemoteRenderPool remoteRenderPool){
+		this.remoteRenderPool=remoteRenderPool;
+		setUpdateFlag();
+	}
+	
+	/** Gets the pool of worker JVMs that draws instead of threadedDraw()
+	 * 
+	 * @return  The pool (null if none)
+	 */
+	public RemoteRenderPool getRemoteRenderPool(){
+		return remoteRenderPool;
+	}
+	
+	/** Plays an animation, where each frame is drawn with a different drawData (e.g. successive time
+	 * steps). Rather than drawing each frame when it is needed, the next few frames are drawn ahead
+	 * in separate threads, so playback is smooth as long as drawing keeps up on average. If the next
+	 * frame is not ready when it is due, the current one stays until it is.
+	 * 
+	 * Frames drawn ahead are discarded when the view changes (zooming, panning or resizing), and
+	 * drawn again once zooming or panning has finished. While animating, the drawData passed to
+	 * draw() is not used and the update flag is ignored. Several frames may be drawn at once, so
+	 * threadedDraw() must be safe to call from several threads at the same time.
+	 * 
+	 * @param drawDataSequence  drawData for each frame, in order
+	 * @param framesPerSecond  Rate at which frames are shown
+	 * @param numPrefetch  Number of frames to draw ahead
+	 */
+	public void startAnimation(List<?> drawDataSequence, float framesPerSecond, int numPrefetch){
+		if (drawDataSequence.isEmpty())
+			throw new IllegalArgumentException("An animation needs at least one frame.");
+		if (framesPerSecond<=0 || numPrefetch<1)
+			throw new IllegalArgumentException("The frame rate and number of frames to draw ahead must be positive.");
+		stopAnimation();
+		cancelThreadedDraw();
+		animation=new AnimationPrefetch(new ArrayList<Object>(drawDataSequence),framesPerSecond,numPrefetch);
+	}
+	
+	/** Stops playing an animation. Drawing on demand (using the drawData passed to draw())
+	 * starts again.
+	 */
+	public void stopAnimation(){
+		if (animation!=null){
+			animation.stop();
+			animation=null;
+			setUpdateFlag();
+		}
+	}
+	
+	/** Finds whether an animation is being played
+	 * 
+	 * @return  Whether animating
+	 */
+	public boolean isAnimating(){
+		return animation!=null;
+	}
+	
+	/** Gets the animation frame being shown
+	 * 
+	 * @return  Index of the frame in the drawData sequence (-1 if not animating or no frame has been shown yet)
+	 */
+	public int getAnimationFrame(){
+		return animation==null?-1:animation.currentFrame;
+	}
+	
+	/** Gets the number of times the animation has had to wait because the next frame was not ready
+	 * 
+	 * @return  Number of stalls since the animation started (0 if not animating)
+	 */
+	public int getNumAnimationStalls(){
+		return animation==null?0:animation.numStalls;
+	}
+	
+	/** Sets whether animations start again from the beginning after the last frame. Otherwise the
+	 * last frame is shown until stopAnimation() is called. Default is true.
+	 * 
+	 * @param loopAnimation  Whether to loop
+	 */
+	public void setLoopAnimation(boolean loopAnimation){
+		this.loopAnimation=loopAnimation;
+	}
+	
+	/** Gets whether animations start again from the beginning after the last frame
+	 * 
+	 * @return  Whether animations loop
+	 */
+	public boolean isLoopAnimation(){
+		return loopAnimation;
+	}
+	
+	/** Sets whether partitions that have been completely drawn are kept and reused by later renders.
+	 * Only has an effect when more than one partition is used (see setNumPartitions()). Default is false.
+	 * 
+	 * When a render is cancelled (e.g. by panning), the partitions it finished are kept. If the next
+	 * render is of the same data at the same zoom scale, these partitions are not drawn again. If the
+	 * view has been panned, the kept partitions are shifted and only the newly exposed area is drawn:
+	 * threadedDraw() is called for each exposed strip, clipped to it, and getViewPort() called from
+	 * the drawing thread meanwhile returns just that strip, so threadedDraw() code that only draws
+	 * what is in the viewport only draws what has come into view. Partitions from completed renders
+	 * are kept in the same way. This needs one extra canvas per partition.
+	 * 
+	 * Kept partitions are discarded by setUpdateFlag() (which is taken to mean that what is drawn
+	 * has changed), and when the screen bounds change.
+	 * 
+	 * @param resumableRendering  Whether to keep and reuse drawn partitions
+	 */
+	public void setResumableRendering(boolean resumableRendering){
+		this.resumableRendering=resumableRendering;
+		if (!resumableRendering)
+			discardKeptPartitions();
+	}
+	
+	/** Gets whether partitions that have been completely drawn are kept and reused by later renders
+	 * 
+	 * @return  Whether drawn partitions are reused
+	 */
+	public boolean isResumableRendering(){
+		return resumableRendering;
+	}
+	
+	/** Takes the kept partitions, so that a render can use them
+	 * 
+	 * @return  The kept partitions (null if none)
+	 */
+	private synchronized KeptPartitions takeKeptPartitions(){
+		KeptPartitions kept=keptPartitions;
+		keptPartitions=null;
+		return kept;
+	}
+	
+	/** Gets the generation of kept partitions, to be given to the partitions a render keeps
+	 * 
+	 * @return  The generation
+	 */
+	private synchronized int getKeptPartitionsGeneration(){
+		return keptPartitionsGeneration;
+	}
+	
+	/** Keeps the partitions from a render, replacing (and releasing) any already kept. Partitions
+	 * from a render that started before they were discarded are released instead.
+	 * 
+	 * @param kept  The partitions to keep
+	 */
+	private void keepPartitions(KeptPartitions kept){
+		KeptPartitions oldKept;
+		synchronized (this) {
+			if (kept.generation==keptPartitionsGeneration){
+				oldKept=keptPartitions;
+				keptPartitions=kept;
 			}
 			else
-				applet.g.image(image,x,y,w,h);
-
-			
-			//stop clipping
-			stopClipping();
+				oldKept=kept;
 		}
-//		System.out.println(tempImagesInUse.size()+"/"+tempImages.size());
+		if (oldKept!=null)
+			oldKept.release();
+	}
+	
+	/** Releases the kept partitions, including those from any render in progress
+	 */
+	private void discardKeptPartitions(){
+		KeptPartitions oldKept;
+		synchronized (this) {
+			keptPartitionsGeneration++;
+			oldKept=keptPartitions;
+			keptPartitions=null;
+		}
+		if (oldKept!=null)
+			oldKept.release();
+	}
+	
+	/** Sets a cache of drawn images, so that returning to an earlier view does not need it to be
+	 * drawn again. Set to null to stop using a cache (the default). The cache may be shared with
+	 * other buffers.
+	 * 
+	 * When using a cache, use setDrawDataVersion() whenever the data being drawn changes.
+	 * 
+	 * @param renderCache  The cache, or null
+	 */
+	public void setRenderCache(RenderCache renderCache){
+		this.renderCache=renderCache;
+	}
+	
+	/** Gets the cache of drawn images
+	 * 
+	 * @return  The cache, or null if none is used
+	 */
+	public RenderCache getRenderCache(){
+		return renderCache;
+	}
+	
+	/** Sets the version of the data being drawn. Only cached images drawn with the same version
+	 * will be used, so change this whenever the data changes. This also sets the update flag.
+	 * 
+	 * Not needed if setVersionedData() is used, as the version of that is used instead.
+	 * 
+	 * @param drawDataVersion  The version
+	 */
+	public void setDrawDataVersion(long drawDataVersion){
+		this.drawDataVersion=drawDataVersion;
+		setUpdateFlag();
+	}
+	
+	/** Gets the version of the data being drawn
+	 * 
+	 * @return  The version
+	 */
+	public long getDrawDataVersion(){
+		if (versionedData!=null)
+			return versionedData.getVersion();
+		return drawDataVersion;
+	}
+	
+	/** Sets the data that is drawn, so that the buffer updates itself whenever the data's
+	 * version changes, without needing setUpdateFlag(). threadedDraw() should draw a snapshot of
+	 * this data (using getSnapshot()). Set to null to stop (the default).
+	 * 
+	 * Don't use this with append(), as any change to the data will cause a full redraw.
+	 * 
+	 * @param versionedData  The data, or null
+	 */
+	public void setVersionedData(VersionedData<?> versionedData){
+		this.versionedData=versionedData;
+		setUpdateFlag();
+	}
+	
+	/** Gets the data whose changes cause the buffer to update itself 
+	 * 
+	 * @return  The data, or null if none is used
+	 */
+	public VersionedData<?> getVersionedData(){
+		return versionedData;
 	}
 	
 	/** Reports whether drawing to the off-screen buffer is in progress
@@ -291,12 +1158,82 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 		return isDrawingInThread;
 	}
 	
+	/** Gets the number of images that have been published (drawn, loaded from a snapshot or
+	 * taken from the cache). For diagnostics and testing.
+	 * 
+	 * @return  Number of images published
+	 */
+	public int getNumPublished(){
+		return numPublished;
+	}
+	
+	/** Gets the number of finished renders that were not shown because a newer render had
+	 * already been published. For diagnostics and testing.
+	 * 
+	 * @return  Number of stale renders discarded
+	 */
+	public int getNumStalePublishes(){
+		return numStalePublishes;
+	}
+	
+	/** Gets the number of threaded renders that have finished (whether or not their image was
+	 * published). For diagnostics and testing.
+	 * 
+	 * @return  Number of renders completed
+	 */
+	public int getNumRendersCompleted(){
+		return numRendersCompleted.get();
+	}
+	
+	/** Gets the number of threaded renders that were cancelled, before or during drawing. For
+	 * diagnostics and testing.
+	 * 
+	 * @return  Number of renders cancelled
+	 */
+	public int getNumRendersCancelled(){
+		return numRendersCancelled.get();
+	}
+	
+	/** Gets the number of threaded renders that failed (e.g. because drawing threw an exception
+	 * or a RemoteRenderPool worker stopped). For diagnostics and testing.
+	 * 
+	 * @return  Number of renders that failed
+	 */
+	public int getNumRendersFailed(){
+		return numRendersFailed.get();
+	}
+	
+	/** Gets the number of canvases in the pool used for drawing. For diagnostics and testing.
+	 * 
+	 * @return  Number of canvases
+	 */
+	public int getNumPooledCanvases(){
+		return tempImages.size();
+	}
+	
+	/** Gets the number of canvases from the pool that are in use (being drawn on, or holding
+	 * the current or previous image, kept partitions or animation frames). For diagnostics and
+	 * testing.
+	 * 
+	 * @return  Number of canvases in use
+	 */
+	public int getNumPooledCanvasesInUse(){
+		return tempImagesInUse.size();
+	}
+	
 	
 	/** Returns the current viewport based on zoom/pan in original coordinates.
+	 * 
+	 * When called from threadedDraw() while only part of the view is being drawn (the newly
+	 * exposed part of a partition, see setResumableRendering(), or a tile being drawn by a
+	 * PosterExporter), returns just that part.
 	 * 
 	 * @return The current viewport
 	 */
 	public Rectangle2D getViewPort(){
+		Rectangle2D partialViewPort=ScreenMapping.getPartialViewPort();
+		if (partialViewPort!=null)
+			return partialViewPort;
 		//Find the coordinates of the top left and bottom right corners
 		PVector topLeft=zoomPan.getDispToCoord(new PVector((float)screenBounds.getMinX(),(float)screenBounds.getMinY()));
 		PVector bottomRight=zoomPan.getDispToCoord(new PVector((float)screenBounds.getMaxX(),(float)screenBounds.getMaxY()));
@@ -307,14 +1244,17 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 	/** Returns the current viewport based on specific ZoomPanState (usually that at the start
 	 * of the sketch's draw loop) in original coordinates.
 	 * 
+	 * When called from threadedDraw() while only part of the view is being drawn (the newly
+	 * exposed part of a partition, see setResumableRendering(), or a tile being drawn by a
+	 * PosterExporter), returns just that part.
+	 * 
 	 * @return The current viewport
 	 */
 	public Rectangle2D getViewPort(ZoomPanState zoomPanState){
-		//Find the coordinates of the top left and bottom right corners
-		PVector topLeft=zoomPanState.getDispToCoord(new PVector((float)screenBounds.getMinX(),(float)screenBounds.getMinY()));
-		PVector bottomRight=zoomPanState.getDispToCoord(new PVector((float)screenBounds.getMaxX(),(float)screenBounds.getMaxY()));
-		Rectangle2D coordBounds=new Rectangle2D.Float(topLeft.x,topLeft.y,bottomRight.x-topLeft.x,bottomRight.y-topLeft.y);
-		return coordBounds;
+		Rectangle2D partialViewPort=ScreenMapping.getPartialViewPort();
+		if (partialViewPort!=null)
+			return partialViewPort;
+		return ScreenMapping.getViewPort(zoomPanState,screenBounds);
 	}
 
 	/** Gets the screen bounds
@@ -325,13 +1265,54 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 		return this.screenBounds;
 	}
 	
+	/** Changes the screen bounds, e.g. when the sketch's window is resized.
+	 * 
+	 * Until the content is drawn at the new size, the current image is drawn in the new bounds
+	 * (scaled and positioned using ZoomPan, or cropped if no ZoomPan is used). Drawing at the new
+	 * size only starts once the bounds have not changed for the resize delay (see setResizeDelay()),
+	 * so resizing a window draws once at the final size. Canvases of the old size are discarded as
+	 * they become free.
+	 * 
+	 * @param screenBounds  New screen area for the graphic buffer
+	 */
+	public void setScreenBounds(Rectangle screenBounds){
+		if (screenBounds.equals(lastScreenBounds))
+			return;
+		//drawing at the old size is no longer wanted
+		cancelThreadedDraw();
+		discardKeptPartitions();
+		this.screenBounds=new Rectangle(screenBounds);
+		lastScreenBounds=new Rectangle(screenBounds);
+		lastResizeTime=System.currentTimeMillis();
+		setUpdateFlag();
+	}
+	
+	/** Sets how long the screen bounds must stay the same before content is drawn at the new size.
+	 * Default is 200ms.
+	 * 
+	 * @param resizeDelay  Delay in milliseconds
+	 */
+	public void setResizeDelay(int resizeDelay){
+		this.resizeDelay=resizeDelay;
+	}
+	
+	/** Gets how long the screen bounds must stay the same before content is drawn at the new size
+	 * 
+	 * @return  Delay in milliseconds
+	 */
+	public int getResizeDelay(){
+		return resizeDelay;
+	}
+	
 	/** Set flag to update drawn content.
 	 * 
 	 * If true, threadedDraw() will be automatically called, the next time this
-	 * is drawn
+	 * is drawn. Any partitions kept for resumable rendering are discarded, so everything is drawn
+	 * again.
 	 * 
 	 */
 	public void setUpdateFlag(){
+		discardKeptPartitions();
 		this.needToUpdate=true;
 	}
 	
@@ -353,9 +1334,9 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 	
 	/** Sets whether the buffered contents fades in over the old
 	 * 
-	 * This doesn't work properly if the background is transparent,
-	 * so it will automatically be set to white. You may subsequently
-	 * set it in your code, but best not use transparency  
+	 * The blended frames of the fade are produced in the drawing thread, so fading costs no more
+	 * to draw than not fading. The fade takes the same time whatever the frame rate (see
+	 * setFadeDuration()), and works with transparent backgrounds.
 	 * 
 	 * @param useFade
 	 */
@@ -367,11 +1348,29 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 	 * 
 	 * 
 	 * @param useFade
+	 * @param numFadeSteps  Number of steps in the fade (each step is a blended image)
 	 */
 	public void setUseFadeEffect(boolean useFade, int numFadeSteps){
+		if (numFadeSteps<1)
+			throw new IllegalArgumentException("At least one fade step is needed.");
 		this.useFade=useFade;
-		this.fadeIncrement=(int)(255f/numFadeSteps);
-		oldImage = applet.createImage(screenBounds.width, screenBounds.height,PConstants.ARGB);
+		this.numFadeSteps=numFadeSteps;
+	}
+	
+	/** Sets how long the fade takes. Default is 250ms.
+	 * 
+	 * @param fadeDuration  Length of the fade in milliseconds
+	 */
+	public void setFadeDuration(int fadeDuration){
+		this.fadeDuration=fadeDuration;
+	}
+	
+	/** Gets how long the fade takes
+	 * 
+	 * @return  Length of the fade in milliseconds
+	 */
+	public int getFadeDuration(){
+		return fadeDuration;
 	}
 
 	
@@ -390,6 +1389,54 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 	public void removeListener(ThreadedGraphicBufferListener threadedGraphicBufferListener){
 		this.listeners.remove(threadedGraphicBufferListener);
 	}
+	
+	/**Adds a listener which will be told when each render starts, makes progress, completes or is
+	 * cancelled. Events are received one at a time in a separate thread. A listener that is slow to
+	 * deal with events misses intermediate ones and receives the latest, so it never holds up drawing.
+	 * 
+	 * @param renderEventListener  The listener
+	 */
+	public void addRenderEventListener(RenderEventListener renderEventListener){
+		addRenderEventListener(renderEventListener,false);
+	}
+	
+	/**Adds a listener which will be told when each render starts, makes progress, completes or is
+	 * cancelled. A listener that is slow to deal with events misses intermediate ones and receives
+	 * the latest, so it never holds up drawing.
+	 * 
+	 * @param renderEventListener  The listener
+	 * @param onAnimationThread  Whether events should be received in the animation thread (when
+	 *                           draw() is called), so that the listener can draw or use sketch state.
+	 *                           Otherwise they are received one at a time in a separate thread.
+	 */
+	public void addRenderEventListener(RenderEventListener renderEventListener, boolean onAnimationThread){
+		renderEvents.addListener(renderEventListener,onAnimationThread);
+	}
+	
+	/**Removes a render event listener
+	 * 
+	 * @param renderEventListener  The listener
+	 */
+	public void removeRenderEventListener(RenderEventListener renderEventListener){
+		renderEvents.removeListener(renderEventListener);
+	}
+	
+	/**Reports how much of the drawing has been done, to render event listeners. May be called
+	 * from threadedDraw() at any time (it is ignored if the drawing has been cancelled).
+	 * 
+	 * @param progress  Fraction of the drawing that has been done, from 0 to 1
+	 */
+	public void reportProgress(float progress){
+		DrawInSeparateThread drawTask=latestDrawTask;
+		if (drawTask!=null && !Thread.currentThread().isInterrupted())
+			drawTask.fireRenderEvent(RenderEvent.Type.PROGRESS,progress);
+	}
+	
+	/**Gets the ID for a new render
+	 */
+	private synchronized long nextFrameId(){
+		return frameCount++;
+	}
 
 	
 	/** Finds whether the content has been flagged for up update redraw
@@ -400,6 +1447,12 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 	 * @return  Whether the content should be redrawn
 	 */
 	private boolean needToUpdate(){
+		//animation frames are drawn ahead instead
+		if (animation!=null)
+			return false;
+		//wait for resizing to finish
+		if (System.currentTimeMillis()-lastResizeTime<resizeDelay)
+			return false;
 		if (updateDuringZoomPan &&
 				zoomPan!=null
 				&& (lastMouseX!=applet.mouseX || lastMouseY!=applet.mouseY)
@@ -414,7 +1467,7 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 			return false;
 		}
 		else
-			return needToUpdate;
+			return needToUpdate || (versionedData!=null && versionedData.getVersion()!=drawnDataVersion);
 	}
 	
 	/**Gets the buffer contents as an image
@@ -423,21 +1476,25 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 	 */
 	public PImage getImage(){
 		//if you just return bufferImage - get unexpected effects with tint
-		return image;
+		synchronized (publishLock) {
+			return image;
+		}
 	}
 
 	/**Set the update flag after zooming has finished
 	 * 
 	 */
 	public void zoomEnded() {
-		setUpdateFlag();
+		//the content has not changed, so kept partitions can still be reused
+		needToUpdate=true;
 		
 	}
 	/**Set the update flag after panning has finished
 	 * 
 	 */
 	public void panEnded() {
-		setUpdateFlag();
+		//the content has not changed, so kept partitions can still be reused
+		needToUpdate=true;
 	}
 	
 	/** Start clipping all drawn content to the screen bounds of this map
@@ -465,6 +1522,15 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 		ZoomPanState zoomPanState;
 		Object extraInfo;
 		boolean useFade;
+		List<Object> appendBatches=null;    //batches to draw over the existing content (null for a full redraw)
+		RenderCache.Key cacheKey=null;      //key of the image in the cache, which is used instead of drawing if cached, or stored once drawn (null if not cached)
+		Rectangle screenBounds=ThreadedGraphicBuffer.this.screenBounds; //screen bounds when requested (the buffer's may change)
+		long frameId=nextFrameId();         //identifies this render in render events
+		long requestTime=System.nanoTime(); //when this render was requested
+		long startTime=-1;                  //when drawing started (-1 if not started)
+		private boolean started=false;      //whether drawing has started
+		private boolean cancelled=false;    //whether the render was cancelled before it started
+		private boolean failed=false;       //whether drawing failed
 		
 		public DrawInSeparateThread(ZoomPanState zoomPanState,Object extraInfo, boolean useFade){
 			this.zoomPanState=zoomPanState;
@@ -472,35 +1538,161 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 			this.useFade=useFade;
 		}
 		
+		/** Task that draws batches of new items over the existing content, rather than redrawing
+		 */
+		public DrawInSeparateThread(ZoomPanState zoomPanState,List<Object> appendBatches){
+			this.zoomPanState=zoomPanState;
+			this.appendBatches=appendBatches;
+			this.useFade=false;
+		}
+		
+		/** Stops the render from starting if it has not already, e.g. if it is waiting for a RenderScheduler
+		 */
+		synchronized void cancelIfNotStarted(){
+			if (!started && !cancelled){
+				cancelled=true;
+				fireRenderEvent(RenderEvent.Type.CANCELLED,-1);
+			}
+		}
+		
+		/** Tells render event listeners about this render
+		 */
+		void fireRenderEvent(RenderEvent.Type type, float progress){
+			if (type==RenderEvent.Type.COMPLETED)
+				numRendersCompleted.incrementAndGet();
+			else if (type==RenderEvent.Type.CANCELLED)
+				numRendersCancelled.incrementAndGet();
+			else if (type==RenderEvent.Type.FAILED)
+				numRendersFailed.incrementAndGet();
+			if (renderEvents.hasListeners())
+				renderEvents.publish(new RenderEvent(ThreadedGraphicBuffer.this,type,frameId,zoomPanState==null?null:ScreenMapping.getViewPort(zoomPanState,screenBounds),progress,requestTime,startTime));
+		}
+		
 		private PGraphics getImageCanvas(){
-
-			PGraphics localBufferImage=null;
-			synchronized (tempImages) {
-				Iterator<PGraphics> it = tempImages.iterator();
-				while (it.hasNext() && localBufferImage==null){
-					PGraphics image=it.next();
-					if (image.width!=screenBounds.width || image.height!=screenBounds.height){
-						tempImages.remove(image);
-					}
-					else if (!tempImagesInUse.contains(image)){
-						localBufferImage=image;
-					}
+			return getPooledCanvas(screenBounds.width,screenBounds.height);
+		}
+		
+		/** Returns a canvas to the pool, so it can be reused
+		 */
+		private void releaseImageCanvas(PGraphics canvas){
+			releasePooledCanvas(canvas);
+		}
+		
+		/** Draws the partitions of the data in parallel, then combines them in order onto the canvas
+		 * 
+		 * @param canvas  The canvas to draw to, already offset to the screen bounds
+		 */
+		private void drawPartitions(PGraphics canvas){
+			int localNumPartitions;
+			ExecutorService executor;
+			synchronized (ThreadedGraphicBuffer.this) {
+				localNumPartitions=numPartitions;
+				if (partitionExecutor==null)
+					partitionExecutor=Executors.newFixedThreadPool(numPartitions,new ThreadFactory() {
+						public Thread newThread(Runnable runnable) {
+							Thread partitionThread=new Thread(runnable,"ThreadedGraphicBuffer partition");
+							partitionThread.setDaemon(true);
+							return partitionThread;
+						}
+					});
+				executor=partitionExecutor;
+			}
+			
+			//see if partitions kept from an earlier render can be reused
+			Rectangle2D viewPort=zoomPanState==null?null:ScreenMapping.getViewPort(zoomPanState,screenBounds);
+			long dataVersion=getDrawDataVersion();
+			int generation=getKeptPartitionsGeneration();
+			KeptPartitions kept=resumableRendering?takeKeptPartitions():null;
+			Point shift=null;
+			if (kept!=null)
+				shift=kept.findShift(viewPort,screenBounds.width,screenBounds.height,dataVersion,extraInfo,localNumPartitions);
+			
+			//draw each partition on its own canvas
+			List<DrawPartition> tasks=new ArrayList<DrawPartition>();
+			List<Future<?>> results=new ArrayList<Future<?>>();
+			for (int i=0;i<localNumPartitions;i++){
+				DrawPartition task=new DrawPartition(getImageCanvas(),i,localNumPartitions);
+				if (shift!=null && kept.canvases[i]!=null){
+					task.previousCanvas=kept.canvases[i];
+					task.shift=shift;
+					kept.canvases[i]=null;
+				}
+				tasks.add(task);
+				results.add(executor.submit(task));
+			}
+			if (kept!=null)
+				kept.release();
+			try{
+				for (int i=0;i<results.size();i++){
+					results.get(i).get();
+					fireRenderEvent(RenderEvent.Type.PROGRESS,(i+1)/(float)results.size());
+				}
+				//combine in partition order, which blends the same as drawing in that order
+				for (DrawPartition task:tasks)
+					canvas.image(task.partitionCanvas,screenBounds.x,screenBounds.y);
+			}
+			catch (InterruptedException e) {
+				//cancelled - leave the flag set for run() to see
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				//a partition failed, so what was drawn is incomplete and is neither shown nor cached
+				e.getCause().printStackTrace();
+				failed=true;
+			}
+			finally{
+				//stop any partitions still being drawn, and return the canvases to the pool once
+				//nothing is drawing on them
+				for (Future<?> result:results)
+					result.cancel(true);
+				if (resumableRendering){
+					//keep the partitions that were completely drawn for later renders
+					PGraphics[] completedCanvases=new PGraphics[localNumPartitions];
+					for (int i=0;i<localNumPartitions;i++)
+						completedCanvases[i]=tasks.get(i).takeCompletedCanvas();
+					keepPartitions(new KeptPartitions(viewPort,screenBounds.width,screenBounds.height,dataVersion,extraInfo,completedCanvases,generation));
 				}
-				if (localBufferImage==null){
-					localBufferImage=applet.createGraphics(screenBounds.width,screenBounds.height,PApplet.JAVA2D);
-					tempImages.add(localBufferImage);
+				else{
+					for (DrawPartition task:tasks)
+						task.releaseCanvasWhenDone();
 				}
-				tempImagesInUse.add(localBufferImage);
 			}
-			return localBufferImage;
 		}
-
+		
 		public void run(){
+			synchronized (this) {
+				if (cancelled)
+					return;
+				started=true;
+			}
+			startTime=System.nanoTime();
+			fireRenderEvent(RenderEvent.Type.STARTED,0);
 			PGraphics localBufferImage=getImageCanvas();
-			
-			//Sets flag indicating threaded drawing is in progress in ThreadedGraphicBuffer
-			isDrawingInThread=true;
-			
+			boolean isPublished=false;
+			try{
+				isPublished=draw(localBufferImage);
+			}
+			catch (RuntimeException e){
+				failed=true;
+				throw e;
+			}
+			finally{
+				finishedThreadedDraw(this);
+				if (!isPublished){
+					releaseImageCanvas(localBufferImage);
+					fireRenderEvent(failed?RenderEvent.Type.FAILED:RenderEvent.Type.CANCELLED,-1);
+				}
+			}
+			if (isPublished)
+				fireRenderEvent(RenderEvent.Type.COMPLETED,1);
+		}
+		
+		/** Draws the content and publishes it, unless cancelled
+		 * 
+		 * @param localBufferImage  Canvas to draw on
+		 * @return  Whether the image was published
+		 */
+		private boolean draw(PGraphics localBufferImage){
 			//keep a record of the zoom scale at last draw - only update in ThreadedGraphicBuffer
 			// when/if drawing on the on-screen buffer is complete
 			Rectangle2D localBoundsAtLastBuffer=null;
@@ -510,14 +1702,34 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 				localBoundsAtLastBuffer=new Rectangle2D.Float(p1.x,p1.y,p2.x-p1.x,p2.y-p1.y);
 			}
 			
+			//use the cached image instead of drawing, if there is one
+			if (cacheKey!=null && renderCache!=null){
+				RenderCache.Entry cachedImage=renderCache.get(cacheKey);
+				if (cachedImage!=null && cachedImage.width==localBufferImage.width && cachedImage.height==localBufferImage.height){
+					localBufferImage.loadPixels();
+					System.arraycopy(cachedImage.pixels,0,localBufferImage.pixels,0,cachedImage.pixels.length);
+					localBufferImage.updatePixels();
+					BufferedImage newAcceleratedImage=createAcceleratedImage(localBufferImage);
+					synchronized (publishLock) {
+						finishedThreadedDraw(this);
+						return publishImage(frameId,localBufferImage,cachedImage.bounds,null,newAcceleratedImage);
+					}
+				}
+			}
+			
 			localBufferImage.beginDraw();
-			if (useFade)
-				localBufferImage.background(255);//white background if we're using fade effect
-			else
-				localBufferImage.background(255,0);//transparent background
+			localBufferImage.background(255,0);//transparent background
 			//use smooth() if the original sketch does
 			if (applet.g.smooth)
 				localBufferImage.smooth();
+			//start from the existing content if appending
+			if (appendBatches!=null){
+				PImage existingImage;
+				synchronized (publishLock) {
+					existingImage=image;
+				}
+				localBufferImage.image(existingImage,0,0);
+			}
 
 			
 			localBufferImage.pushMatrix();
@@ -525,42 +1737,448 @@ public class ThreadedGraphicBuffer implements ZoomPanListener{
 			localBufferImage.translate(-screenBounds.x,-screenBounds.y);
 
 			//call the threaded buffer code
-			threadedDrawToGraphicBuffer.threadedDraw(localBufferImage,zoomPanState,extraInfo);
+			if (appendBatches!=null){
+				for (Object appendData:appendBatches){
+					((ThreadedAppendDraw)threadedDrawToGraphicBuffer).threadedAppendDraw(localBufferImage,zoomPanState,appendData);
+					if (Thread.currentThread().isInterrupted())
+						break;
+				}
+			}
+			else if (remoteRenderPool!=null){
+				try{
+					remoteRenderPool.render(localBufferImage,zoomPanState,screenBounds,extraInfo==null?null:extraInfo.toString());
+				}
+				catch (IOException e){
+					//what was drawn is incomplete, so is neither shown nor cached
+					e.printStackTrace();
+					failed=true;
+				}
+			}
+			else if (numPartitions>1)
+				drawPartitions(localBufferImage);
+			else
+				threadedDrawToGraphicBuffer.threadedDraw(localBufferImage,zoomPanState,extraInfo);
 			
 			localBufferImage.popMatrix();
 			localBufferImage.endDraw();
 			
 			//if thread has been interrupted (i.e. cancelled because the image being drawn is
 			//obsolete, exit ASAP before updating the image  
-			if (Thread.currentThread().isInterrupted()){
-				synchronized (tempImagesInUse) {
-					tempImagesInUse.remove(localBufferImage);
-				}
-				return;
-			}
+			if (failed || Thread.currentThread().isInterrupted())
+				return false;
 
 			//drawing is now complete, so set the boundsAtLastBuffer in ThreadedGraphicBuffer
 
 			//copy contents to the "image" field;
 //			PImage im = applet.createImage(screenBounds.width, screenBounds.height,PConstants.ARGB);
 //			im.copy(localBufferImage, 0,0,screenBounds.width, screenBounds.height, 0,0,screenBounds.width, screenBounds.height);
-			if (boundsAtLastBuffer!=null)
-				boundsAtLastLastBuffer=boundsAtLastBuffer;
-			else
-				boundsAtLastLastBuffer=localBoundsAtLastBuffer;
-			boundsAtLastBuffer=localBoundsAtLastBuffer;
-			tintValue=0;
-			synchronized (tempImagesInUse) {
-				tempImagesInUse.remove(oldImage);
+			//keep a copy in the cache
+			if (cacheKey!=null && renderCache!=null){
+				localBufferImage.loadPixels();
+				renderCache.put(cacheKey,localBufferImage.pixels.clone(),localBufferImage.width,localBufferImage.height,localBoundsAtLastBuffer);
 			}
-			oldImage=image;
-			image=localBufferImage;
 
-			//...and set the flag to indicate that drawing is complete
-			isDrawingInThread=false;
-			//inform listeners that imagine is ready
-			for (ThreadedGraphicBufferListener threadedGraphicBufferListener:listeners)
-				threadedGraphicBufferListener.newBufferedImageAvailable();
+			//fade in new content, but not appended items
+			PImage[] newFadeFrames=null;
+			if (useFade && appendBatches==null){
+				newFadeFrames=createFadeFrames(frameId,localBufferImage,localBoundsAtLastBuffer);
+				if (Thread.currentThread().isInterrupted())
+					return false;
+			}
+			//copy before publishing, so publishLock is only held to swap the images
+			BufferedImage newAcceleratedImage=createAcceleratedImage(localBufferImage);
+
+			synchronized (publishLock) {
+				//...and set the flag to indicate that drawing is complete
+				finishedThreadedDraw(this);
+				return publishImage(frameId,localBufferImage,localBoundsAtLastBuffer,newFadeFrames,newAcceleratedImage);
+			}
+		}
+		
+		/** Finds the strips of a canvas that are not covered by kept pixels shifted onto it. There
+		 * are none if it has not shifted, one if shifted horizontally or vertically and two if shifted
+		 * diagonally.
+		 * 
+		 * @param width   Width of the canvas
+		 * @param height  Height of the canvas
+		 * @param shift   Pixels the kept pixels are shifted by
+		 * @return        The exposed strips, in canvas pixels
+		 */
+		private List<Rectangle> getExposedStrips(int width, int height, Point shift){
+			List<Rectangle> exposedStrips=new ArrayList<Rectangle>();
+			//full height strip at the left or right
+			if (shift.x>0)
+				exposedStrips.add(new Rectangle(0,0,shift.x,height));
+			else if (shift.x<0)
+				exposedStrips.add(new Rectangle(width+shift.x,0,-shift.x,height));
+			//strip at the top or bottom of the remaining columns
+			int minX=Math.max(0,shift.x);
+			int maxX=Math.min(width,width+shift.x);
+			if (shift.y>0)
+				exposedStrips.add(new Rectangle(minX,0,maxX-minX,shift.y));
+			else if (shift.y<0)
+				exposedStrips.add(new Rectangle(minX,height+shift.y,maxX-minX,-shift.y));
+			return exposedStrips;
+		}
+		
+		/** Draws one partition of the data on its own canvas 
+		 */
+		private class DrawPartition implements Runnable{
+			PGraphics partitionCanvas;
+			int partition,numPartitions;
+			private boolean started=false;      //whether drawing has started
+			private boolean finished=false;     //whether drawing has finished
+			private boolean releaseWhenFinished=false; //whether the canvas should be released when drawing finishes
+			private boolean released=false;     //whether the canvas has been released
+			private boolean completed=false;    //whether drawing finished without being cancelled
+			PGraphics previousCanvas=null;      //this partition kept from an earlier render (null if none)
+			Point shift=null;                   //pixels to shift the previous canvas by
+			
+			DrawPartition(PGraphics partitionCanvas, int partition, int numPartitions){
+				this.partitionCanvas=partitionCanvas;
+				this.partition=partition;
+				this.numPartitions=numPartitions;
+			}
+			
+			/** Releases the canvas now if nothing is drawing on it, otherwise when drawing finishes
+			 */
+			synchronized void releaseCanvasWhenDone(){
+				if (!started || finished){
+					released=true;
+					releaseImageCanvas(partitionCanvas);
+					if (previousCanvas!=null){
+						releaseImageCanvas(previousCanvas);
+						previousCanvas=null;
+					}
+				}
+				else
+					releaseWhenFinished=true;
+			}
+			
+			/** Takes the canvas if it was completely drawn, otherwise releases it as releaseCanvasWhenDone() does
+			 * 
+			 * @return  The completely drawn canvas, which is no longer released by this task (null if not completed)
+			 */
+			synchronized PGraphics takeCompletedCanvas(){
+				if (finished && completed && !released){
+					released=true;
+					return partitionCanvas;
+				}
+				releaseCanvasWhenDone();
+				return null;
+			}
+			
+			public void run(){
+				synchronized (this) {
+					if (released)
+						return;
+					started=true;
+				}
+				try{
+					partitionCanvas.beginDraw();
+					partitionCanvas.background(255,0);//transparent background, so partitions can be combined
+					if (applet.g.smooth)
+						partitionCanvas.smooth();
+					if (previousCanvas!=null){
+						//reuse this partition from an earlier render, only drawing the area that is newly in view
+						partitionCanvas.image(previousCanvas,shift.x,shift.y);
+						synchronized (this) {
+							releaseImageCanvas(previousCanvas);
+							previousCanvas=null;
+						}
+						for (Rectangle exposedStrip:getExposedStrips(partitionCanvas.width,partitionCanvas.height,shift)){
+							((PGraphicsJava2D)partitionCanvas).g2.setClip(exposedStrip);
+							//so that getViewPort() only gives the strip to threadedDraw()
+							ScreenMapping.setPartialViewPort(ScreenMapping.getViewPort(zoomPanState,new Rectangle(exposedStrip.x+screenBounds.x,exposedStrip.y+screenBounds.y,exposedStrip.width,exposedStrip.height)));
+							try{
+								drawPartition();
+							}
+							finally{
+								ScreenMapping.setPartialViewPort(null);
+								((PGraphicsJava2D)partitionCanvas).g2.setClip(null);
+							}
+						}
+					}
+					else
+						drawPartition();
+					partitionCanvas.endDraw();
+					synchronized (this) {
+						completed=!Thread.currentThread().isInterrupted();
+					}
+				}
+				finally{
+					synchronized (this) {
+						finished=true;
+						if (releaseWhenFinished){
+							released=true;
+							releaseImageCanvas(partitionCanvas);
+						}
+					}
+				}
+			}
+			
+			/** Calls threadedDraw() for this partition, offset to the screen bounds 
+			 */
+			private void drawPartition(){
+				partitionCanvas.pushMatrix();
+				//offset
+				partitionCanvas.translate(-screenBounds.x,-screenBounds.y);
+				((PartitionedThreadedDraw)threadedDrawToGraphicBuffer).threadedDraw(partitionCanvas,zoomPanState,extraInfo,partition,numPartitions);
+				partitionCanvas.popMatrix();
+			}
+		}
+	}
+	
+	/** Partitions that were completely drawn by a render, kept for reuse by later renders
+	 */
+	private class KeptPartitions{
+		Rectangle2D viewPort;      //viewport drawn (null if no ZoomPan is used)
+		int width,height;          //size of the canvases
+		long dataVersion;          //version of the data drawn
+		Object drawData;           //extra information passed to threadedDraw
+		PGraphics[] canvases;      //canvas of each partition (null for those not completed)
+		int generation;            //generation of kept partitions when the render started
+		
+		KeptPartitions(Rectangle2D viewPort, int width, int height, long dataVersion, Object drawData, PGraphics[] canvases, int generation){
+			this.viewPort=viewPort;
+			this.width=width;
+			this.height=height;
+			this.dataVersion=dataVersion;
+			this.drawData=drawData;
+			this.canvases=canvases;
+			this.generation=generation;
+		}
+		
+		/** Finds how far the kept partitions need to be shifted to be reused for a new render
+		 * 
+		 * @return  The shift in pixels, or null if they cannot be reused (different data, zoom
+		 *          scale or size, or panned by part of a pixel or off the canvas)
+		 */
+		Point findShift(Rectangle2D newViewPort, int newWidth, int newHeight, long newDataVersion, Object newDrawData, int numPartitions){
+			if (numPartitions!=canvases.length || newDataVersion!=dataVersion || width!=newWidth || height!=newHeight)
+				return null;
+			if (drawData==null?newDrawData!=null:!drawData.equals(newDrawData))
+				return null;
+			if (viewPort==null || newViewPort==null)
+				return viewPort==newViewPort?new Point(0,0):null;
+			//must be at the same scale
+			if (Math.abs(viewPort.getWidth()-newViewPort.getWidth())>newViewPort.getWidth()*1e-4
+					|| Math.abs(viewPort.getHeight()-newViewPort.getHeight())>newViewPort.getHeight()*1e-4)
+				return null;
+			//and shifted by whole pixels
+			double shiftX=(viewPort.getMinX()-newViewPort.getMinX())*width/newViewPort.getWidth();
+			double shiftY=(viewPort.getMinY()-newViewPort.getMinY())*height/newViewPort.getHeight();
+			long pixelShiftX=Math.round(shiftX);
+			long pixelShiftY=Math.round(shiftY);
+			if (Math.abs(shiftX-pixelShiftX)>0.05 || Math.abs(shiftY-pixelShiftY)>0.05 || Math.abs(pixelShiftX)>=width || Math.abs(pixelShiftY)>=height)
+				return null;
+			return new Point((int)pixelShiftX,(int)pixelShiftY);
+		}
+		
+		/** Returns the canvases that are still kept to the pool
+		 */
+		void release(){
+			synchronized (tempImagesInUse) {
+				for (int i=0;i<canvases.length;i++){
+					if (canvases[i]!=null)
+						tempImagesInUse.remove(canvases[i]);
+					canvases[i]=null;
+				}
+			}
+		}
+	}
+	
+	/** Plays an animation, drawing the next few frames ahead in a ring of pooled canvases 
+	 */
+	private class AnimationPrefetch{
+		List<Object> sequence;          //drawData of each frame
+		long frameInterval;             //milliseconds between frames
+		int numPrefetch;                //number of frames to draw ahead
+		ExecutorService executor;       //threads that draw the frames
+		Map<Integer,PGraphics> readyFrames=new HashMap<Integer, PGraphics>(); //frames drawn and waiting to be shown
+		Map<Integer,Future<?>> requestedFrames=new HashMap<Integer, Future<?>>(); //frames being drawn or ready
+		int generation=0;               //increases when frames drawn ahead are discarded
+		boolean isStopped=false;
+		ZoomPanState zoomPanState=null; //view frames are being drawn at
+		Rectangle2D viewPort=null;
+		Rectangle bounds=null;
+		volatile int currentFrame=-1;   //frame being shown
+		boolean isCurrentFrameStale=false; //whether the frame being shown was drawn at an earlier view
+		long nextFrameTime=0;           //when the next frame is due
+		boolean isStalled=false;        //whether the next frame is late
+		volatile int numStalls=0;
+		
+		AnimationPrefetch(List<Object> sequence, float framesPerSecond, int numPrefetch){
+			this.sequence=sequence;
+			this.frameInterval=Math.max(1,Math.round(1000/framesPerSecond));
+			this.numPrefetch=numPrefetch;
+			this.executor=Executors.newFixedThreadPool(Math.min(numPrefetch,Runtime.getRuntime().availableProcessors()),new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread prefetchThread=new Thread(runnable,"ThreadedGraphicBuffer animation");
+					prefetchThread.setDaemon(true);
+					return prefetchThread;
+				}
+			});
+		}
+		
+		/** Shows the next frame if it is due and ready, and requests the frames after it. Called
+		 * from draw() in the animation thread.
+		 */
+		void step(ZoomPanState newZoomPanState){
+			//keep showing the current frame (scaled) while zooming and panning
+			if (zoomPan!=null && (zoomPan.isPanning() || zoomPan.isZooming()))
+				return;
+			Rectangle2D newViewPort=newZoomPanState==null?null:getViewPort(newZoomPanState);
+			if (bounds==null || !bounds.equals(screenBounds) || (newViewPort==null?viewPort!=null:!newViewPort.equals(viewPort))){
+				//frames drawn ahead are for the wrong view
+				discardFrames();
+				isCurrentFrameStale=currentFrame>=0;
+				zoomPanState=newZoomPanState;
+				viewPort=newViewPort;
+				bounds=screenBounds;
+			}
+			
+			long now=System.currentTimeMillis();
+			if (now>=nextFrameTime){
+				int frame=getFrameAfter(currentFrame,1);
+				if (frame<0 && isCurrentFrameStale)
+					frame=currentFrame;   //finished, but the last frame needs to be drawn at the new view
+				if (frame>=0){
+					PGraphics canvas;
+					synchronized (this) {
+						canvas=readyFrames.remove(frame);
+					}
+					if (canvas!=null){
+						requestedFrames.remove(frame);
+						publishImage(nextFrameId(),canvas,viewPort,null);
+						currentFrame=frame;
+						isCurrentFrameStale=false;
+						//keep to the frame rate, unless the frame was late
+						if (isStalled || now-nextFrameTime>frameInterval)
+							nextFrameTime=now+frameInterval;
+						else
+							nextFrameTime+=frameInterval;
+						isStalled=false;
+					}
+					else if (!isStalled){
+						isStalled=true;
+						numStalls++;
+					}
+				}
+			}
+			requestFrames();
+		}
+		
+		/** Finds the frame a number of frames after another
+		 * 
+		 * @return  The frame, or -1 if past the end (when not looping)
+		 */
+		int getFrameAfter(int frame, int numFrames){
+			int nextFrame=frame+numFrames;
+			if (nextFrame<sequence.size())
+				return nextFrame;
+			return loopAnimation?nextFrame%sequence.size():-1;
+		}
+		
+		/** Starts drawing the frames that will be needed next, and stops drawing any that will not
+		 */
+		void requestFrames(){
+			List<Integer> wantedFrames=new ArrayList<Integer>();
+			if (isCurrentFrameStale && getFrameAfter(currentFrame,1)<0)
+				wantedFrames.add(currentFrame);
+			for (int i=1;i<=numPrefetch;i++){
+				int frame=getFrameAfter(currentFrame,i);
+				if (frame<0)
+					break;
+				if (!wantedFrames.contains(frame))
+					wantedFrames.add(frame);
+			}
+			//cancel frames no longer wanted
+			Iterator<Map.Entry<Integer,Future<?>>> it=requestedFrames.entrySet().iterator();
+			while (it.hasNext()){
+				Map.Entry<Integer,Future<?>> entry=it.next();
+				if (!wantedFrames.contains(entry.getKey())){
+					entry.getValue().cancel(true);
+					synchronized (this) {
+						PGraphics canvas=readyFrames.remove(entry.getKey());
+						if (canvas!=null)
+							releasePooledCanvas(canvas);
+					}
+					it.remove();
+				}
+			}
+			//request wanted frames, in the order they will be shown
+			for (int frame:wantedFrames)
+				if (!requestedFrames.containsKey(frame))
+					requestedFrames.put(frame,executor.submit(new DrawFrame(frame,generation,zoomPanState,bounds)));
+		}
+		
+		/** Discards all frames drawn ahead and stops those being drawn 
+		 */
+		synchronized void discardFrames(){
+			generation++;
+			for (PGraphics canvas:readyFrames.values())
+				releasePooledCanvas(canvas);
+			readyFrames.clear();
+			for (Future<?> future:requestedFrames.values())
+				future.cancel(true);
+			requestedFrames.clear();
+		}
+		
+		/** Stops the animation, discarding frames drawn ahead
+		 */
+		void stop(){
+			synchronized (this) {
+				isStopped=true;
+				discardFrames();
+			}
+			executor.shutdownNow();
+		}
+		
+		/** Draws one frame on a pooled canvas
+		 */
+		private class DrawFrame implements Runnable{
+			int frame;
+			int frameGeneration;
+			ZoomPanState frameZoomPanState;
+			Rectangle frameBounds;
+			
+			DrawFrame(int frame, int frameGeneration, ZoomPanState frameZoomPanState, Rectangle frameBounds){
+				this.frame=frame;
+				this.frameGeneration=frameGeneration;
+				this.frameZoomPanState=frameZoomPanState;
+				this.frameBounds=frameBounds;
+			}
+			
+			public void run(){
+				PGraphics canvas=getPooledCanvas(frameBounds.width,frameBounds.height);
+				boolean isKept=false;
+				try{
+					canvas.beginDraw();
+					canvas.background(255,0);//transparent background
+					if (applet.g.smooth)
+						canvas.smooth();
+					canvas.pushMatrix();
+					//offset
+					canvas.translate(-frameBounds.x,-frameBounds.y);
+					threadedDrawToGraphicBuffer.threadedDraw(canvas,frameZoomPanState,sequence.get(frame));
+					canvas.popMatrix();
+					canvas.endDraw();
+					synchronized (AnimationPrefetch.this) {
+						//only keep the frame if it is still wanted
+						if (!Thread.currentThread().isInterrupted() && !isStopped && frameGeneration==generation){
+							PGraphics oldCanvas=readyFrames.put(frame,canvas);
+							if (oldCanvas!=null)
+								releasePooledCanvas(oldCanvas);
+							isKept=true;
+						}
 					}
+				}
+				finally{
+					if (!isKept)
+						releasePooledCanvas(canvas);
+				}
+			}
+		}
 	}
 }
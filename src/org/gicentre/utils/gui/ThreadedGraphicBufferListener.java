@@ -2,7 +2,8 @@ package org.gicentre.utils.gui;
 
 //****************************************************************************************
 /** Interface that allows other classes to be notified when a new buffered image is available
- * to draw
+ * to draw. Called in the drawing thread - use a RenderEventListener to be told in the animation
+ * thread, or to be told more about each render.
  * 
 *  
 * @author Aidan Slingsby, giCentre, City University London.
@@ -0,0 +1,267 @@
+package org.gicentre.utils.gui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/** Container for data that is drawn in one thread (e.g. by threadedDraw()) while being read or
+ * changed in others (e.g. for mouse-over tests in the sketch's draw()), without locking.
+ * 
+ * Readers call getSnapshot() and get an unchangeable Snapshot of the data, which they can
+ * iterate over for as long as they like. Changes create a new snapshot with a higher version
+ * number, which later calls to getSnapshot() return, and leave existing snapshots unchanged.
+ * Snapshots share the parts of the data that have not changed, so adding a batch of items only
+ * copies references to the blocks of existing items, not the items themselves.
+ * 
+ * Give a VersionedData to a ThreadedGraphicBuffer with setVersionedData() and the buffer will
+ * update itself whenever the version changes. In threadedDraw(), call getSnapshot() once and
+ * draw that.
+ */
+
+/* This file is part of giCentre utilities library. gicentre.utils is free software: you can 
+ * redistribute it and/or modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * gicentre.utils is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * source code (see COPYING.LESSER included with this source code). If not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+public class VersionedData<T> implements Iterable<T>{
+
+	private volatile Snapshot<T> snapshot;   //the current snapshot
+	
+	/** Creates an empty container
+	 * 
+	 */
+	public VersionedData(){
+		snapshot=new Snapshot<T>(new Object[0][],0);
+	}
+	
+	/** Creates a container holding some items
+	 * 
+	 * @param items  The items
+	 */
+	public VersionedData(Collection<? extends T> items){
+		this();
+		set(items);
+	}
+	
+	/** Gets the current snapshot of the data, which will not change
+	 * 
+	 * @return  The snapshot
+	 */
+	public Snapshot<T> getSnapshot(){
+		return snapshot;
+	}
+	
+	/** Gets the current version of the data, which increases whenever the data changes
+	 * 
+	 * @return  The version
+	 */
+	public long getVersion(){
+		return snapshot.version;
+	}
+	
+	/** Iterates over the current snapshot (the same as getSnapshot().iterator())
+	 * 
+	 */
+	public Iterator<T> iterator() {
+		return snapshot.iterator();
+	}
+	
+	/** Adds an item
+	 * 
+	 * @param item  The item
+	 */
+	public void add(T item){
+		addAll(Collections.singletonList(item));
+	}
+	
+	/** Adds a batch of items, sharing the existing items with the previous snapshot
+	 * 
+	 * @param items  The items
+	 */
+	public synchronized void addAll(Collection<? extends T> items){
+		if (items.isEmpty())
+			return;
+		List<Object[]> chunks=new ArrayList<Object[]>(Arrays.asList(snapshot.chunks));
+		chunks.add(items.toArray());
+		//merge the newest blocks while they are similar in size to the one before, so there are
+		//only a few blocks to look through and each item is only copied a few times
+		while (chunks.size()>=2 && chunks.get(chunks.size()-2).length<=2*chunks.get(chunks.size()-1).length){
+			Object[] last=chunks.remove(chunks.size()-1);
+			Object[] previous=chunks.remove(chunks.size()-1);
+			Object[] merged=new Object[previous.length+last.length];
+			System.arraycopy(previous,0,merged,0,previous.length);
+			System.arraycopy(last,0,merged,previous.length,last.length);
+			chunks.add(merged);
+		}
+		publish(chunks);
+	}
+	
+	/** Removes an item
+	 * 
+	 * @param item  The item
+	 * @return  Whether the item was removed
+	 */
+	public boolean remove(Object item){
+		return removeAll(Collections.singletonList(item));
+	}
+	
+	/** Removes a batch of items. Only the blocks of items that contained them are copied.
+	 * 
+	 * @param items  The items
+	 * @return  Whether any items were removed
+	 */
+	public synchronized boolean removeAll(Collection<?> items){
+		Set<?> toRemove=new HashSet<Object>(items);
+		List<Object[]> chunks=new ArrayList<Object[]>();
+		boolean changed=false;
+		for (Object[] chunk:snapshot.chunks){
+			List<Object> keep=null;
+			for (int i=0;i<chunk.length;i++){
+				if (toRemove.contains(chunk[i])){
+					if (keep==null)
+						keep=new ArrayList<Object>(Arrays.asList(chunk).subList(0,i));
+				}
+				else if (keep!=null)
+					keep.add(chunk[i]);
+			}
+			if (keep==null)
+				chunks.add(chunk);    //unchanged, so share it
+			else{
+				changed=true;
+				if (!keep.isEmpty())
+					chunks.add(keep.toArray());
+			}
+		}
+		if (changed)
+			publish(chunks);
+		return changed;
+	}
+	
+	/** Replaces all the items
+	 * 
+	 * @param items  The new items
+	 */
+	public synchronized void set(Collection<? extends T> items){
+		List<Object[]> chunks=new ArrayList<Object[]>();
+		if (!items.isEmpty())
+			chunks.add(items.toArray());
+		publish(chunks);
+	}
+	
+	/** Removes all the items
+	 * 
+	 */
+	public synchronized void clear(){
+		publish(new ArrayList<Object[]>());
+	}
+	
+	/** Makes a new snapshot the current one
+	 */
+	private void publish(List<Object[]> chunks){
+		snapshot=new Snapshot<T>(chunks.toArray(new Object[chunks.size()][]),snapshot.version+1);
+	}
+	
+	/** An unchangeable version of the data
+	 */
+	public static class Snapshot<T> implements Iterable<T>{
+		private final Object[][] chunks;   //blocks of items, possibly shared with other snapshots
+		private final int[] chunkStarts;   //index of the first item in each block
+		private final int size;
+		private final long version;
+		
+		private Snapshot(Object[][] chunks, long version){
+			this.chunks=chunks;
+			this.version=version;
+			chunkStarts=new int[chunks.length];
+			int count=0;
+			for (int i=0;i<chunks.length;i++){
+				chunkStarts[i]=count;
+				count+=chunks[i].length;
+			}
+			size=count;
+		}
+		
+		/** Gets the version of the data this is a snapshot of
+		 * 
+		 * @return  The version
+		 */
+		public long getVersion(){
+			return version;
+		}
+		
+		/** Gets the number of items
+		 * 
+		 * @return  Number of items
+		 */
+		public int size(){
+			return size;
+		}
+		
+		/** Reports whether there are no items
+		 * 
+		 * @return  Whether there are no items
+		 */
+		public boolean isEmpty(){
+			return size==0;
+		}
+		
+		/** Gets an item by its position
+		 * 
+		 * @param index  Position of the item
+		 * @return  The item
+		 */
+		@SuppressWarnings("unchecked")
+		public T get(int index){
+			if (index<0 || index>=size)
+				throw new IndexOutOfBoundsException("Index "+index+", size "+size);
+			int chunk=Arrays.binarySearch(chunkStarts,index);
+			if (chunk<0)
+				chunk=-chunk-2;   //the block that starts before the index
+			return (T)chunks[chunk][index-chunkStarts[chunk]];
+		}
+		
+		/** Iterates over the items in order
+		 * 
+		 */
+		public Iterator<T> iterator() {
+			return new Iterator<T>() {
+				int chunk=0;
+				int index=0;
+				
+				public boolean hasNext() {
+					while (chunk<chunks.length && index>=chunks[chunk].length){
+						chunk++;
+						index=0;
+					}
+					return chunk<chunks.length;
+				}
+				
+				@SuppressWarnings("unchecked")
+				public T next() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+					return (T)chunks[chunk][index++];
+				}
+				
+				public void remove() {
+					throw new UnsupportedOperationException("Snapshots cannot be changed.");
+				}
+			};
+		}
+	}
+}